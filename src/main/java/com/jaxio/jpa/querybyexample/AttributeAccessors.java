@@ -0,0 +1,155 @@
+/*
+ * Copyright 2015 JAXIO http://www.jaxio.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jaxio.jpa.querybyexample;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableMap;
+import org.apache.commons.beanutils.PropertyUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.ManagedType;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.google.common.base.Throwables.propagate;
+import static com.google.common.collect.Maps.newConcurrentMap;
+import static java.lang.reflect.Modifier.isPublic;
+
+/**
+ * Per managed type table of attribute getters, built once from the JPA metamodel.
+ * <p>
+ * Public getters are turned into {@link Function}s by the {@link LambdaMetafactory}, so reading an attribute is a plain interface call. Fields and
+ * non public getters go through a {@link MethodHandle}. No reflective call is made once the table of a type is built.
+ */
+@Named
+@Singleton
+public class AttributeAccessors {
+    private static final Logger log = LoggerFactory.getLogger(AttributeAccessors.class);
+    private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+    private static final MethodType GENERIC_GETTER = MethodType.methodType(Object.class, Object.class);
+
+    private final ConcurrentMap<Class<?>, Map<String, Function<Object, Object>>> accessorsByType = newConcurrentMap();
+
+    /*
+     * Returns the value of the given attribute on the given target.
+     */
+    public Object get(Object target, Attribute<?, ?> attribute) {
+        Function<Object, Object> getter = getters(attribute.getDeclaringType()).get(attribute.getName());
+        if (getter == null) {
+            throw new IllegalArgumentException("No getter for " + attribute.getName() + " on " + attribute.getDeclaringType().getJavaType());
+        }
+        return getter.apply(target);
+    }
+
+    /*
+     * Returns the getters of the given managed type, keyed by attribute name. Built on first use.
+     */
+    public Map<String, Function<Object, Object>> getters(ManagedType<?> mt) {
+        Map<String, Function<Object, Object>> getters = accessorsByType.get(mt.getJavaType());
+        if (getters == null) {
+            getters = buildGetters(mt);
+            Map<String, Function<Object, Object>> previous = accessorsByType.putIfAbsent(mt.getJavaType(), getters);
+            if (previous != null) {
+                getters = previous;
+            }
+        }
+        return getters;
+    }
+
+    private Map<String, Function<Object, Object>> buildGetters(ManagedType<?> mt) {
+        ImmutableMap.Builder<String, Function<Object, Object>> getters = ImmutableMap.builder();
+        for (Attribute<?, ?> attribute : mt.getAttributes()) {
+            getters.put(attribute.getName(), getter(attribute));
+        }
+        return getters.build();
+    }
+
+    private Function<Object, Object> getter(Attribute<?, ?> attribute) {
+        Member member = attribute.getJavaMember();
+        try {
+            if (member instanceof Method) {
+                Method method = (Method) member;
+                if (isPublic(method.getModifiers()) && isPublic(method.getDeclaringClass().getModifiers())) {
+                    try {
+                        return lambdaGetter(method);
+                    } catch (Throwable t) {
+                        // the lambda class may not be able to link against the entity class loader
+                        log.debug("Could not create a lambda getter for {}, falling back to a method handle", method, t);
+                    }
+                }
+                method.setAccessible(true);
+                return handleGetter(lookup.unreflect(method));
+            } else if (member instanceof Field) {
+                Field field = (Field) member;
+                field.setAccessible(true);
+                return handleGetter(lookup.unreflectGetter(field));
+            }
+        } catch (IllegalAccessException e) {
+            throw propagate(e);
+        }
+        return propertyGetter(attribute.getName());
+    }
+
+    @SuppressWarnings("unchecked")
+    private Function<Object, Object> lambdaGetter(Method method) throws Throwable {
+        MethodHandle handle = lookup.unreflect(method);
+        CallSite callSite = LambdaMetafactory.metafactory(lookup, "apply", MethodType.methodType(Function.class), GENERIC_GETTER, handle,
+                handle.type().wrap());
+        return (Function<Object, Object>) callSite.getTarget().invoke();
+    }
+
+    private Function<Object, Object> handleGetter(MethodHandle handle) {
+        final MethodHandle genericHandle = handle.asType(GENERIC_GETTER);
+        return new Function<Object, Object>() {
+            @Override
+            public Object apply(Object target) {
+                try {
+                    return genericHandle.invokeExact(target);
+                } catch (Throwable t) {
+                    throw propagate(t);
+                }
+            }
+        };
+    }
+
+    /*
+     * Used when the provider does not expose the java member of the attribute.
+     */
+    private Function<Object, Object> propertyGetter(final String name) {
+        return new Function<Object, Object>() {
+            @Override
+            public Object apply(Object target) {
+                try {
+                    return PropertyUtils.getProperty(target, name);
+                } catch (Exception e) {
+                    throw propagate(e);
+                }
+            }
+        };
+    }
+}
@@ -24,30 +24,36 @@ import javax.inject.Singleton;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 import javax.persistence.criteria.*;
+import javax.persistence.metamodel.Attribute;
 import javax.persistence.metamodel.ManagedType;
 import javax.persistence.metamodel.PluralAttribute;
 import javax.persistence.metamodel.SingularAttribute;
 import java.util.List;
+import java.util.Set;
 
 import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Sets.newIdentityHashSet;
+import static java.util.Arrays.asList;
 import static java.util.Collections.emptyList;
 import static javax.persistence.metamodel.Attribute.PersistentAttributeType.*;
 import static org.apache.commons.lang.StringUtils.isNotEmpty;
 
 /**
- * Helper to create predicate by example. It processes associated entities (1 level deep).
+ * Helper to create predicate by example. It processes the associated entities, following the to-one associations of the example at any depth.
  */
 @Named
 @Singleton
 public class ByExampleUtil {
     private static final Logger log = LoggerFactory.getLogger(ByExampleUtil.class);
+    // recorded in the shape of the query once the predicates of a to-one association are built, as they are followed by those of its siblings
+    private static final Character END_OF_ASSOCIATION = ')';
 
     @Inject
     private JpaUtil jpaUtil;
     @PersistenceContext
     private EntityManager em;
 
-    public <T extends Identifiable<?>> Predicate byExampleOnEntity(Root<T> rootPath, T entityValue, CriteriaBuilder builder, SearchParameters sp) {
+    public <T extends Identifiable<?>> Predicate byExampleOnEntity(Root<T> rootPath, T entityValue, QueryBindings bindings, SearchParameters sp) {
         if (entityValue == null) {
             return null;
         }
@@ -56,23 +62,24 @@ public class ByExampleUtil {
         ManagedType<T> mt = em.getMetamodel().entity(type);
 
         List<Predicate> predicates = newArrayList();
-        predicates.addAll(byExample(mt, rootPath, entityValue, sp, builder));
-        predicates.addAll(byExampleOnCompositePk(rootPath, entityValue, sp, builder));
-        predicates.addAll(byExampleOnXToOne(mt, rootPath, entityValue, sp, builder)); // 1 level deep only
-        predicates.addAll(byExampleOnXToMany(mt, rootPath, entityValue, sp, builder));
-        return jpaUtil.concatPredicate(sp, builder, predicates);
+        predicates.addAll(byExample(mt, rootPath, entityValue, sp, bindings));
+        predicates.addAll(byExampleOnCompositePk(rootPath, entityValue, sp, bindings));
+        predicates.addAll(byExampleOnXToOne(mt, rootPath, entityValue, sp, bindings));
+        predicates.addAll(byExampleOnXToMany(mt, rootPath, entityValue, sp, bindings));
+        return jpaUtil.concatPredicate(sp, bindings.getBuilder(), predicates);
     }
 
-    protected <T extends Identifiable<?>> List<Predicate> byExampleOnCompositePk(Root<T> root, T entity, SearchParameters sp, CriteriaBuilder builder) {
+    protected <T extends Identifiable<?>> List<Predicate> byExampleOnCompositePk(Root<T> root, T entity, SearchParameters sp, QueryBindings bindings) {
         String compositePropertyName = jpaUtil.compositePkPropertyName(entity);
         if (compositePropertyName == null) {
             return emptyList();
         } else {
-            return newArrayList(byExampleOnEmbeddable(root.get(compositePropertyName), entity.getId(), sp, builder));
+            bindings.addShape(compositePropertyName);
+            return newArrayList(byExampleOnEmbeddable(root.get(compositePropertyName), entity.getId(), sp, bindings));
         }
     }
 
-    public <E> Predicate byExampleOnEmbeddable(Path<E> embeddablePath, E embeddableValue, SearchParameters sp, CriteriaBuilder builder) {
+    public <E> Predicate byExampleOnEmbeddable(Path<E> embeddablePath, E embeddableValue, SearchParameters sp, QueryBindings bindings) {
         if (embeddableValue == null) {
             return null;
         }
@@ -80,13 +87,14 @@ public class ByExampleUtil {
         Class<E> type = embeddablePath.getModel().getBindableJavaType();
         ManagedType<E> mt = em.getMetamodel().embeddable(type); // note: calling .managedType() does not work
 
-        return jpaUtil.andPredicate(builder, byExample(mt, embeddablePath, embeddableValue, sp, builder));
+        return jpaUtil.andPredicate(bindings.getBuilder(), byExample(mt, embeddablePath, embeddableValue, sp, bindings));
     }
 
     /*
      * Add a predicate for each simple property whose value is not null.
      */
-    public <T> List<Predicate> byExample(ManagedType<T> mt, Path<T> mtPath, T mtValue, SearchParameters sp, CriteriaBuilder builder) {
+    public <T> List<Predicate> byExample(ManagedType<T> mt, Path<T> mtPath, T mtValue, SearchParameters sp, QueryBindings bindings) {
+        CriteriaBuilder builder = bindings.getBuilder();
         List<Predicate> predicates = newArrayList();
         for (SingularAttribute<? super T, ?> attr : mt.getSingularAttributes()) {
             if (attr.getPersistentAttributeType() == MANY_TO_ONE //
@@ -99,10 +107,12 @@ public class ByExampleUtil {
             if (attrValue != null) {
                 if (attr.getJavaType() == String.class) {
                     if (isNotEmpty((String) attrValue)) {
-                        predicates.add(jpaUtil.stringPredicate(mtPath.get(jpaUtil.stringAttribute(mt, attr)), attrValue, sp, builder));
+                        bindings.addShape(attr.getName());
+                        predicates.add(jpaUtil.stringPredicate(mtPath.get(jpaUtil.stringAttribute(mt, attr)), attrValue, sp, bindings));
                     }
                 } else {
-                    predicates.add(builder.equal(mtPath.get(jpaUtil.attribute(mt, attr)), attrValue));
+                    bindings.addShape(attr.getName());
+                    predicates.add(builder.equal(mtPath.get(jpaUtil.attribute(mt, attr)), bindings.bind(attrValue)));
                 }
             }
         }
@@ -110,26 +120,54 @@ public class ByExampleUtil {
     }
 
     /*
-     * Invoke byExample method for each not null x-to-one association when their pk is not set. This allows you to search entities based on an associated
-     * entity's properties value.
+     * Invoke byExample method for each not null x-to-one association when their pk is not set, then recurse on their own x-to-one associations. This
+     * allows you to search entities based on an associated entity's properties value. Depending on {@link SearchParameters#getXToOneStrategy()},
+     * each association is either joined or restricted with a subquery.
      */
+    public <T extends Identifiable<?>> List<Predicate> byExampleOnXToOne(ManagedType<T> mt, Root<T> mtPath, T mtValue, SearchParameters sp,
+                                                                         QueryBindings bindings) {
+        Set<Object> visited = newIdentityHashSet();
+        visited.add(mtValue);
+        return byExampleOnXToOne(mt, mtPath, mtValue, sp, bindings, visited);
+    }
+
     @SuppressWarnings("unchecked")
-    public <T extends Identifiable<?>, M2O extends Identifiable<?>> List<Predicate> byExampleOnXToOne(ManagedType<T> mt, Root<T> mtPath, T mtValue,
-                                                                                                      SearchParameters sp, CriteriaBuilder builder) {
+    private <T, M2O extends Identifiable<?>> List<Predicate> byExampleOnXToOne(ManagedType<T> mt, Path<T> mtPath, T mtValue, SearchParameters sp,
+                                                                               QueryBindings bindings, Set<Object> visited) {
+        CriteriaBuilder builder = bindings.getBuilder();
         List<Predicate> predicates = newArrayList();
         for (SingularAttribute<? super T, ?> attr : mt.getSingularAttributes()) {
             if (attr.getPersistentAttributeType() == MANY_TO_ONE || attr.getPersistentAttributeType() == ONE_TO_ONE) {
                 M2O m2oValue = (M2O) jpaUtil.getValue(mtValue, mt.getAttribute(attr.getName()));
+                if (m2oValue == null || !visited.add(m2oValue)) {
+                    continue;
+                }
                 Class<M2O> m2oType = (Class<M2O>) attr.getBindableJavaType();
                 Path<M2O> m2oPath = (Path<M2O>) mtPath.get(attr);
                 ManagedType<M2O> m2oMt = em.getMetamodel().entity(m2oType);
-                if (m2oValue != null) {
-                    if (m2oValue.isIdSet()) { // we have an id, let's restrict only on this field
-                        predicates.add(builder.equal(m2oPath.get("id"), m2oValue.getId()));
-                    } else {
-                        predicates.addAll(byExample(m2oMt, m2oPath, m2oValue, sp, builder));
+                CommonAbstractCriteria query = bindings.getQuery();
+                if (m2oValue.isIdSet()) { // we have an id, let's restrict only on this field
+                    bindings.addShape(asList(attr.getName(), "id"));
+                    predicates.add(builder.equal(jpaUtil.idPath(m2oPath), bindings.bind(m2oValue.getId())));
+                } else if (sp.getXToOneStrategy() == XToOneStrategy.SUBQUERY && query != null) {
+                    bindings.addShape(asList(attr.getName(), XToOneStrategy.SUBQUERY));
+                    Subquery<Object> subquery = query.subquery(Object.class);
+                    Root<M2O> m2oRoot = subquery.from(m2oType);
+                    List<Predicate> m2oPredicates = byExample(m2oMt, m2oRoot, m2oValue, sp, bindings);
+                    m2oPredicates.addAll(byExampleOnXToOne(m2oMt, m2oRoot, m2oValue, sp, bindings, visited));
+                    Predicate m2oPredicate = jpaUtil.concatPredicate(sp, builder, m2oPredicates);
+                    if (m2oPredicate != null) {
+                        subquery.select(jpaUtil.idPath(m2oRoot)).where(m2oPredicate);
+                        predicates.add(builder.in(jpaUtil.idPath(m2oPath)).value(subquery));
                     }
+                    bindings.addShape(END_OF_ASSOCIATION);
+                } else {
+                    bindings.addShape(asList(attr.getName(), XToOneStrategy.JOIN));
+                    predicates.addAll(byExample(m2oMt, m2oPath, m2oValue, sp, bindings));
+                    predicates.addAll(byExampleOnXToOne(m2oMt, m2oPath, m2oValue, sp, bindings, visited));
+                    bindings.addShape(END_OF_ASSOCIATION);
                 }
+                visited.remove(m2oValue);
             }
         }
         return predicates;
@@ -138,27 +176,28 @@ public class ByExampleUtil {
     /*
      * Construct a join predicate on collection (eg many to many, List)
      */
-    public <T> List<Predicate> byExampleOnXToMany(ManagedType<T> mt, Root<T> mtPath, T mtValue, SearchParameters sp, CriteriaBuilder builder) {
+    public <T> List<Predicate> byExampleOnXToMany(ManagedType<T> mt, Root<T> mtPath, T mtValue, SearchParameters sp, QueryBindings bindings) {
         List<Predicate> predicates = newArrayList();
         for (PluralAttribute<? super T, ?, ?> pa : mt.getPluralAttributes()) {
             if (pa.getCollectionType() == PluralAttribute.CollectionType.LIST) {
                 List<?> values = (List<?>) jpaUtil.getValue(mtValue, mt.getAttribute(pa.getName()));
                 if (values != null && !values.isEmpty()) {
+                    bindings.addShape(pa.getName());
                     if (sp.getUseAndInXToMany()) {
-                        if (values.size() > 3) {
-                            log.warn("Please note that using AND restriction on an Many to Many relationship requires as many joins as values");
-                        }
-                        for (Object value : values) {
-                            ListJoin<T, ?> join = mtPath.join(mt.getList(pa.getName()));
-                            predicates.add(join.in(value));
+                        if (values.size() > 3 && sp.getXToManyAndStrategy() == XToManyAndStrategy.JOIN) {
+                            log.warn("Please note that using AND restriction on an Many to Many relationship requires as many joins as values, "
+                                    + "see SearchParameters.setXToManyAndStrategy");
                         }
+                        List<Attribute<?, ?>> attributes = newArrayList();
+                        attributes.add(pa);
+                        predicates.add(jpaUtil.allValuesPredicate(mtPath, attributes, values, sp.getXToManyAndStrategy(), bindings));
                     } else {
                         ListJoin<T, ?> join = mtPath.join(mt.getList(pa.getName()));
-                        predicates.add(join.in(values));
+                        predicates.add(jpaUtil.inPredicate(bindings, join, values));
                     }
                 }
             }
         }
         return predicates;
     }
-}
\ No newline at end of file
+}
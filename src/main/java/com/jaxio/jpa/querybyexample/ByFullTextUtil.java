@@ -18,15 +18,14 @@ package com.jaxio.jpa.querybyexample;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
-import javax.persistence.Embeddable;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
-import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.Path;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
 import javax.persistence.metamodel.ManagedType;
 import javax.persistence.metamodel.SingularAttribute;
+import javax.persistence.metamodel.Type;
 import java.io.Serializable;
 import java.util.List;
 
@@ -50,16 +49,16 @@ public class ByFullTextUtil {
     @Inject
     private JpaUtil jpaUtil;
 
-    public <T extends Identifiable<?>> Predicate byFullText(Root<T> root, CriteriaBuilder builder, SearchParameters sp, T entity,
+    public <T extends Identifiable<?>> Predicate byFullText(Root<T> root, QueryBindings bindings, SearchParameters sp, T entity,
                                                             List<SingularAttribute<?, ?>> indexedAttributes) {
         if (!hasNonEmptyTerms(sp)) {
             return null;
         }
 
         if (jpaUtil.hasSimplePk(entity)) {
-            return onSimplePrimaryKey(root, builder, sp, indexedAttributes);
+            return onSimplePrimaryKey(root, bindings, sp, indexedAttributes);
         } else {
-            return onCompositePrimaryKeys(root, builder, sp, indexedAttributes);
+            return onCompositePrimaryKeys(root, bindings, sp, indexedAttributes);
         }
     }
 
@@ -72,34 +71,34 @@ public class ByFullTextUtil {
         return false;
     }
 
-    private <T extends Identifiable<?>> Predicate onCompositePrimaryKeys(Root<T> root, CriteriaBuilder builder, SearchParameters sp,
+    private <T extends Identifiable<?>> Predicate onCompositePrimaryKeys(Root<T> root, QueryBindings bindings, SearchParameters sp,
                                                                          List<SingularAttribute<?, ?>> properties) {
         List<? extends T> found = hibernateSearchUtil.find(root.getJavaType(), sp, properties);
         if (found == null) {
             return null;
         } else if (found.isEmpty()) {
-            return builder.disjunction();
+            return bindings.getBuilder().disjunction();
         }
 
         List<Predicate> predicates = newArrayList();
         for (T t : found) {
-            predicates.add(byExampleOnEntity(root, t, sp, builder));
+            predicates.add(byExampleOnEntity(root, t, sp, bindings));
         }
-        return jpaUtil.concatPredicate(sp, builder, jpaUtil.orPredicate(builder, predicates));
+        return jpaUtil.concatPredicate(sp, bindings.getBuilder(), jpaUtil.orPredicate(bindings.getBuilder(), predicates));
     }
 
-    private <T> Predicate onSimplePrimaryKey(Root<T> root, CriteriaBuilder builder, SearchParameters sp, List<SingularAttribute<?, ?>> properties) {
+    private <T> Predicate onSimplePrimaryKey(Root<T> root, QueryBindings bindings, SearchParameters sp, List<SingularAttribute<?, ?>> properties) {
         List<Serializable> ids = hibernateSearchUtil.findId(root.getJavaType(), sp, properties);
         if (ids == null) {
             return null;
         } else if (ids.isEmpty()) {
-            return builder.disjunction();
+            return bindings.getBuilder().disjunction();
         }
 
-        return jpaUtil.concatPredicate(sp, builder, root.get("id").in(ids));
+        return jpaUtil.concatPredicate(sp, bindings.getBuilder(), jpaUtil.inPredicate(bindings, jpaUtil.idPath(root), ids));
     }
 
-    public <T extends Identifiable<?>> Predicate byExampleOnEntity(Root<T> rootPath, T entityValue, SearchParameters sp, CriteriaBuilder builder) {
+    public <T extends Identifiable<?>> Predicate byExampleOnEntity(Root<T> rootPath, T entityValue, SearchParameters sp, QueryBindings bindings) {
         if (entityValue == null) {
             return null;
         }
@@ -108,34 +107,34 @@ public class ByFullTextUtil {
         ManagedType<T> mt = em.getMetamodel().entity(type);
 
         List<Predicate> predicates = newArrayList();
-        predicates.addAll(byExample(mt, rootPath, entityValue, sp, builder));
-        predicates.addAll(byExampleOnCompositePk(rootPath, entityValue, sp, builder));
-        return jpaUtil.orPredicate(builder, predicates);
+        predicates.addAll(byExample(mt, rootPath, entityValue, sp, bindings));
+        predicates.addAll(byExampleOnCompositePk(rootPath, entityValue, sp, bindings));
+        return jpaUtil.orPredicate(bindings.getBuilder(), predicates);
     }
 
-    protected <T extends Identifiable<?>> List<Predicate> byExampleOnCompositePk(Root<T> root, T entity, SearchParameters sp, CriteriaBuilder builder) {
+    protected <T extends Identifiable<?>> List<Predicate> byExampleOnCompositePk(Root<T> root, T entity, SearchParameters sp, QueryBindings bindings) {
         String compositePropertyName = jpaUtil.compositePkPropertyName(entity);
         if (compositePropertyName == null) {
             return emptyList();
         } else {
-            return newArrayList(byExampleOnEmbeddable(root.get(compositePropertyName), entity.getId(), sp, builder));
+            return newArrayList(byExampleOnEmbeddable(root.get(compositePropertyName), entity.getId(), sp, bindings));
         }
     }
 
-    public <E> Predicate byExampleOnEmbeddable(Path<E> embeddablePath, E embeddableValue, SearchParameters sp, CriteriaBuilder builder) {
+    public <E> Predicate byExampleOnEmbeddable(Path<E> embeddablePath, E embeddableValue, SearchParameters sp, QueryBindings bindings) {
         if (embeddableValue == null) {
             return null;
         }
 
         Class<E> type = embeddablePath.getModel().getBindableJavaType();
         ManagedType<E> mt = em.getMetamodel().embeddable(type); // note: calling .managedType() does not work
-        return jpaUtil.orPredicate(builder, byExample(mt, embeddablePath, embeddableValue, sp, builder));
+        return jpaUtil.orPredicate(bindings.getBuilder(), byExample(mt, embeddablePath, embeddableValue, sp, bindings));
     }
 
     /*
      * Add a predicate for each simple property whose value is not null.
      */
-    public <T> List<Predicate> byExample(ManagedType<T> mt, Path<T> mtPath, T mtValue, SearchParameters sp, CriteriaBuilder builder) {
+    public <T> List<Predicate> byExample(ManagedType<T> mt, Path<T> mtPath, T mtValue, SearchParameters sp, QueryBindings bindings) {
         List<Predicate> predicates = newArrayList();
         for (SingularAttribute<? super T, ?> attr : mt.getSingularAttributes()) {
             if (!isPrimaryKey(mt, attr)) {
@@ -144,14 +143,14 @@ public class ByFullTextUtil {
 
             Object attrValue = jpaUtil.getValue(mtValue, attr);
             if (attrValue != null) {
-                predicates.add(builder.equal(mtPath.get(jpaUtil.attribute(mt, attr)), attrValue));
+                predicates.add(bindings.getBuilder().equal(mtPath.get(jpaUtil.attribute(mt, attr)), bindings.bind(attrValue)));
             }
         }
         return predicates;
     }
 
     private <T> boolean isPrimaryKey(ManagedType<T> mt, SingularAttribute<? super T, ?> attr) {
-        if (mt.getJavaType().getAnnotation(Embeddable.class) != null) {
+        if (mt.getPersistenceType() == Type.PersistenceType.EMBEDDABLE) {
             return true;
         }
         return jpaUtil.isPk(mt, attr);
@@ -53,6 +53,38 @@ public class ByNamedQueryUtil {
     }
 
     public <T> List<T> findByNamedQuery(SearchParameters sp) {
+        return findByNamedQuery(sp, Boolean.TRUE.equals(sp.getReadOnly()));
+    }
+
+    /*
+     * Same as findByNamedQuery, with the read-only flag resolved by the caller, see {@link SearchParameters#readOnly()}.
+     */
+    public <T> List<T> findByNamedQuery(SearchParameters sp, boolean readOnly) {
+        Query query = createFindQuery(sp, readOnly);
+
+        // execute
+        @SuppressWarnings("unchecked")
+        List<T> result = query.getResultList();
+
+        if (result != null) {
+            log.debug("{} returned a List of size: {}", sp.getNamedQuery(), result.size());
+        }
+
+        return result;
+    }
+
+    /*
+     * Same as findByNamedQuery, but the results are read as they are consumed, see {@link ResultIterator}.
+     */
+    public <T> ResultIterator<T> scrollByNamedQuery(SearchParameters sp) {
+        return scrollByNamedQuery(sp, Boolean.TRUE.equals(sp.getReadOnly()));
+    }
+
+    public <T> ResultIterator<T> scrollByNamedQuery(SearchParameters sp, boolean readOnly) {
+        return new ResultIterator<T>(entityManager, createFindQuery(sp, readOnly), sp);
+    }
+
+    private Query createFindQuery(SearchParameters sp, boolean readOnly) {
         if (sp == null || !sp.hasNamedQuery()) {
             throw new IllegalArgumentException("searchParameters must be non null and must have a namedQuery");
         }
@@ -82,18 +114,13 @@ public class ByNamedQueryUtil {
         // pagination
         jpaUtil.applyPagination(query, sp);
 
-        // named parameters
-        setQueryParameters(query, sp);
-
-        // execute
-        @SuppressWarnings("unchecked")
-        List<T> result = query.getResultList();
-
-        if (result != null) {
-            log.debug("{} returned a List of size: {}", sp.getNamedQuery(), result.size());
+        if (readOnly) {
+            query.setHint("org.hibernate.readOnly", true);
         }
 
-        return result;
+        // named parameters
+        setQueryParameters(query, sp);
+        return query;
     }
 
     @SuppressWarnings("unchecked")
@@ -105,7 +132,15 @@ public class ByNamedQueryUtil {
         return (Number) objectByNamedQuery(sp);
     }
 
+    public Number numberByNamedQuery(SearchParameters sp, boolean readOnly) {
+        return (Number) objectByNamedQuery(sp, readOnly);
+    }
+
     public Object objectByNamedQuery(SearchParameters sp) {
+        return objectByNamedQuery(sp, sp != null && Boolean.TRUE.equals(sp.getReadOnly()));
+    }
+
+    public Object objectByNamedQuery(SearchParameters sp, boolean readOnly) {
         if (sp == null || !sp.hasNamedQuery()) {
             throw new IllegalStateException("Invalid search template provided: could not determine which namedQuery to use");
         }
@@ -118,6 +153,10 @@ public class ByNamedQueryUtil {
             query = recreateQuery(query, "select count(*) " + queryString);
         }
 
+        if (readOnly) {
+            query.setHint("org.hibernate.readOnly", true);
+        }
+
         setQueryParameters(query, sp);
 
         log.debug("objectNamedQuery : {}", sp.toString());
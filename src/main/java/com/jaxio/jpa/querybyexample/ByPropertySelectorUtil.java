@@ -39,28 +39,71 @@ public class ByPropertySelectorUtil {
     private JpaUtil jpaUtil;
 
     @SuppressWarnings("unchecked")
-    public <E> Predicate byPropertySelectors(Root<E> root, CriteriaBuilder builder, SearchParameters sp) {
+    public <E> Predicate byPropertySelectors(final Root<E> root, final QueryBindings bindings, final SearchParameters sp) {
+        final CriteriaBuilder builder = bindings.getBuilder();
         List<Predicate> predicates = newArrayList();
 
-        for (PropertySelector<?, ?> selector : sp.getProperties()) {
-            if (selector.isBoolean()) {
-                byBooleanSelector(root, builder, predicates, sp, (PropertySelector<? super E, Boolean>) selector);
-            } else if (selector.isString()) {
-                byStringSelector(root, builder, predicates, sp, (PropertySelector<? super E, String>) selector);
+        for (PropertySelector<?, ?> s : sp.getProperties()) {
+            final PropertySelector<? super E, ?> selector = (PropertySelector<? super E, ?>) s;
+            boolean useExists = useExists(selector, sp, bindings);
+            bindings.addShape(jpaUtil.toNamesList(selector.getAttributes()), selector.isOrMode(), useExists);
+            if (useExists) {
+                predicates.add(jpaUtil.existsPredicate(root, bindings, new JpaUtil.CorrelatedPredicate<E>() {
+                    @Override
+                    public Predicate build(Root<E> correlatedRoot, JoinRegistry joins) {
+                        List<Predicate> selectorPredicates = newArrayList();
+                        bySelector(correlatedRoot, bindings, selectorPredicates, sp, joins, selector);
+                        return jpaUtil.andPredicate(builder, selectorPredicates);
+                    }
+                }));
             } else {
-                byObjectSelector(root, builder, predicates, sp, (PropertySelector<? super E, ?>) selector);
+                bySelector(root, bindings, predicates, sp, jpaUtil.predicateJoins(sp, bindings), selector);
             }
         }
         return jpaUtil.concatPredicate(sp, builder, predicates);
     }
 
-    private <E> void byBooleanSelector(Root<E> root, CriteriaBuilder builder, List<Predicate> predicates, SearchParameters sp,
+    /*
+     * Whether the selector is matched in an EXISTS subquery. The object selectors in and mode are not, as they already match their values with
+     * subqueries, see {@link JpaUtil#allValuesPredicate}.
+     */
+    private boolean useExists(PropertySelector<?, ?> selector, SearchParameters sp, QueryBindings bindings) {
+        if (!selector.isBoolean() && !selector.isString() && !selector.isOrMode() && selector.isNotEmpty()) {
+            return false;
+        }
+        return jpaUtil.useExists(selector.getCollectionPathStrategy(), selector.getAttributes(), sp, bindings);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <E> void bySelector(Root<E> root, QueryBindings bindings, List<Predicate> predicates, SearchParameters sp, JoinRegistry joins,
+                                PropertySelector<? super E, ?> selector) {
+        if (selector.isBoolean()) {
+            byBooleanSelector(root, bindings, predicates, sp, joins, (PropertySelector<? super E, Boolean>) selector);
+        } else if (selector.isString()) {
+            byStringSelector(root, bindings, predicates, sp, joins, (PropertySelector<? super E, String>) selector);
+        } else {
+            byObjectSelector(root, bindings, predicates, sp, joins, selector);
+        }
+    }
+
+    /*
+     * The path of the selector for one of its selected values: on the given joins in or mode, on joins of its own in and mode so that the values
+     * may match different elements of a collection.
+     */
+    private <E, F> Path<F> selectedValuePath(Root<E> root, JoinRegistry joins, PropertySelector<? super E, ?> selector) {
+        return jpaUtil.getPath(root, selector.getAttributes(), selector.isOrMode() ? joins : new JoinRegistry());
+    }
+
+    private <E> void byBooleanSelector(Root<E> root, QueryBindings bindings, List<Predicate> predicates, SearchParameters sp, JoinRegistry joins,
                                        PropertySelector<? super E, Boolean> selector) {
+        CriteriaBuilder builder = bindings.getBuilder();
         if (selector.isNotEmpty()) {
             List<Predicate> selectorPredicates = newArrayList();
 
             for (Boolean selection : selector.getSelected()) {
-                Path<Boolean> path = jpaUtil.getPath(root, selector.getAttributes());
+                Path<Boolean> path = selectedValuePath(root, joins, selector);
+                // boolean selections are rendered as is null / is true / is false
+                bindings.addShape(selection);
                 if (selection == null) {
                     selectorPredicates.add(builder.isNull(path));
                 } else {
@@ -75,14 +118,15 @@ public class ByPropertySelectorUtil {
         }
     }
 
-    private <E> void byStringSelector(Root<E> root, CriteriaBuilder builder, List<Predicate> predicates, SearchParameters sp,
+    private <E> void byStringSelector(Root<E> root, QueryBindings bindings, List<Predicate> predicates, SearchParameters sp, JoinRegistry joins,
                                       PropertySelector<? super E, String> selector) {
+        CriteriaBuilder builder = bindings.getBuilder();
         if (selector.isNotEmpty()) {
             List<Predicate> selectorPredicates = newArrayList();
 
             for (String selection : selector.getSelected()) {
-                Path<String> path = jpaUtil.getPath(root, selector.getAttributes());
-                selectorPredicates.add(jpaUtil.stringPredicate(path, selection, selector.getSearchMode(), sp, builder));
+                Path<String> path = selectedValuePath(root, joins, selector);
+                selectorPredicates.add(jpaUtil.stringPredicate(path, selection, selector.getSearchMode(), sp, bindings));
             }
             if (selector.isOrMode()) {
                 predicates.add(jpaUtil.orPredicate(builder, selectorPredicates));
@@ -92,58 +136,72 @@ public class ByPropertySelectorUtil {
         }
     }
 
-    private <E> void byObjectSelector(Root<E> root, CriteriaBuilder builder, List<Predicate> predicates, SearchParameters sp,
+    private <E> void byObjectSelector(Root<E> root, QueryBindings bindings, List<Predicate> predicates, SearchParameters sp, JoinRegistry joins,
                                       PropertySelector<? super E, ?> selector) {
+        CriteriaBuilder builder = bindings.getBuilder();
         if (selector.isNotEmpty()) {
             if (selector.isOrMode()) {
-                byObjectOrModeSelector(root, builder, predicates, sp, selector);
+                byObjectOrModeSelector(root, bindings, predicates, sp, joins, selector);
             } else {
-                byObjectAndModeSelector(root, builder, predicates, sp, selector);
+                byObjectAndModeSelector(root, bindings, predicates, sp, joins, selector);
             }
         } else if (selector.isNotIncludingNullSet()) {
-            predicates.add(builder.isNotNull(jpaUtil.getPath(root, selector.getAttributes())));
+            bindings.addShape("is not null");
+            predicates.add(builder.isNotNull(jpaUtil.getPath(root, selector.getAttributes(), joins)));
         }
     }
 
-    private <E> void byObjectOrModeSelector(Root<E> root, CriteriaBuilder builder, List<Predicate> predicates, SearchParameters sp,
+    private <E> void byObjectOrModeSelector(Root<E> root, QueryBindings bindings, List<Predicate> predicates, SearchParameters sp, JoinRegistry joins,
                                             PropertySelector<? super E, ?> selector) {
+        CriteriaBuilder builder = bindings.getBuilder();
         List<Predicate> selectorPredicates = newArrayList();
-        Path<?> path = jpaUtil.getPath(root, selector.getAttributes());
+        Path<?> path = jpaUtil.getPath(root, selector.getAttributes(), joins);
         List<?> selected = selector.getSelected();
         if (selected.contains(null)) {
             selected = newArrayList(selector.getSelected());
             selected.remove(null);
+            bindings.addShape("is null");
             selectorPredicates.add(builder.isNull(path));
         }
         if (isNotEmpty(selected)) {
+            bindings.addShape(selected.get(0) instanceof Identifiable ? "id" : "value");
             if (selected.get(0) instanceof Identifiable) {
                 List<Serializable> ids = newArrayList();
                 for (Object selection : selected) {
                     ids.add(((Identifiable<?>) selection).getId());
                 }
-                selectorPredicates.add(path.get("id").in(ids));
+                selectorPredicates.add(jpaUtil.inPredicate(bindings, jpaUtil.idPath(path), ids));
             } else {
-                selectorPredicates.add(path.in(selected));
+                selectorPredicates.add(jpaUtil.inPredicate(bindings, path, selected));
             }
         }
         predicates.add(jpaUtil.orPredicate(builder, selectorPredicates));
     }
 
-    private <E> void byObjectAndModeSelector(Root<E> root, CriteriaBuilder builder, List<Predicate> predicates, SearchParameters sp,
+    private <E> void byObjectAndModeSelector(Root<E> root, QueryBindings bindings, List<Predicate> predicates, SearchParameters sp, JoinRegistry joins,
                                              PropertySelector<? super E, ?> selector) {
+        CriteriaBuilder builder = bindings.getBuilder();
         List<Predicate> selectorPredicates = newArrayList();
         List<?> selected = selector.getSelected();
         if (selected.contains(null)) {
             selected = newArrayList(selector.getSelected());
             selected.remove(null);
-            selectorPredicates.add(builder.isNull(jpaUtil.getPath(root, selector.getAttributes())));
+            bindings.addShape("is null");
+            selectorPredicates.add(builder.isNull(jpaUtil.getPath(root, selector.getAttributes(), joins)));
         }
-        for (Object selection : selected) {
-            Path<?> path = jpaUtil.getPath(root, selector.getAttributes());
-            if (selection instanceof Identifiable) {
-                selectorPredicates.add(builder.equal(path.get("id"), ((Identifiable<?>) selection).getId()));
-            } else {
-                selectorPredicates.add(builder.equal(path, selection));
+        if (jpaUtil.isCollectionPath(selector.getAttributes())) {
+            if (!selected.isEmpty()) {
+                selectorPredicates.add(jpaUtil.allValuesPredicate(root, selector.getAttributes(), selected, sp.getXToManyAndStrategy(), bindings));
+            }
+        } else {
+            for (Object selection : selected) {
+                Path<?> path = selectedValuePath(root, joins, selector);
+                bindings.addShape(selection instanceof Identifiable ? "id" : "value");
+                if (selection instanceof Identifiable) {
+                    selectorPredicates.add(builder.equal(jpaUtil.idPath(path), bindings.bind(((Identifiable<?>) selection).getId())));
+                } else {
+                    selectorPredicates.add(builder.equal(path, bindings.bind(selection)));
+                }
             }
         }
         predicates.add(jpaUtil.andPredicate(builder, selectorPredicates));
@@ -39,31 +39,45 @@ public class ByRangeUtil {
     @Inject
     private JpaUtil jpaUtil;
 
-    public <E> Predicate byRanges(Root<E> root, CriteriaBuilder builder, SearchParameters sp, Class<E> type) {
+    public <E> Predicate byRanges(Root<E> root, final QueryBindings bindings, SearchParameters sp, Class<E> type) {
         List<Range<?, ?>> ranges = sp.getRanges();
         List<Predicate> predicates = newArrayList();
         for (Range<?, ?> r : ranges) {
-            Range<E, ?> range = (Range<E, ?>) r;
+            final Range<E, ?> range = (Range<E, ?>) r;
             if (range.isSet()) {
-                Predicate rangePredicate = buildRangePredicate(range, root, builder);
+                Predicate rangePredicate;
+                boolean useExists = jpaUtil.useExists(range.getCollectionPathStrategy(), range.getAttributes(), sp, bindings);
+                bindings.addShape(jpaUtil.toNamesList(range.getAttributes()), range.isFromSet(), range.isToSet(), range.getIncludeNull(), useExists);
+                if (useExists) {
+                    rangePredicate = jpaUtil.existsPredicate(root, bindings, new JpaUtil.CorrelatedPredicate<E>() {
+                        @Override
+                        public Predicate build(Root<E> correlatedRoot, JoinRegistry joins) {
+                            return buildRangePredicate(range, correlatedRoot, bindings, joins);
+                        }
+                    });
+                } else {
+                    rangePredicate = buildRangePredicate(range, root, bindings, jpaUtil.predicateJoins(sp, bindings));
+                }
                 if (rangePredicate != null) {
                     predicates.add(rangePredicate);
                 }
             }
         }
 
-        return jpaUtil.concatPredicate(sp, builder, predicates);
+        return jpaUtil.concatPredicate(sp, bindings.getBuilder(), predicates);
     }
 
-    private static <D extends Comparable<? super D>, E> Predicate buildRangePredicate(Range<E, D> range, Root<E> root, CriteriaBuilder builder) {
+    private static <D extends Comparable<? super D>, E> Predicate buildRangePredicate(Range<E, D> range, Root<E> root, QueryBindings bindings,
+                                                                                      JoinRegistry joins) {
+        CriteriaBuilder builder = bindings.getBuilder();
         Predicate rangePredicate = null;
-        Path<D> path = JpaUtil.getInstance().getPath(root, range.getAttributes());
+        Path<D> path = JpaUtil.getInstance().getPath(root, range.getAttributes(), joins);
         if (range.isBetween()) {
-            rangePredicate = builder.between(path, range.getFrom(), range.getTo());
+            rangePredicate = builder.between(path, bindings.bind(range.getFrom()), bindings.bind(range.getTo()));
         } else if (range.isFromSet()) {
-            rangePredicate = builder.greaterThanOrEqualTo(path, range.getFrom());
+            rangePredicate = builder.greaterThanOrEqualTo(path, bindings.bind(range.getFrom()));
         } else if (range.isToSet()) {
-            rangePredicate = builder.lessThanOrEqualTo(path, range.getTo());
+            rangePredicate = builder.lessThanOrEqualTo(path, bindings.bind(range.getTo()));
         }
 
         if (rangePredicate != null) {
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2015 JAXIO http://www.jaxio.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jaxio.jpa.querybyexample;
+
+/**
+ * How a {@link PropertySelector} or a {@link Range} whose path crosses a collection restricts the results.
+ */
+public enum CollectionPathStrategy {
+    /**
+     * Join the collection in the query. Each matching element repeats the row of the entity.
+     */
+    JOIN,
+    /**
+     * Match the elements in a correlated EXISTS subquery, so that the query keeps one row per entity. Only existing elements are matched: a null
+     * value matches an element whose property is null, not an empty collection.
+     */
+    EXISTS,
+    /**
+     * EXISTS, unless the join can be shared with an order of the search on the same collection.
+     */
+    AUTO
+}
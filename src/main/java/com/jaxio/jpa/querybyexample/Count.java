@@ -0,0 +1,84 @@
+/*
+ * Copyright 2015 JAXIO http://www.jaxio.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jaxio.jpa.querybyexample;
+
+import java.io.Serializable;
+
+/**
+ * The number of results of a search, along with how it was obtained.
+ */
+public final class Count implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final long value;
+    private final CountMode mode;
+    private final boolean more;
+
+    private Count(long value, CountMode mode, boolean more) {
+        this.value = value;
+        this.mode = mode;
+        this.more = more;
+    }
+
+    public static Count exact(long value) {
+        return new Count(value, CountMode.EXACT, false);
+    }
+
+    /*
+     * A capped count that reached its limit: there are more than <code>limit</code> results.
+     */
+    public static Count moreThan(long limit) {
+        return new Count(limit, CountMode.CAPPED, true);
+    }
+
+    public static Count estimated(long value) {
+        return new Count(value, CountMode.ESTIMATED, false);
+    }
+
+    /*
+     * The number of results; the limit when {@link #hasMore()}, an approximation when {@link #isEstimated()}.
+     */
+    public long getValue() {
+        return value;
+    }
+
+    public CountMode getMode() {
+        return mode;
+    }
+
+    /*
+     * Whether the count stopped at its limit.
+     */
+    public boolean hasMore() {
+        return more;
+    }
+
+    public boolean isEstimated() {
+        return mode == CountMode.ESTIMATED;
+    }
+
+    public boolean isExact() {
+        return !more && !isEstimated();
+    }
+
+    /*
+     * Renders the count as "1234", "1000+" or "~1234".
+     */
+    @Override
+    public String toString() {
+        return (isEstimated() ? "~" : "") + value + (more ? "+" : "");
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2015 JAXIO http://www.jaxio.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jaxio.jpa.querybyexample;
+
+import org.hibernate.Filter;
+import org.hibernate.Session;
+import org.hibernate.engine.query.spi.HQLQueryPlan;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.hql.spi.ParameterTranslations;
+import org.hibernate.hql.spi.QueryTranslator;
+import org.hibernate.jdbc.ReturningWork;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.TypedQuery;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Estimates the number of results of a query with the {@link CountEstimator} of the database. The estimator is detected from the JDBC database
+ * product name unless one is set.
+ */
+@Named
+@Singleton
+public class CountEstimateUtil {
+    private static final Logger log = LoggerFactory.getLogger(CountEstimateUtil.class);
+    private static final CountEstimator NO_ESTIMATE = new CountEstimator() {
+        @Override
+        public Long estimate(Connection connection, String sql, Object[] parameters) {
+            return null;
+        }
+    };
+
+    @PersistenceContext
+    private EntityManager entityManager;
+    private volatile CountEstimator countEstimator;
+
+    public void setCountEstimator(CountEstimator countEstimator) {
+        this.countEstimator = countEstimator;
+    }
+
+    /*
+     * Estimate the number of results of the given query, whose parameters are the given bindings. Returns null when the query cannot be translated
+     * to a single SQL query with the bound values only, or when the database gives no estimate.
+     */
+    public Long estimate(TypedQuery<?> typedQuery, QueryBindings bindings) {
+        String hql = typedQuery.unwrap(org.hibernate.Query.class).getQueryString();
+        Session session = entityManager.unwrap(Session.class);
+        HQLQueryPlan plan = ((SessionFactoryImplementor) session.getSessionFactory()).getQueryPlanCache()
+                .getHQLQueryPlan(hql, false, Collections.<String, Filter>emptyMap());
+        if (plan.getTranslators().length != 1) {
+            // polymorphic query
+            return null;
+        }
+        QueryTranslator translator = plan.getTranslators()[0];
+        final String sql = translator.getSQLString();
+        final Object[] parameters = toJdbcParameters(translator.getParameterTranslations(), bindings.getValues(), sql);
+        if (parameters == null) {
+            return null;
+        }
+        return session.doReturningWork(new ReturningWork<Long>() {
+            @Override
+            public Long execute(Connection connection) throws SQLException {
+                return getCountEstimator(connection).estimate(connection, sql, parameters);
+            }
+        });
+    }
+
+    /*
+     * Place the bound values at their position in the SQL. Returns null when a JDBC parameter is not a bound value or a value has no obvious JDBC
+     * representation.
+     */
+    private Object[] toJdbcParameters(ParameterTranslations translations, List<Object> values, String sql) {
+        Object[] parameters = new Object[countJdbcParameters(sql)];
+        boolean[] set = new boolean[parameters.length];
+        for (Object parameterName : translations.getNamedParameterNames()) {
+            String name = (String) parameterName;
+            if (!name.startsWith(QueryBindings.PARAMETER_PREFIX)) {
+                return null;
+            }
+            int index = Integer.parseInt(name.substring(QueryBindings.PARAMETER_PREFIX.length()));
+            Object value = toJdbcValue(values.get(index));
+            if (value == null) {
+                return null;
+            }
+            for (int location : translations.getNamedParameterSqlLocations(name)) {
+                parameters[location] = value;
+                set[location] = true;
+            }
+        }
+        for (boolean isSet : set) {
+            if (!isSet) {
+                return null;
+            }
+        }
+        return parameters;
+    }
+
+    private Object toJdbcValue(Object value) {
+        if (value instanceof Identifiable) {
+            return toJdbcValue(((Identifiable<?>) value).getId());
+        } else if (value instanceof Date && !(value instanceof java.sql.Date || value instanceof java.sql.Time || value instanceof Timestamp)) {
+            return new Timestamp(((Date) value).getTime());
+        } else if (value instanceof String || value instanceof Number || value instanceof Boolean || value instanceof Date) {
+            return value;
+        }
+        // enums or user types: their column representation depends on the mapping
+        return null;
+    }
+
+    private int countJdbcParameters(String sql) {
+        int count = 0;
+        boolean quoted = false;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+            } else if (c == '?' && !quoted) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private CountEstimator getCountEstimator(Connection connection) throws SQLException {
+        if (countEstimator == null) {
+            String product = connection.getMetaData().getDatabaseProductName();
+            if ("PostgreSQL".equalsIgnoreCase(product)) {
+                countEstimator = new PostgreSqlCountEstimator();
+            } else if ("MySQL".equalsIgnoreCase(product) || "MariaDB".equalsIgnoreCase(product)) {
+                countEstimator = new MySqlCountEstimator();
+            } else {
+                log.info("No count estimator for {}, estimated counts are exact", product);
+                countEstimator = NO_ESTIMATE;
+            }
+        }
+        return countEstimator;
+    }
+}
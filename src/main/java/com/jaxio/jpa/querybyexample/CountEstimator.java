@@ -0,0 +1,33 @@
+/*
+ * Copyright 2015 JAXIO http://www.jaxio.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jaxio.jpa.querybyexample;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Database specific estimation of the number of rows returned by a query, used by {@link CountMode#ESTIMATED}. Register your own implementation
+ * with {@link CountEstimateUtil#setCountEstimator(CountEstimator)} for databases that are not detected.
+ */
+public interface CountEstimator {
+
+    /*
+     * Returns the number of rows the optimizer expects the given SQL to return, null if it gives no estimate.
+     *
+     * @param parameters the values of the JDBC parameters, in order
+     */
+    Long estimate(Connection connection, String sql, Object[] parameters) throws SQLException;
+}
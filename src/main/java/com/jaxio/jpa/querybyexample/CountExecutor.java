@@ -0,0 +1,191 @@
+/*
+ * Copyright 2015 JAXIO http://www.jaxio.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jaxio.jpa.querybyexample;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnit;
+import javax.persistence.TypedQuery;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs count queries on their own {@link EntityManager}, hence on their own connection, while the page query runs in the caller thread.
+ * <p>
+ * The number of counts in flight is bounded so that they cannot exhaust the connection pool: when the bound is reached, the submission is rejected
+ * and the caller is expected to count synchronously. Counts run on virtual threads when the JVM provides them, on a fixed pool of daemon threads
+ * otherwise. Cancelling the returned future cancels the running JDBC statement.
+ */
+@Named
+@Singleton
+public class CountExecutor {
+    private static final Logger log = LoggerFactory.getLogger(CountExecutor.class);
+    public static final int DEFAULT_MAX_CONCURRENCY = 4;
+
+    /*
+     * Creates the count query on the given entity manager, which is dedicated to it.
+     */
+    public interface CountQuery {
+        TypedQuery<Long> create(EntityManager entityManager);
+    }
+
+    @PersistenceUnit
+    private EntityManagerFactory entityManagerFactory;
+    private Semaphore permits;
+    private ExecutorService executor;
+    private int timeout;
+
+    public CountExecutor() {
+        setMaxConcurrency(DEFAULT_MAX_CONCURRENCY);
+    }
+
+    /*
+     * Set the maximum number of counts running at the same time. Counts already submitted keep running on the previous executor.
+     */
+    public synchronized void setMaxConcurrency(int maxConcurrency) {
+        if (executor != null) {
+            executor.shutdown();
+        }
+        this.permits = new Semaphore(maxConcurrency);
+        this.executor = createExecutor(maxConcurrency);
+    }
+
+    /*
+     * Set the query timeout of the counts, in milliseconds. Pass 0 for no timeout.
+     */
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /*
+     * Submit the given count. The count query must be fully built by the caller: only its execution happens in the executor thread, so that the
+     * predicates depending on the caller thread (security context, locale...) are honored.
+     *
+     * @throws RejectedExecutionException when the maximum number of counts in flight is reached.
+     */
+    public synchronized Future<Long> submit(CountQuery countQuery) {
+        if (!permits.tryAcquire()) {
+            throw new RejectedExecutionException("Too many counts in flight");
+        }
+        final Semaphore acquired = permits;
+        final CountCall call = new CountCall(countQuery, acquired);
+        FutureTask<Long> task = new FutureTask<Long>(call) {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                boolean cancelled = super.cancel(mayInterruptIfRunning);
+                if (cancelled) {
+                    call.cancel();
+                }
+                return cancelled;
+            }
+        };
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            acquired.release();
+            throw e;
+        }
+        return task;
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private class CountCall implements Callable<Long> {
+        private final CountQuery countQuery;
+        private final Semaphore acquired;
+        private final AtomicBoolean started = new AtomicBoolean();
+        private volatile Session session;
+
+        CountCall(CountQuery countQuery, Semaphore acquired) {
+            this.countQuery = countQuery;
+            this.acquired = acquired;
+        }
+
+        @Override
+        public Long call() {
+            if (started.getAndSet(true)) {
+                // cancelled before it started, the permit is already released
+                throw new CancellationException();
+            }
+            EntityManager entityManager = null;
+            try {
+                entityManager = entityManagerFactory.createEntityManager();
+                session = entityManager.unwrap(Session.class);
+                session.setDefaultReadOnly(true);
+                TypedQuery<Long> typedQuery = countQuery.create(entityManager);
+                if (timeout > 0) {
+                    typedQuery.setHint("javax.persistence.query.timeout", timeout);
+                }
+                return typedQuery.getSingleResult();
+            } finally {
+                session = null;
+                if (entityManager != null) {
+                    entityManager.close();
+                }
+                acquired.release();
+            }
+        }
+
+        void cancel() {
+            if (!started.getAndSet(true)) {
+                // will never run
+                acquired.release();
+                return;
+            }
+            Session running = session;
+            if (running != null) {
+                try {
+                    running.cancelQuery();
+                } catch (HibernateException e) {
+                    log.debug("Could not cancel the count query", e);
+                }
+            }
+        }
+    }
+
+    private static ExecutorService createExecutor(int maxConcurrency) {
+        try {
+            // Java 21+
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            final AtomicInteger count = new AtomicInteger();
+            return Executors.newFixedThreadPool(maxConcurrency, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "jpa-count-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+}
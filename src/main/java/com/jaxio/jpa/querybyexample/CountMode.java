@@ -0,0 +1,34 @@
+/*
+ * Copyright 2015 JAXIO http://www.jaxio.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jaxio.jpa.querybyexample;
+
+/**
+ * How {@link GenericRepository#findCount(Identifiable, SearchParameters)} counts the results, see {@link SearchParameters#setCountMode(CountMode)}.
+ */
+public enum CountMode {
+    /**
+     * Count all the results.
+     */
+    EXACT,
+    /**
+     * Count up to the count limit of the search parameters; beyond it, the count only tells there are more results than the limit.
+     */
+    CAPPED,
+    /**
+     * Use the row estimate of the database optimizer, see {@link CountEstimator}. Falls back to an exact count when no estimate is available.
+     */
+    ESTIMATED
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2015 JAXIO http://www.jaxio.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jaxio.jpa.querybyexample;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.commons.beanutils.PropertyUtils;
+import org.hibernate.search.annotations.Field;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.SingularAttribute;
+import javax.persistence.metamodel.Type;
+import java.beans.PropertyDescriptor;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.util.List;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static javax.persistence.metamodel.Attribute.PersistentAttributeType.MANY_TO_ONE;
+import static javax.persistence.metamodel.Attribute.PersistentAttributeType.ONE_TO_ONE;
+import static org.apache.commons.lang.StringUtils.equalsIgnoreCase;
+import static org.apache.commons.lang.StringUtils.isBlank;
+
+/**
+ * Immutable metadata of an entity, computed once from its {@link EntityType} and its annotations. Obtain it from the {@link EntityDescriptorRegistry}.
+ */
+public final class EntityDescriptor {
+
+    public enum PkKind {
+        /* a single @Id attribute */
+        SIMPLE,
+        /* an @EmbeddedId attribute */
+        EMBEDDED,
+        /* several @Id attributes backed by an @IdClass */
+        ID_CLASS
+    }
+
+    private final Class<?> type;
+    private final String entityName;
+    private final PkKind pkKind;
+    private final SingularAttribute<?, ?> idAttribute;
+    private final boolean idManuallyAssigned;
+    private final GenerationType idGenerationType;
+    private final SingularAttribute<?, ?> versionAttribute;
+    private final List<SingularAttribute<?, ?>> stringAttributes;
+    private final List<SingularAttribute<?, ?>> indexedAttributes;
+    private final List<SingularAttribute<?, ?>> uniqueAttributes;
+    private final List<CompositeUnique> compositeUniques;
+
+    public EntityDescriptor(EntityType<?> entityType) {
+        this.type = entityType.getJavaType();
+        this.entityName = entityName(type);
+
+        SingularAttribute<?, ?> id = null;
+        SingularAttribute<?, ?> version = null;
+        List<SingularAttribute<?, ?>> strings = newArrayList();
+        List<SingularAttribute<?, ?>> indexed = newArrayList();
+        List<SingularAttribute<?, ?>> uniques = newArrayList();
+        for (SingularAttribute<?, ?> attribute : entityType.getSingularAttributes()) {
+            if (attribute.isId() && id == null) {
+                id = attribute;
+            }
+            if (attribute.isVersion()) {
+                version = attribute;
+            }
+            if (attribute.getJavaType() == String.class && attribute.getPersistentAttributeType() != MANY_TO_ONE
+                    && attribute.getPersistentAttributeType() != ONE_TO_ONE) {
+                strings.add(attribute);
+            }
+            if (annotation(attribute, Field.class) != null) {
+                indexed.add(attribute);
+            }
+            Column column = annotation(attribute, Column.class);
+            if (column != null && column.unique()) {
+                uniques.add(attribute);
+            }
+        }
+
+        if (!entityType.hasSingleIdAttribute()) {
+            this.pkKind = PkKind.ID_CLASS;
+            this.idAttribute = null;
+        } else {
+            this.pkKind = id != null && id.getType().getPersistenceType() == Type.PersistenceType.EMBEDDABLE ? PkKind.EMBEDDED : PkKind.SIMPLE;
+            this.idAttribute = id;
+        }
+        GeneratedValue generatedValue = pkKind == PkKind.SIMPLE && id != null ? annotation(id, GeneratedValue.class) : null;
+        this.idManuallyAssigned = generatedValue == null;
+        this.idGenerationType = generatedValue == null ? null : generatedValue.strategy();
+        this.versionAttribute = version;
+        this.stringAttributes = ImmutableList.copyOf(strings);
+        this.indexedAttributes = ImmutableList.copyOf(indexed);
+        this.uniqueAttributes = ImmutableList.copyOf(uniques);
+        this.compositeUniques = compositeUniques(entityType);
+    }
+
+    private static String entityName(Class<?> type) {
+        Entity entity = type.getAnnotation(Entity.class);
+        return entity == null || isBlank(entity.name()) ? type.getSimpleName() : entity.name();
+    }
+
+    private static List<CompositeUnique> compositeUniques(EntityType<?> entityType) {
+        Table table = entityType.getJavaType().getAnnotation(Table.class);
+        if (table == null) {
+            return ImmutableList.of();
+        }
+        ImmutableList.Builder<CompositeUnique> uniques = ImmutableList.builder();
+        for (UniqueConstraint uniqueConstraint : table.uniqueConstraints()) {
+            List<SingularAttribute<?, ?>> attributes = newArrayList();
+            for (String columnName : uniqueConstraint.columnNames()) {
+                for (SingularAttribute<?, ?> attribute : entityType.getSingularAttributes()) {
+                    Column column = annotation(attribute, Column.class);
+                    if (column != null && equalsIgnoreCase(columnName, column.name())) {
+                        attributes.add(attribute);
+                        break;
+                    }
+                }
+            }
+            uniques.add(new CompositeUnique(uniqueConstraint.name(), attributes));
+        }
+        return uniques.build();
+    }
+
+    /*
+     * Look up the annotation on the attribute member, then on its getter in case the provider uses field access.
+     */
+    private static <A extends Annotation> A annotation(Attribute<?, ?> attribute, Class<A> annotationType) {
+        Member member = attribute.getJavaMember();
+        if (member instanceof AnnotatedElement) {
+            A annotation = ((AnnotatedElement) member).getAnnotation(annotationType);
+            if (annotation != null || member instanceof Method) {
+                return annotation;
+            }
+        }
+        for (PropertyDescriptor pd : PropertyUtils.getPropertyDescriptors(attribute.getDeclaringType().getJavaType())) {
+            if (pd.getName().equals(attribute.getName()) && pd.getReadMethod() != null) {
+                return pd.getReadMethod().getAnnotation(annotationType);
+            }
+        }
+        return null;
+    }
+
+    public Class<?> getType() {
+        return type;
+    }
+
+    public String getEntityName() {
+        return entityName;
+    }
+
+    public PkKind getPkKind() {
+        return pkKind;
+    }
+
+    /*
+     * Whether the primary key is a single @Id attribute, which {@link #getIdAttribute()} then returns.
+     */
+    public boolean hasSimplePk() {
+        return pkKind == PkKind.SIMPLE;
+    }
+
+    /*
+     * The @Id or @EmbeddedId attribute, null when the entity uses an @IdClass.
+     */
+    public SingularAttribute<?, ?> getIdAttribute() {
+        return idAttribute;
+    }
+
+    /*
+     * The name of the @EmbeddedId property, null if the primary key is not embedded.
+     */
+    public String getCompositePkPropertyName() {
+        return pkKind == PkKind.EMBEDDED ? idAttribute.getName() : null;
+    }
+
+    public boolean isIdManuallyAssigned() {
+        return idManuallyAssigned;
+    }
+
+    /*
+     * The @GeneratedValue strategy, null when the id is manually assigned.
+     */
+    public GenerationType getIdGenerationType() {
+        return idGenerationType;
+    }
+
+    public SingularAttribute<?, ?> getVersionAttribute() {
+        return versionAttribute;
+    }
+
+    public List<SingularAttribute<?, ?>> getStringAttributes() {
+        return stringAttributes;
+    }
+
+    /*
+     * The attributes annotated with Hibernate Search @Field.
+     */
+    public List<SingularAttribute<?, ?>> getIndexedAttributes() {
+        return indexedAttributes;
+    }
+
+    /*
+     * The attributes mapped on a @Column(unique = true).
+     */
+    public List<SingularAttribute<?, ?>> getUniqueAttributes() {
+        return uniqueAttributes;
+    }
+
+    /*
+     * The unique constraints declared on @Table.
+     */
+    public List<CompositeUnique> getCompositeUniques() {
+        return compositeUniques;
+    }
+
+    @Override
+    public String toString() {
+        return "EntityDescriptor[" + entityName + "]";
+    }
+
+    /**
+     * A {@link UniqueConstraint} resolved to the attributes mapped on its columns.
+     */
+    public static final class CompositeUnique {
+        private final String name;
+        private final List<SingularAttribute<?, ?>> attributes;
+
+        CompositeUnique(String name, List<SingularAttribute<?, ?>> attributes) {
+            this.name = name;
+            this.attributes = ImmutableList.copyOf(attributes);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public List<SingularAttribute<?, ?>> getAttributes() {
+            return attributes;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2015 JAXIO http://www.jaxio.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jaxio.jpa.querybyexample;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.google.common.collect.Maps.newConcurrentMap;
+import static org.hibernate.proxy.HibernateProxyHelper.getClassWithoutInitializingProxy;
+
+/**
+ * Holds one {@link EntityDescriptor} per entity class, built on first use.
+ */
+@Named
+@Singleton
+public class EntityDescriptorRegistry {
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    private final ConcurrentMap<Class<?>, EntityDescriptor> descriptors = newConcurrentMap();
+
+    public EntityDescriptor get(Class<?> type) {
+        EntityDescriptor descriptor = descriptors.get(type);
+        if (descriptor == null) {
+            descriptor = new EntityDescriptor(entityManager.getMetamodel().entity(type));
+            EntityDescriptor previous = descriptors.putIfAbsent(type, descriptor);
+            if (previous != null) {
+                descriptor = previous;
+            }
+        }
+        return descriptor;
+    }
+
+    public EntityDescriptor get(Identifiable<?> entity) {
+        return get(getClassWithoutInitializingProxy(entity));
+    }
+}
@@ -15,18 +15,30 @@
  */
 package com.jaxio.jpa.querybyexample;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.persistence.EntityGraph;
+import javax.persistence.Persistence;
+import javax.persistence.metamodel.Attribute;
 import java.io.Serializable;
 import java.util.Collection;
+import java.util.List;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
 
 /**
  * The EntityGraphLoader is used to load within a single read-only transaction all the desired associations that
- * are normally lazily loaded.
+ * are normally lazily loaded. The associations declared by an entity graph or by getPrefetches are loaded with one query
+ * per level across all the entities, then loadGraph loads whatever else is needed.
  */
 public abstract class EntityGraphLoader<T extends Identifiable<PK>, PK extends Serializable> {
+    private static final Logger log = LoggerFactory.getLogger(EntityGraphLoader.class);
 
     protected GenericRepository<T, PK> repository;
+    protected String entityGraphName;
 
     // required by cglib to create a proxy around the object as we are using the @Transactional annotation
     public EntityGraphLoader() {
@@ -37,45 +49,96 @@ public abstract class EntityGraphLoader<T extends Identifiable<PK>, PK extends S
     }
 
     /*
-     * Get the entity by id and load its graph using loadGraph.
+     * Load the associations declared by the named entity graph (@NamedEntityGraph) of the entity.
+     */
+    public EntityGraphLoader(GenericRepository<T, PK> repository, String entityGraphName) {
+        this.repository = repository;
+        this.entityGraphName = entityGraphName;
+    }
+
+    /*
+     * The entity graph declaring the associations to load, null if there is none. Override to build the graph
+     * with {@link GenericRepository#createEntityGraph()}.
+     */
+    protected EntityGraph<?> getEntityGraph() {
+        return entityGraphName != null ? repository.getEntityGraph(entityGraphName) : null;
+    }
+
+    /*
+     * The association paths to load before loadGraph is called, for example the collections and x-to-one objects that loadGraph
+     * walks. Empty by default; override so that loadGraphs loads them with one query per association instead of one per entity.
+     */
+    protected List<List<Attribute<?, ?>>> getPrefetches() {
+        return emptyList();
+    }
+
+    /*
+     * Get the entity by id and load its graph using loadGraphs.
      */
     @Transactional(readOnly = true)
     public T getById(PK pk) {
         T entity = repository.getById(pk);
-        loadGraph(entity);
+        if (entity != null) {
+            loadGraphs(singletonList(entity));
+        }
         return entity;
     }
 
     /*
-     * Merge the passed entity and load the graph of the merged entity using loadGraph.
+     * Merge the passed entity and load the graph of the merged entity using loadGraphs.
      */
     @Transactional(readOnly = true)
     public T merge(T entity) {
         T mergedEntity = repository.merge(entity);
-        loadGraph(mergedEntity);
+        loadGraphs(singletonList(mergedEntity));
         return mergedEntity;
     }
 
     /*
      * Load whatever is needed in the graph of the passed entity, for example x-to-many collection, x-to-one object, etc.
+     * Called once the entity graph and the prefetches are loaded: what they declare is already there.
      */
     public abstract void loadGraph(T entity);
 
     /*
-     * Load the passed 'x-to-many' association.
+     * Load the graph of all the passed managed entities. The entity graph and the prefetches are loaded first: at each level, the
+     * associations not loaded yet are gathered across all the entities and loaded with one IN query per association, instead of one
+     * lazy load per entity. Recursive graphs are walked once. loadGraph is then called on each entity. Returns the number of queries
+     * issued for the entity graph and the prefetches.
+     */
+    @Transactional(readOnly = true)
+    public int loadGraphs(Collection<T> entities) {
+        int queryCount = 0;
+        EntityGraph<?> entityGraph = getEntityGraph();
+        if (entityGraph != null) {
+            queryCount += repository.loadGraphs(entities, entityGraph);
+        }
+        List<List<Attribute<?, ?>>> prefetches = getPrefetches();
+        if (!prefetches.isEmpty()) {
+            queryCount += repository.loadGraphs(entities, prefetches);
+        }
+        log.debug("Loaded the graph of {} entities with {} queries", entities.size(), queryCount);
+        for (T entity : entities) {
+            loadGraph(entity);
+        }
+        return queryCount;
+    }
+
+    /*
+     * Load the passed 'x-to-many' association, unless already loaded.
      */
     protected void loadCollection(Collection<?> collection) {
-        if (collection != null) {
+        if (collection != null && !Persistence.getPersistenceUtil().isLoaded(collection)) {
             collection.size();
         }
     }
 
     /*
-     * Load the passed 'x-to-one' association.
+     * Load the passed 'x-to-one' association, unless already loaded.
      */
     protected void loadSingular(Object association) {
-        if (association != null) {
+        if (association != null && !Persistence.getPersistenceUtil().isLoaded(association)) {
             association.toString();
         }
     }
-}
\ No newline at end of file
+}
@@ -15,30 +15,53 @@
  */
 package com.jaxio.jpa.querybyexample;
 
-import org.hibernate.search.annotations.Field;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Primitives;
+import org.apache.commons.beanutils.PropertyUtils;
+import org.hibernate.FlushMode;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.persister.entity.EntityPersister;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import javax.annotation.PostConstruct;
 import javax.inject.Inject;
 import javax.persistence.*;
 import javax.persistence.criteria.*;
-import javax.persistence.metamodel.Attribute;
-import javax.persistence.metamodel.EntityType;
-import javax.persistence.metamodel.PluralAttribute;
-import javax.persistence.metamodel.SingularAttribute;
+import javax.persistence.metamodel.*;
 import java.io.Serializable;
-import java.lang.reflect.Method;
-import java.util.List;
-
+import java.util.*;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.stream.Stream;
+
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newHashMap;
+import static com.google.common.collect.Sets.newHashSet;
+import static com.google.common.collect.Sets.newLinkedHashSet;
+import static java.util.Collections.unmodifiableList;
 
 /**
  * JPA 2 {@link GenericRepository} implementation
  */
 public abstract class GenericRepository<E extends Identifiable<PK>, PK extends Serializable> {
+    public static final int DEFAULT_BATCH_SIZE = 50;
+    public static final int DEFAULT_ID_CHUNK_SIZE = 500;
+
     @Inject
     protected ByExampleUtil byExampleUtil;
     @Inject
@@ -57,12 +80,34 @@ public abstract class GenericRepository<E extends Identifiable<PK>, PK extends S
     private JpaUtil jpaUtil;
     @Inject
     protected ByFullTextUtil byFullTextUtil;
+    @Inject
+    protected QueryShapeCache queryShapeCache;
+    @Inject
+    protected EntityDescriptorRegistry entityDescriptorRegistry;
+    @Inject
+    protected KeysetUtil keysetUtil;
+    @Inject
+    protected CountExecutor countExecutor;
+    @Inject
+    protected CountEstimateUtil countEstimateUtil;
+    @Inject
+    protected SearchResultCacheRegistry searchResultCacheRegistry;
+    @Inject
+    protected PlatformTransactionManager transactionManager;
+    @Inject
+    protected PrefetchUtil prefetchUtil;
     protected List<SingularAttribute<?, ?>> indexedAttributes;
     @PersistenceContext
     protected EntityManager entityManager;
     protected Class<E> type;
     protected Logger log;
     protected String cacheRegion;
+    protected boolean useQueryShapeCache = false;
+    protected int keysetThreshold = 0;
+    protected SearchResultCache searchResultCache;
+    protected int batchSize = DEFAULT_BATCH_SIZE;
+    protected int idChunkSize = DEFAULT_ID_CHUNK_SIZE;
+    protected boolean readOnlyByDefault = false;
 
     /*
      * This constructor needs the real type of the generic type E so it can be given to the {@link javax.persistence.EntityManager}.
@@ -82,6 +127,114 @@ public abstract class GenericRepository<E extends Identifiable<PK>, PK extends S
         return type;
     }
 
+    /*
+     * A new, mutable entity graph rooted at the managed type, to pass to {@link SearchParameters#fetchGraph(EntityGraph)}.
+     */
+    public EntityGraph<E> createEntityGraph() {
+        return entityManager.createEntityGraph(type);
+    }
+
+    /*
+     * The named entity graph (@NamedEntityGraph) of the persistence unit.
+     *
+     * @throws IllegalArgumentException if there is no entity graph of that name
+     */
+    public EntityGraph<?> getEntityGraph(String entityGraphName) {
+        return entityManager.getEntityGraph(entityGraphName);
+    }
+
+    /*
+     * Enable the {@link QueryShapeCache} for this repository. The searches having a mandatory predicate are only cached when
+     * {@link #getMandatoryPredicateShape} describes it.
+     */
+    public void setUseQueryShapeCache(boolean useQueryShapeCache) {
+        this.useQueryShapeCache = useQueryShapeCache;
+    }
+
+    public boolean isUseQueryShapeCache() {
+        return useQueryShapeCache;
+    }
+
+    /*
+     * Switch find to keyset pagination when the requested first result is above the given threshold. Pass 0 to disable. The threshold requires the
+     * search result cache, see {@link #enableSearchResultCache(int, long)}: each page leaves there the keyset of its last row, from which the next
+     * page seeks. A page whose anchor is not cached, or a search that cannot be cached, is read with offset pagination, in keyset order.
+     */
+    public void setKeysetThreshold(int keysetThreshold) {
+        this.keysetThreshold = keysetThreshold;
+    }
+
+    public int getKeysetThreshold() {
+        return keysetThreshold;
+    }
+
+    /*
+     * Number of entities written by the batched write methods (saveAll, persistAll, deleteAll, deleteAllById) between two flushes and clears of the
+     * persistence context. The JDBC batch size is not set per session, Hibernate 5.0 has no such setting: configure
+     * <code>hibernate.jdbc.batch_size</code> with the same value for the flushes to be sent in JDBC batches.
+     */
+    public void setBatchSize(int batchSize) {
+        checkArgument(batchSize > 0, "The batch size must be positive");
+        this.batchSize = batchSize;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /*
+     * Maximum number of ids in the IN list of the queries that load entities by id, see {@link #getByIds(Collection)}. With composite keys, the
+     * number of bound values is this size times the number of key columns.
+     */
+    public void setIdChunkSize(int idChunkSize) {
+        checkArgument(idChunkSize > 0, "The id chunk size must be positive");
+        this.idChunkSize = idChunkSize;
+    }
+
+    public int getIdChunkSize() {
+        return idChunkSize;
+    }
+
+    /*
+     * Load the results of the searches read-only, unless their search parameters say otherwise, see {@link SearchParameters#readOnly()}.
+     */
+    public void setReadOnlyByDefault(boolean readOnlyByDefault) {
+        this.readOnlyByDefault = readOnlyByDefault;
+    }
+
+    public boolean isReadOnlyByDefault() {
+        return readOnlyByDefault;
+    }
+
+    /*
+     * Cache the results of find, findCount and findProperty in this repository, see {@link SearchResultCache}. The cache is invalidated by the writes
+     * made through any repository to the entity types reachable from E. Bulk JPQL or SQL updates, changes made to managed entities without going
+     * through a repository and changes made by other applications are not seen. As with {@link #setUseQueryShapeCache(boolean)}, the searches having
+     * a mandatory predicate are only cached when {@link #getMandatoryPredicateShape} describes it.
+     *
+     * @param maxEntries the maximum number of cached searches
+     * @param maxBytes   the maximum estimated size of the cached results
+     */
+    public void enableSearchResultCache(int maxEntries, long maxBytes) {
+        disableSearchResultCache();
+        searchResultCache = new SearchResultCache(maxEntries, maxBytes, reachableEntityTypes());
+        searchResultCacheRegistry.register(searchResultCache);
+    }
+
+    public void disableSearchResultCache() {
+        if (searchResultCache != null) {
+            searchResultCacheRegistry.unregister(searchResultCache);
+            searchResultCache = null;
+        }
+    }
+
+    /*
+     * The search result cache of this repository, to read its statistics. Null when it is not enabled.
+     */
+    public SearchResultCache getSearchResultCache() {
+        return searchResultCache;
+    }
+
     /**
      * Create a new instance of the repository type.
      *
@@ -126,6 +279,203 @@ public abstract class GenericRepository<E extends Identifiable<PK>, PK extends S
         return entityFound;
     }
 
+    /*
+     * Same as {@link #getById(Serializable)}, loading the entity graph of the given search parameters along with the entity. An entity already
+     * in the persistence context is returned as is by the entity manager: the graph is then completed with one query per missing level.
+     */
+    @Transactional(readOnly = true)
+    public E getById(PK pk, SearchParameters sp) {
+        EntityGraph<?> entityGraph = getEntityGraph(sp);
+        if (pk == null || entityGraph == null) {
+            return getById(pk);
+        }
+
+        Map<String, Object> hints = newHashMap();
+        hints.put(sp.getEntityGraphHint(), entityGraph);
+        E entityFound = entityManager.find(type, pk, hints);
+        if (entityFound == null) {
+            log.warn("get returned null with id={}", pk);
+        } else {
+            loadGraphs(Collections.singletonList(entityFound), entityGraph);
+        }
+        return entityFound;
+    }
+
+    /*
+     * Load the given entity graph on all the given managed entities, with at most one query per association of the graph, see
+     * {@link PrefetchUtil#prefetch(Collection, Class, EntityGraph)}. Returns the number of queries issued.
+     */
+    @Transactional(readOnly = true)
+    public int loadGraphs(Collection<? extends E> entities, EntityGraph<?> entityGraph) {
+        return prefetchUtil.prefetch(entities, type, entityGraph);
+    }
+
+    /*
+     * Load the given association paths on all the given managed entities, with at most one query per association, see
+     * {@link PrefetchUtil#prefetch(Collection, List)}. Returns the number of queries issued.
+     */
+    @Transactional(readOnly = true)
+    public int loadGraphs(Collection<? extends E> entities, List<List<Attribute<?, ?>>> paths) {
+        return prefetchUtil.prefetch(entities, paths);
+    }
+
+    /*
+     * Same as {@link #getByIds(Collection, Collection)}, for callers that do not need to know which ids are missing.
+     */
+    @Transactional(readOnly = true)
+    public List<E> getByIds(Collection<? extends PK> pks) {
+        return getByIds(pks, null);
+    }
+
+    /**
+     * Gets from the repository the E entity instances having the given primary keys, in the order of the keys. The entities already in the persistence
+     * context or in the second level cache are served from there, the others are loaded by chunks of {@link #getIdChunkSize()} keys.
+     *
+     * @param pks the primary keys, null keys are ignored
+     * @param missingPks when not null, receives the keys for which no entity exists
+     * @return the entities found, a key given twice gives the same entity twice.
+     */
+    @Transactional(readOnly = true)
+    public List<E> getByIds(Collection<? extends PK> pks, Collection<? super PK> missingPks) {
+        checkNotNull(pks, "The primary keys cannot be null");
+        Map<PK, E> byId = newHashMap();
+        List<PK> toLoad = newArrayList();
+        Cache cache = entityManager.getEntityManagerFactory().getCache();
+        for (PK pk : newLinkedHashSet(pks)) {
+            if (pk == null) {
+                continue;
+            }
+            E entity = getManaged(pk);
+            if (entity == null && cache.contains(type, pk)) {
+                entity = entityManager.find(type, pk);
+            }
+            if (entity != null) {
+                byId.put(pk, entity);
+            } else {
+                toLoad.add(pk);
+            }
+        }
+        for (E entity : findByIds(toLoad, null)) {
+            byId.put(entity.getId(), entity);
+        }
+
+        List<E> entities = newArrayList();
+        int missing = 0;
+        for (PK pk : pks) {
+            E entity = pk == null ? null : byId.get(pk);
+            if (entity != null) {
+                entities.add(entity);
+            } else if (pk != null) {
+                missing++;
+                if (missingPks != null) {
+                    missingPks.add(pk);
+                }
+            }
+        }
+        if (missing > 0) {
+            log.debug("getByIds did not find {} of {} ids", missing, pks.size());
+        }
+        return entities;
+    }
+
+    /*
+     * Returns the entity having the given id if it is already in the persistence context, without going to the database.
+     */
+    private E getManaged(PK pk) {
+        SessionImplementor session = entityManager.unwrap(SessionImplementor.class);
+        EntityPersister persister = session.getFactory().getEntityPersister(type.getName());
+        Object entity = session.getPersistenceContext().getEntity(session.generateEntityKey(pk, persister));
+        return type.isInstance(entity) ? type.cast(entity) : null;
+    }
+
+    /*
+     * The entities of the persistence context, compared by identity.
+     */
+    private Set<Object> managedEntities() {
+        Set<Object> entities = Sets.newIdentityHashSet();
+        entities.addAll(entityManager.unwrap(SessionImplementor.class).getPersistenceContext().getEntitiesByKey().values());
+        return entities;
+    }
+
+    /*
+     * Load the entities having the given ids, by chunks of {@link #getIdChunkSize()} ids, in no particular order. The fetches and cache hints of the
+     * given search parameters are applied when it is not null.
+     */
+    protected List<E> findByIds(List<? extends PK> pks, SearchParameters sp) {
+        List<E> entities = newArrayList();
+        int componentCount = idComponents().size();
+        int chunkSize = Math.max(1, componentCount > 1 ? idChunkSize / componentCount : idChunkSize);
+        for (List<? extends PK> chunk : Lists.partition(pks, chunkSize)) {
+            QueryBindings bindings = queryBindings();
+            CriteriaBuilder builder = bindings.getBuilder();
+            CriteriaQuery<E> criteriaQuery = builder.createQuery(type);
+            Root<E> root = criteriaQuery.from(type);
+            if (sp != null) {
+                fetches(sp, root);
+            }
+            criteriaQuery.where(byIds(root, bindings, chunk));
+            TypedQuery<E> typedQuery = createQuery(null, criteriaQuery, bindings);
+            if (sp != null) {
+                applyCacheHints(typedQuery, sp);
+                applyEntityGraph(typedQuery, sp);
+                applyReadOnly(typedQuery, sp);
+            }
+            entities.addAll(typedQuery.getResultList());
+        }
+        return entities;
+    }
+
+    /*
+     * Restrict the root to the given ids: an IN list for a simple primary key, an OR of ANDs over the key columns for a composite one, as row values
+     * in IN lists are not supported by every database.
+     */
+    protected Predicate byIds(Root<E> root, QueryBindings bindings, List<? extends PK> pks) {
+        CriteriaBuilder builder = bindings.getBuilder();
+        EntityDescriptor descriptor = entityDescriptorRegistry.get(type);
+        if (descriptor.hasSimplePk()) {
+            return jpaUtil.inPredicate(bindings, root.get(descriptor.getIdAttribute().getName()), pks);
+        }
+        Path<?> idPath = descriptor.getPkKind() == EntityDescriptor.PkKind.EMBEDDED ? root.get(descriptor.getIdAttribute().getName()) : root;
+        List<Predicate> predicates = newArrayList();
+        for (PK pk : pks) {
+            List<Predicate> components = newArrayList();
+            for (SingularAttribute<?, ?> component : idComponents()) {
+                Object value = idComponentValue(pk, component);
+                Path<Object> path = idPath.get(component.getName());
+                components.add(value == null ? builder.isNull(path) : builder.equal(path, bindings.bind(value)));
+            }
+            predicates.add(builder.and(Iterables.toArray(components, Predicate.class)));
+        }
+        return builder.or(Iterables.toArray(predicates, Predicate.class));
+    }
+
+    /*
+     * The attributes making the primary key: the id itself, the attributes of the embedded id or the id attributes of an @IdClass entity.
+     */
+    private List<SingularAttribute<?, ?>> idComponents() {
+        EntityDescriptor descriptor = entityDescriptorRegistry.get(type);
+        switch (descriptor.getPkKind()) {
+            case EMBEDDED:
+                return newArrayList(entityManager.getMetamodel().embeddable(descriptor.getIdAttribute().getJavaType()).getSingularAttributes());
+            case ID_CLASS:
+                return newArrayList(entityManager.getMetamodel().entity(type).getIdClassAttributes());
+            default:
+                return Collections.<SingularAttribute<?, ?>> singletonList(descriptor.getIdAttribute());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object idComponentValue(PK pk, SingularAttribute<?, ?> component) {
+        if (entityDescriptorRegistry.get(type).getPkKind() == EntityDescriptor.PkKind.EMBEDDED) {
+            return jpaUtil.getValue(pk, (Attribute<? super PK, ?>) component);
+        }
+        try {
+            return PropertyUtils.getProperty(pk, component.getName());
+        } catch (Exception e) {
+            throw new IllegalStateException("Cannot read " + component.getName() + " from the id class " + pk.getClass().getName(), e);
+        }
+    }
+
     /**
      * Refresh the given entity with up to date data. Does nothing if the given entity is a new entity (not yet managed).
      *
@@ -177,149 +527,884 @@ public abstract class GenericRepository<E extends Identifiable<PK>, PK extends S
      */
     @Transactional(readOnly = true)
     public List<E> find(E entity, SearchParameters sp) {
+        FlushMode flushMode = beginReadOnly(sp);
+        try {
+            return detachResults(doFind(entity, sp), sp);
+        } finally {
+            endReadOnly(flushMode);
+        }
+    }
+
+    /*
+     * The search of find, once the session is set up for a read-only search.
+     */
+    protected List<E> doFind(E entity, SearchParameters sp) {
         if (sp.hasNamedQuery()) {
-            return byNamedQueryUtil.findByNamedQuery(sp);
+            return byNamedQueryUtil.findByNamedQuery(sp, isReadOnly(sp));
         }
-        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
-        CriteriaQuery<E> criteriaQuery = builder.createQuery(type);
-        if (sp.getDistinct()) {
-            criteriaQuery.distinct(true);
+        if (isKeysetPagination(sp)) {
+            List<E> entities = findKeyset(entity, sp);
+            log.debug("Returned {} elements", entities.size());
+            prefetch(entities, sp);
+            return entities;
         }
-        Root<E> root = criteriaQuery.from(type);
 
-        // predicate
-        Predicate predicate = getPredicate(criteriaQuery, root, builder, entity, sp);
-        if (predicate != null) {
-            criteriaQuery = criteriaQuery.where(predicate);
+        // the predicate is built first: the search result cache is keyed by the shape and the values it records
+        QueryBindings bindings = queryBindings();
+        CriteriaBuilder builder = bindings.getBuilder();
+        boolean twoPhase = isTwoPhasePagination(sp);
+        SearchCriteria<Tuple> idCriteria = twoPhase ? searchCriteria(builder.createTupleQuery(), bindings, entity, sp) : null;
+        SearchCriteria<Object> findCriteria = twoPhase ? null : searchCriteria(builder.createQuery(Object.class), bindings, entity, sp);
+        QueryShape resultKey = searchResultKey(QueryShape.Kind.FIND, sp, null, bindings);
+        long generation = resultKey != null ? searchResultCache.getGeneration() : 0;
+        if (resultKey != null) {
+            List<E> cached = findCachedEntities(resultKey, sp);
+            if (cached != null) {
+                prefetch(cached, sp);
+                return cached;
+            }
         }
 
-        // fetches
-        fetches(sp, root);
-
-        // order by
-        criteriaQuery.orderBy(orderByUtil.buildJpaOrders(sp.getOrders(), root, builder, sp));
-
-        TypedQuery<E> typedQuery = entityManager.createQuery(criteriaQuery);
-        applyCacheHints(typedQuery, sp);
-        jpaUtil.applyPagination(typedQuery, sp);
-        List<E> entities = typedQuery.getResultList();
+        List<E> entities = twoPhase ? findTwoPhase(idCriteria, sp) : createFindQuery(findCriteria, sp, null).getResultList();
         log.debug("Returned {} elements", entities.size());
+        prefetch(entities, sp);
 
+        if (resultKey != null) {
+            List<Object> ids = newArrayList();
+            for (E e : entities) {
+                ids.add(e.getId());
+            }
+            cacheSearchResult(resultKey, unmodifiableList(ids), generation);
+        }
         return entities;
     }
 
-    /*
-     * Find a list of E property.
+    /**
+     * Iterate over the E instances matching the search, reading them from the database as they are consumed. See {@link ResultIterator} for the
+     * way the persistence context is kept small. Must be called within a transaction, in which the iterator is consumed and closed.
      *
-     * @param propertyType type of the property
-     * @param entity       a sample entity whose non-null properties may be used as search hints
-     * @param sp           carries additional search information
-     * @param path         the path to the property
-     * @return the entities property matching the search.
+     * @param entity a sample entity whose non-null properties may be used as search hints
+     * @param sp     carries additional search information, including the fetch size and the clear interval
+     * @return an iterator over the entities matching the search.
      */
-    @Transactional(readOnly = true)
-    public <T> List<T> findProperty(Class<T> propertyType, E entity, SearchParameters sp, String path) {
-        return findProperty(propertyType, entity, sp, metamodelUtil.toAttributes(path, type));
+    @Transactional(readOnly = true, propagation = Propagation.MANDATORY)
+    public ResultIterator<E> iterate(E entity, SearchParameters sp) {
+        if (sp.hasNamedQuery()) {
+            return byNamedQueryUtil.scrollByNamedQuery(sp, isReadOnly(sp));
+        }
+        TypedQuery<E> typedQuery = createFindQuery(entity, sp);
+        if (typedQuery == null) {
+            return new ResultIterator<E>(entityManager, entityManager.createQuery(emptyQuery()), sp);
+        }
+        return new ResultIterator<E>(entityManager, typedQuery, sp);
     }
 
     /*
-     * Find a list of E property.
-     *
-     * @param propertyType type of the property
-     * @param entity       a sample entity whose non-null properties may be used as search hints
-     * @param sp           carries additional search information
-     * @param attributes   the list of attributes to the property
-     * @return the entities property matching the search.
+     * Same as iterate, as a stream. The stream must be closed, for example with a try-with-resources block.
      */
-    @Transactional(readOnly = true)
-    public <T> List<T> findProperty(Class<T> propertyType, E entity, SearchParameters sp, Attribute<?, ?>... attributes) {
-        return findProperty(propertyType, entity, sp, newArrayList(attributes));
+    @Transactional(readOnly = true, propagation = Propagation.MANDATORY)
+    public Stream<E> stream(E entity, SearchParameters sp) {
+        return iterate(entity, sp).stream();
     }
 
     /*
-     * Find a list of E property.
-     *
-     * @param propertyType type of the property
-     * @param entity       a sample entity whose non-null properties may be used as search hints
-     * @param sp           carries additional search information
-     * @param attributes   the list of attributes to the property
-     * @return the entities property matching the search.
+     * Pass each E instance matching the search to the given consumer, reading them from the database as they are consumed.
      */
     @Transactional(readOnly = true)
-    public <T> List<T> findProperty(Class<T> propertyType, E entity, SearchParameters sp, List<Attribute<?, ?>> attributes) {
-        if (sp.hasNamedQuery()) {
-            return byNamedQueryUtil.findByNamedQuery(sp);
+    public void forEach(E entity, SearchParameters sp, Consumer<? super E> consumer) {
+        ResultIterator<E> iterator = iterate(entity, sp);
+        try {
+            while (iterator.hasNext()) {
+                consumer.accept(iterator.next());
+            }
+        } finally {
+            iterator.close();
         }
+    }
+
+    private CriteriaQuery<E> emptyQuery() {
         CriteriaBuilder builder = entityManager.getCriteriaBuilder();
-        CriteriaQuery<T> criteriaQuery = builder.createQuery(propertyType);
-        if (sp.getDistinct()) {
-            criteriaQuery.distinct(true);
+        CriteriaQuery<E> criteriaQuery = builder.createQuery(type);
+        criteriaQuery.from(type);
+        return criteriaQuery.where(builder.disjunction());
+    }
+
+    /*
+     * Create the query used by find, paginated. Returns null when the query is known to return nothing.
+     */
+    protected TypedQuery<E> createFindQuery(E entity, SearchParameters sp) {
+        return createFindQuery(entity, sp, queryBindings(), null);
+    }
+
+    /*
+     * Same as createFindQuery(entity, sp), the values bound to the query are recorded in the given bindings. When the find query is built and the
+     * given list is not null, the query counting all its results is added to it, see {@link #createCountQuery(CriteriaQuery, Root, QueryBindings,
+     * SearchParameters)}.
+     */
+    protected TypedQuery<E> createFindQuery(E entity, SearchParameters sp, QueryBindings bindings, List<TypedQuery<Long>> countQueries) {
+        if (isKeysetPagination(sp)) {
+            return createKeysetQuery(entity, sp);
         }
-        Root<E> root = criteriaQuery.from(type);
-        Path<T> path = jpaUtil.getPath(root, attributes);
-        criteriaQuery.select(path);
+        return createFindQuery(searchCriteria(bindings.getBuilder().createQuery(Object.class), bindings, entity, sp), sp, countQueries);
+    }
 
-        // predicate
-        Predicate predicate = getPredicate(criteriaQuery, root, builder, entity, sp);
-        if (predicate != null) {
-            criteriaQuery = criteriaQuery.where(predicate);
+    /*
+     * Same as createFindQuery(entity, sp, bindings, countQueries), from the given criteria whose predicate is built. Without keyset pagination.
+     */
+    @SuppressWarnings("unchecked")
+    protected TypedQuery<E> createFindQuery(SearchCriteria<Object> criteria, SearchParameters sp, List<TypedQuery<Long>> countQueries) {
+        QueryBindings bindings = criteria.getBindings();
+        CriteriaQuery<Object> criteriaQuery = criteria.getCriteriaQuery();
+        Root<E> root = criteria.getRoot();
+        Predicate predicate = criteria.getPredicate();
+        QueryShape shape = queryShape(QueryShape.Kind.FIND, sp, null, bindings);
+        QueryShapeCache.CompiledQuery compiledQuery = compiledQuery(shape, bindings);
+        if (compiledQuery != null && countQueries != null && compiledQuery.getCountJpql() == null) {
+            // compiled without its count: built again, to keep the count along
+            compiledQuery = null;
         }
+        TypedQuery<E> typedQuery = null;
+        if (compiledQuery != null) {
+            typedQuery = compiledQuery.createQuery(entityManager, type, bindings.getValues());
+            if (countQueries != null) {
+                TypedQuery<Long> countQuery = createCountQuery(entityManager, compiledQuery.getCountJpql(), bindings.getValues());
+                applyCacheHints(countQuery, sp);
+                applyReadOnly(countQuery, sp);
+                countQueries.add(countQuery);
+            }
+        } else {
+            if (predicate != null) {
+                criteriaQuery.where(predicate);
+            }
 
-        // fetches
-        fetches(sp, root);
+            TypedQuery<Long> countQuery = null;
+            if (countQueries != null) {
+                countQuery = createCountQuery(criteriaQuery, root, bindings, sp);
+                countQueries.add(countQuery);
+            }
+            criteriaQuery.select(root).distinct(sp.getDistinct());
 
-        // order by
-        // we do not want to follow order by specified in search parameters
-        criteriaQuery.orderBy(builder.asc(path));
+            // fetches
+            fetches(sp, root);
 
-        TypedQuery<T> typedQuery = entityManager.createQuery(criteriaQuery);
+            // order by
+            criteriaQuery.orderBy(orderByUtil.buildJpaOrders(sp.getOrders(), root, bindings, sp));
+
+            if (countQueries != null) {
+                jpaUtil.aliasJoins(root, "qbeJoin");
+            }
+            typedQuery = (TypedQuery<E>) (TypedQuery<?>) createQuery(shape, criteriaQuery, countQuery, bindings);
+        }
         applyCacheHints(typedQuery, sp);
+        applyEntityGraph(typedQuery, sp);
+        applyReadOnly(typedQuery, sp);
         jpaUtil.applyPagination(typedQuery, sp);
-        List<T> entities = typedQuery.getResultList();
-        log.debug("Returned {} elements", entities.size());
-
-        return entities;
+        return typedQuery;
     }
 
-    /**
-     * Count the number of E instances.
-     *
-     * @param sp carries additional search information
-     * @return the number of entities matching the search.
+    /*
+     * A criteria query of the search along with its root and its predicate, which is built but not applied yet: the shape and the values of the search
+     * can be read from the bindings before the query is completed, to look the search up in the caches.
      */
-    @Transactional(readOnly = true)
-    public int findCount(SearchParameters sp) {
-        return findCount(getNew(), sp);
+    protected <T> SearchCriteria<T> searchCriteria(CriteriaQuery<T> criteriaQuery, QueryBindings bindings, E entity, SearchParameters sp) {
+        Root<E> root = criteriaQuery.from(type);
+        return new SearchCriteria<T>(criteriaQuery, root, getPredicate(criteriaQuery, root, bindings, entity, sp), bindings);
     }
 
-    /**
-     * Count the number of E instances.
-     *
-     * @param entity a sample entity whose non-null properties may be used as search hint
-     * @return the number of entities matching the search.
-     */
-    @Transactional(readOnly = true)
-    public int findCount(E entity) {
-        return findCount(entity, new SearchParameters());
-    }
+    protected final class SearchCriteria<T> {
+        private final CriteriaQuery<T> criteriaQuery;
+        private final Root<E> root;
+        private final Predicate predicate;
+        private final QueryBindings bindings;
+
+        SearchCriteria(CriteriaQuery<T> criteriaQuery, Root<E> root, Predicate predicate, QueryBindings bindings) {
+            this.criteriaQuery = criteriaQuery;
+            this.root = root;
+            this.predicate = predicate;
+            this.bindings = bindings;
+        }
 
-    /**
+        public CriteriaQuery<T> getCriteriaQuery() {
+            return criteriaQuery;
+        }
+
+        public Root<E> getRoot() {
+            return root;
+        }
+
+        /*
+         * The predicate of the search, null when there is none.
+         */
+        public Predicate getPredicate() {
+            return predicate;
+        }
+
+        public QueryBindings getBindings() {
+            return bindings;
+        }
+    }
+
+    /*
+     * Initialize the prefetched associations of the search on the given results.
+     */
+    protected void prefetch(List<E> entities, SearchParameters sp) {
+        if (sp.hasPrefetches() && !entities.isEmpty()) {
+            prefetchUtil.prefetch(entities, sp.getPrefetches());
+        }
+    }
+
+    /*
+     * Whether the search is paginated and fetches a collection, directly or through its entity graph. Hibernate would then apply the pagination in
+     * memory, after reading all the results (HHH000104), so find uses {@link #findTwoPhase} instead.
+     */
+    protected boolean isTwoPhasePagination(SearchParameters sp) {
+        if (isKeysetPagination(sp) || (sp.getFirst() <= 0 && sp.getPageSize() <= 0 && sp.getMaxResults() <= 0)) {
+            return false;
+        }
+        List<List<Attribute<?, ?>>> fetches = newArrayList(sp.getFetches());
+        EntityGraph<?> entityGraph = getEntityGraph(sp);
+        if (entityGraph != null) {
+            fetches.addAll(prefetchUtil.paths(type, entityGraph));
+        }
+        for (List<Attribute<?, ?>> fetch : fetches) {
+            for (Attribute<?, ?> attribute : fetch) {
+                if (attribute.isCollection()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Find in two queries: the ids of the requested page, paginated by the database, then the entities having these ids along with their fetches,
+     * returned in the order of the first query.
+     */
+    protected List<E> findTwoPhase(SearchCriteria<Tuple> criteria, SearchParameters sp) {
+        List<PK> ids = findPageIds(criteria, sp);
+        Map<PK, E> byId = newHashMap();
+        for (E e : findByIds(ids, sp)) {
+            byId.put(e.getId(), e);
+        }
+        List<E> entities = newArrayList();
+        for (PK id : ids) {
+            E e = byId.get(id);
+            if (e != null) {
+                entities.add(e);
+            }
+        }
+        return entities;
+    }
+
+    /*
+     * The ids of the page of results, in order. With distinct, the order expressions are selected too, as some databases require it. The entities
+     * themselves are selected when they have an @IdClass.
+     */
+    @SuppressWarnings("unchecked")
+    protected List<PK> findPageIds(SearchCriteria<Tuple> criteria, SearchParameters sp) {
+        QueryBindings bindings = criteria.getBindings();
+        CriteriaQuery<Tuple> criteriaQuery = criteria.getCriteriaQuery();
+        if (sp.getDistinct()) {
+            criteriaQuery.distinct(true);
+        }
+        Root<E> root = criteria.getRoot();
+        Predicate predicate = criteria.getPredicate();
+        if (predicate != null) {
+            criteriaQuery.where(predicate);
+        }
+        List<Order> orders = orderByUtil.buildJpaOrders(sp.getOrders(), root, bindings, sp);
+        criteriaQuery.orderBy(orders);
+
+        EntityDescriptor descriptor = entityDescriptorRegistry.get(type);
+        List<Selection<?>> selections = newArrayList();
+        selections.add(descriptor.getPkKind() == EntityDescriptor.PkKind.ID_CLASS ? root : root.get(descriptor.getIdAttribute().getName()));
+        if (sp.getDistinct()) {
+            for (Order order : orders) {
+                selections.add(order.getExpression());
+            }
+        }
+        criteriaQuery.multiselect(selections);
+
+        TypedQuery<Tuple> typedQuery = createQuery(null, criteriaQuery, bindings);
+        applyCacheHints(typedQuery, sp);
+        jpaUtil.applyPagination(typedQuery, sp);
+        List<PK> ids = newArrayList();
+        for (Tuple tuple : typedQuery.getResultList()) {
+            Object id = tuple.get(0);
+            ids.add(type.isInstance(id) ? type.cast(id).getId() : (PK) id);
+        }
+        return ids;
+    }
+
+    /**
+     * Find a page of E instances along with the total number of results, building the search predicates only once.
+     * <p>
+     * The total is not queried when the page tells it, that is when it holds fewer results than the page size. Otherwise the count query is rendered
+     * from the criteria query of the page, with the same root and predicate; when the page query comes from the {@link QueryShapeCache}, so does
+     * the count query, whose JPQL is kept along with the page query.
+     * <p>
+     * With {@link SearchParameters#concurrentCount()}, the count is submitted to the {@link CountExecutor} before the page query runs and the returned
+     * page resolves its total lazily. The count is cancelled when the page turns out to tell the total.
+     * <p>
+     * Capped and estimated {@link SearchParameters#getCountMode() count modes} are honored through {@link #findCount(Identifiable, SearchParameters)}.
+     *
+     * @param entity a sample entity whose non-null properties may be used as search hints
+     * @param sp     carries additional search information
+     * @return the entities of the requested page and the total number of entities matching the search.
+     */
+    @Transactional(readOnly = true)
+    public Page<E> findPage(E entity, SearchParameters sp) {
+        FlushMode flushMode = beginReadOnly(sp);
+        try {
+            Page<E> page = doFindPage(entity, sp);
+            detachResults(page.getContent(), sp);
+            return page;
+        } finally {
+            endReadOnly(flushMode);
+        }
+    }
+
+    /*
+     * The search of findPage, once the session is set up for a read-only search.
+     */
+    protected Page<E> doFindPage(E entity, SearchParameters sp) {
+        List<E> content;
+        TypedQuery<Long> countQuery = null;
+        if (sp.hasNamedQuery() || isKeysetPagination(sp) || isTwoPhasePagination(sp)) {
+            content = doFind(entity, sp);
+        } else {
+            QueryBindings bindings = queryBindings();
+            boolean exact = sp.getCountMode() == CountMode.EXACT;
+            List<TypedQuery<Long>> countQueries = newArrayList();
+            TypedQuery<E> typedQuery = createFindQuery(entity, sp, bindings, exact ? countQueries : null);
+            TypedQuery<Long> builtCountQuery = countQueries.isEmpty() ? null : countQueries.get(0);
+            Future<Long> pendingTotal = exact && sp.isConcurrentCount() ? submitCount(builtCountQuery, bindings, entity, sp) : null;
+            try {
+                content = typedQuery.getResultList();
+                prefetch(content, sp);
+            } catch (RuntimeException e) {
+                if (pendingTotal != null) {
+                    pendingTotal.cancel(true);
+                }
+                throw e;
+            }
+            if (pendingTotal != null) {
+                long total = knownTotal(content, sp);
+                if (total < 0) {
+                    return new Page<E>(content, sp.getFirst(), sp.getPageSize(), pendingTotal);
+                }
+                pendingTotal.cancel(true);
+                return new Page<E>(content, sp.getFirst(), sp.getPageSize(), total);
+            }
+            countQuery = builtCountQuery;
+        }
+
+        long total = knownTotal(content, sp);
+        if (total < 0) {
+            total = countQuery != null ? countQuery.getSingleResult() : findCount(entity, sp);
+        }
+        return new Page<E>(content, sp.getFirst(), sp.getPageSize(), total);
+    }
+
+    /*
+     * Returns the total number of results when the given page tells it, -1 otherwise.
+     */
+    protected long knownTotal(List<E> content, SearchParameters sp) {
+        if (sp.hasKeysetValues()) {
+            return -1;
+        }
+        int limit = sp.getPageSize() > 0 ? sp.getPageSize() : sp.getMaxResults();
+        if ((limit <= 0 || content.size() < limit) && (!content.isEmpty() || sp.getFirst() == 0)) {
+            return sp.getFirst() + content.size();
+        }
+        return -1;
+    }
+
+    /*
+     * Create the query counting the results of the given criteria query, whose predicate is set: it selects the count of the root, distinct when the
+     * search is, and is rendered right away, before the criteria query gets its selection, fetches and orders. The predicate is thus built once for
+     * both queries.
+     */
+    @SuppressWarnings("unchecked")
+    protected TypedQuery<Long> createCountQuery(CriteriaQuery<Object> criteriaQuery, Root<E> root, QueryBindings bindings, SearchParameters sp) {
+        CriteriaBuilder builder = bindings.getBuilder();
+        criteriaQuery.select(sp.getDistinct() ? builder.countDistinct(root) : builder.count(root));
+        TypedQuery<Long> countQuery = (TypedQuery<Long>) (TypedQuery<?>) createQuery(null, criteriaQuery, bindings);
+        applyCacheHints(countQuery, sp);
+        applyReadOnly(countQuery, sp);
+        return countQuery;
+    }
+
+    /*
+     * Returns the JPQL of the given count query, or null if it binds values that were not recorded by its bindings.
+     */
+    protected String countJpql(TypedQuery<Long> countQuery) {
+        org.hibernate.Query hibernateQuery = countQuery.unwrap(org.hibernate.Query.class);
+        for (String name : hibernateQuery.getNamedParameters()) {
+            if (!name.startsWith(QueryBindings.PARAMETER_PREFIX)) {
+                return null;
+            }
+        }
+        return hibernateQuery.getQueryString();
+    }
+
+    private TypedQuery<Long> createCountQuery(EntityManager entityManager, String countJpql, List<Object> values) {
+        TypedQuery<Long> countQuery = entityManager.createQuery(countJpql, Long.class);
+        List<String> names = newArrayList(countQuery.unwrap(org.hibernate.Query.class).getNamedParameters());
+        for (int i = 0; i < values.size(); i++) {
+            if (names.contains(QueryBindings.parameterName(i))) {
+                countQuery.setParameter(QueryBindings.parameterName(i), values.get(i));
+            }
+        }
+        return countQuery;
+    }
+
+    /*
+     * Submit the given count query, or the count of the search when it is null, to the {@link CountExecutor}. The count query is fully built here, in
+     * the caller thread, so that {@link #byMandatoryPredicate} sees the caller context; only its execution happens on the separate connection, from
+     * its JPQL. Returns null when the executor is saturated.
+     */
+    protected Future<Long> submitCount(TypedQuery<Long> builtCountQuery, QueryBindings bindings, E entity, final SearchParameters sp) {
+        final String countJpql = builtCountQuery != null ? countJpql(builtCountQuery) : null;
+        final List<Object> values = newArrayList(bindings.getValues());
+        final QueryBindings countBindings = queryBindings();
+        final CriteriaQuery<Long> criteriaQuery = countJpql == null ? createCountCriteriaQuery(countBindings, entity, sp) : null;
+        try {
+            return countExecutor.submit(new CountExecutor.CountQuery() {
+                @Override
+                public TypedQuery<Long> create(EntityManager countEntityManager) {
+                    TypedQuery<Long> countQuery;
+                    if (criteriaQuery == null) {
+                        countQuery = createCountQuery(countEntityManager, countJpql, values);
+                    } else {
+                        countQuery = countEntityManager.createQuery(criteriaQuery);
+                        countBindings.bind(countQuery);
+                    }
+                    applyCacheHints(countQuery, sp);
+                    applyReadOnly(countQuery, sp);
+                    return countQuery;
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.debug("Too many counts in flight, counting in the caller thread");
+            return null;
+        }
+    }
+
+    /**
+     * Find a page of E instances using keyset pagination, see {@link SearchParameters#keyset()}.
+     *
+     * @param entity a sample entity whose non-null properties may be used as search hints
+     * @param sp     carries additional search information, it is switched to keyset pagination and must have a page size
+     * @return the entities matching the search, along with the cursor of the next page. The next cursor is set when the page is full.
+     */
+    @Transactional(readOnly = true)
+    public KeysetPage<E> findKeysetPage(E entity, SearchParameters sp) {
+        checkArgument(sp.getPageSize() > 0, "Keyset pagination requires a page size");
+        sp = sp.copy().keyset();
+        List<E> content = find(entity, sp);
+        String nextCursor = content.size() == sp.getPageSize() ? keysetUtil.encodeCursor(type, content.get(content.size() - 1), sp) : null;
+        return new KeysetPage<E>(content, nextCursor);
+    }
+
+    protected boolean isKeysetPagination(SearchParameters sp) {
+        return sp.isKeyset() || (keysetThreshold > 0 && sp.getFirst() > keysetThreshold && searchResultCache != null);
+    }
+
+    /*
+     * The search of find with keyset pagination. The keyset of the last row of the page is left in the search result cache, so that the next page
+     * seeks from it.
+     */
+    protected List<E> findKeyset(E entity, SearchParameters sp) {
+        QueryBindings bindings = queryBindings();
+        SearchCriteria<E> criteria = searchCriteria(bindings.getBuilder().createQuery(type), bindings, entity, sp);
+        List<Object> anchorKeyParts = keysetAnchorKeyParts(sp, bindings);
+        long generation = anchorKeyParts != null ? searchResultCache.getGeneration() : 0;
+        TypedQuery<E> typedQuery = createKeysetQuery(criteria, anchorKeyParts, entity, sp);
+        if (typedQuery == null) {
+            return newArrayList();
+        }
+        List<E> entities = typedQuery.getResultList();
+        cacheNextKeysetAnchor(anchorKeyParts, sp, entities, generation);
+        return entities;
+    }
+
+    /*
+     * Create the keyset query of the search, see {@link #createKeysetQuery(SearchCriteria, List, Identifiable, SearchParameters)}.
+     */
+    protected TypedQuery<E> createKeysetQuery(E entity, SearchParameters sp) {
+        QueryBindings bindings = queryBindings();
+        SearchCriteria<E> criteria = searchCriteria(bindings.getBuilder().createQuery(type), bindings, entity, sp);
+        return createKeysetQuery(criteria, keysetAnchorKeyParts(sp, bindings), entity, sp);
+    }
+
+    /*
+     * Seek from the keyset values (or cursor) of the search parameters. When there are none and a first result is requested, the keyset of the row
+     * preceding it is taken from the search result cache, under the given key parts, where each page leaves the keyset of its last row. On a miss,
+     * a search switched to keyset pagination by the threshold reads the page with offset pagination, which costs no more than reading the anchor
+     * first; an explicit keyset search reads the anchor, with a query selecting only the keyset columns. Returns null if there is no such row.
+     */
+    protected TypedQuery<E> createKeysetQuery(SearchCriteria<E> criteria, List<Object> anchorKeyParts, E entity, SearchParameters sp) {
+        List<Object> keysetValues = null;
+        boolean offset = false;
+        if (sp.hasKeysetValues()) {
+            keysetValues = keysetUtil.getKeysetValues(type, sp);
+        } else if (sp.getFirst() > 0) {
+            if (sp.isKeyset()) {
+                keysetValues = findKeysetAnchor(anchorKeyParts, entity, sp, sp.getFirst());
+                if (keysetValues == null) {
+                    return null;
+                }
+            } else {
+                keysetValues = cachedKeysetAnchor(anchorKeyParts, sp.getFirst());
+                offset = keysetValues == null;
+            }
+        }
+
+        QueryBindings bindings = criteria.getBindings();
+        CriteriaBuilder builder = bindings.getBuilder();
+        CriteriaQuery<E> criteriaQuery = criteria.getCriteriaQuery();
+        if (sp.getDistinct()) {
+            criteriaQuery.distinct(true);
+        }
+        Root<E> root = criteria.getRoot();
+
+        // predicate
+        Predicate predicate = criteria.getPredicate();
+        if (keysetValues != null) {
+            predicate = jpaUtil.andPredicate(builder, predicate, keysetUtil.byKeyset(root, bindings, sp, keysetValues));
+        }
+        if (predicate != null) {
+            criteriaQuery = criteriaQuery.where(predicate);
+        }
+
+        // fetches
+        fetches(sp, root);
+
+        // order by, with the primary key as tie-breaker
+        criteriaQuery.orderBy(keysetUtil.buildJpaOrders(root, builder, sp));
+
+        TypedQuery<E> typedQuery = createQuery(null, criteriaQuery, bindings);
+        applyCacheHints(typedQuery, sp);
+        applyEntityGraph(typedQuery, sp);
+        applyReadOnly(typedQuery, sp);
+        if (offset) {
+            typedQuery.setFirstResult(sp.getFirst());
+        }
+        jpaUtil.applyMaxResults(typedQuery, sp);
+        return typedQuery;
+    }
+
+    /*
+     * Returns the keyset values of the row located just before the given position, from the search result cache when it holds them under the given
+     * key parts. Returns null if there is no such row.
+     */
+    protected List<Object> findKeysetAnchor(List<Object> anchorKeyParts, E entity, SearchParameters sp, int position) {
+        QueryShape anchorKey = keysetAnchorKey(anchorKeyParts, position);
+        long generation = anchorKey != null ? searchResultCache.getGeneration() : 0;
+        List<Object> cached = cachedKeysetAnchor(anchorKeyParts, position);
+        if (cached != null) {
+            return cached;
+        }
+        List<Object> keysetValues = findKeysetValuesBefore(entity, sp, position);
+        if (anchorKey != null && keysetValues != null) {
+            cacheSearchResult(anchorKey, unmodifiableList(keysetValues), generation);
+        }
+        return keysetValues;
+    }
+
+    /*
+     * Returns the keyset values of the row located just before the given position when the search result cache holds them under the given key parts,
+     * null otherwise.
+     */
+    @SuppressWarnings("unchecked")
+    protected List<Object> cachedKeysetAnchor(List<Object> anchorKeyParts, int position) {
+        QueryShape anchorKey = keysetAnchorKey(anchorKeyParts, position);
+        return anchorKey != null ? (List<Object>) searchResultCache.get(anchorKey) : null;
+    }
+
+    /*
+     * Leave the keyset of the last row of a keyset page read from a position in the search result cache, so that the next page seeks from it
+     * instead of reading the rows before it again.
+     */
+    protected void cacheNextKeysetAnchor(List<Object> anchorKeyParts, SearchParameters sp, List<E> entities, long generation) {
+        if (entities.isEmpty()) {
+            return;
+        }
+        QueryShape anchorKey = keysetAnchorKey(anchorKeyParts, sp.getFirst() + entities.size());
+        if (anchorKey != null) {
+            cacheSearchResult(anchorKey, unmodifiableList(keysetUtil.keysetValues(type, entities.get(entities.size() - 1), sp)), generation);
+        }
+    }
+
+    /*
+     * Returns the keyset values of the row located just before the given position, null if there is no such row.
+     */
+    protected List<Object> findKeysetValuesBefore(E entity, SearchParameters sp, int position) {
+        QueryBindings bindings = queryBindings();
+        CriteriaBuilder builder = bindings.getBuilder();
+        CriteriaQuery<Tuple> criteriaQuery = builder.createTupleQuery();
+        Root<E> root = criteriaQuery.from(type);
+        criteriaQuery.multiselect(Lists.<Selection<?>>newArrayList(keysetUtil.keysetPaths(root, sp)));
+
+        // predicate
+        Predicate predicate = getPredicate(criteriaQuery, root, bindings, entity, sp);
+        if (predicate != null) {
+            criteriaQuery = criteriaQuery.where(predicate);
+        }
+        criteriaQuery.orderBy(keysetUtil.buildJpaOrders(root, builder, sp));
+
+        TypedQuery<Tuple> typedQuery = createQuery(null, criteriaQuery, bindings);
+        applyCacheHints(typedQuery, sp);
+        typedQuery.setFirstResult(position - 1);
+        typedQuery.setMaxResults(1);
+        List<Tuple> rows = typedQuery.getResultList();
+        if (rows.isEmpty()) {
+            return null;
+        }
+        return newArrayList(rows.get(0).toArray());
+    }
+
+    /*
+     * Find a list of E property.
+     *
+     * @param propertyType type of the property
+     * @param entity       a sample entity whose non-null properties may be used as search hints
+     * @param sp           carries additional search information
+     * @param path         the path to the property
+     * @return the entities property matching the search.
+     */
+    @Transactional(readOnly = true)
+    public <T> List<T> findProperty(Class<T> propertyType, E entity, SearchParameters sp, String path) {
+        return findProperty(propertyType, entity, sp, metamodelUtil.toAttributes(path, type));
+    }
+
+    /*
+     * Find a list of E property.
+     *
+     * @param propertyType type of the property
+     * @param entity       a sample entity whose non-null properties may be used as search hints
+     * @param sp           carries additional search information
+     * @param attributes   the list of attributes to the property
+     * @return the entities property matching the search.
+     */
+    @Transactional(readOnly = true)
+    public <T> List<T> findProperty(Class<T> propertyType, E entity, SearchParameters sp, Attribute<?, ?>... attributes) {
+        return findProperty(propertyType, entity, sp, newArrayList(attributes));
+    }
+
+    /*
+     * Find a list of E property.
+     *
+     * @param propertyType type of the property
+     * @param entity       a sample entity whose non-null properties may be used as search hints
+     * @param sp           carries additional search information
+     * @param attributes   the list of attributes to the property
+     * @return the entities property matching the search.
+     */
+    @Transactional(readOnly = true)
+    public <T> List<T> findProperty(Class<T> propertyType, E entity, SearchParameters sp, List<Attribute<?, ?>> attributes) {
+        if (sp.hasNamedQuery()) {
+            return byNamedQueryUtil.findByNamedQuery(sp, isReadOnly(sp));
+        }
+        QueryBindings bindings = queryBindings();
+        CriteriaBuilder builder = bindings.getBuilder();
+        CriteriaQuery<T> criteriaQuery = builder.createQuery(propertyType);
+        if (sp.getDistinct()) {
+            criteriaQuery.distinct(true);
+        }
+        Root<E> root = criteriaQuery.from(type);
+        Path<T> path = jpaUtil.getPath(root, attributes);
+        criteriaQuery.select(path);
+
+        // predicate
+        Predicate predicate = getPredicate(criteriaQuery, root, bindings, entity, sp);
+        QueryShape resultKey = searchResultKey(QueryShape.Kind.FIND_PROPERTY, sp, attributes, bindings);
+        long generation = resultKey != null ? searchResultCache.getGeneration() : 0;
+        if (resultKey != null) {
+            @SuppressWarnings("unchecked")
+            List<T> cached = (List<T>) searchResultCache.get(resultKey);
+            if (cached != null) {
+                return newArrayList(cached);
+            }
+        }
+        QueryShape shape = queryShape(QueryShape.Kind.FIND_PROPERTY, sp, attributes, bindings);
+        TypedQuery<T> typedQuery = compiledQuery(shape, bindings, propertyType);
+        if (typedQuery == null) {
+            if (predicate != null) {
+                criteriaQuery = criteriaQuery.where(predicate);
+            }
+
+            // fetches
+            fetches(sp, root);
+
+            // order by
+            // we do not want to follow order by specified in search parameters
+            criteriaQuery.orderBy(builder.asc(path));
+
+            typedQuery = createQuery(shape, criteriaQuery, bindings);
+        }
+        applyCacheHints(typedQuery, sp);
+        applyReadOnly(typedQuery, sp);
+        jpaUtil.applyPagination(typedQuery, sp);
+        List<T> entities = typedQuery.getResultList();
+        log.debug("Returned {} elements", entities.size());
+
+        if (resultKey != null && isBasic(entities)) {
+            cacheSearchResult(resultKey, unmodifiableList(newArrayList(entities)), generation);
+        }
+        return entities;
+    }
+
+    /**
+     * Count the number of E instances.
+     *
+     * @param sp carries additional search information
+     * @return the number of entities matching the search.
+     */
+    @Transactional(readOnly = true)
+    public long findCount(SearchParameters sp) {
+        return findCount(getNew(), sp);
+    }
+
+    /**
      * Count the number of E instances.
      *
      * @param entity a sample entity whose non-null properties may be used as search hint
-     * @param sp     carries additional search information
      * @return the number of entities matching the search.
      */
     @Transactional(readOnly = true)
-    public int findCount(E entity, SearchParameters sp) {
+    public long findCount(E entity) {
+        return findCount(entity, new SearchParameters());
+    }
+
+    /**
+     * Count the number of E instances, according to the {@link SearchParameters#getCountMode() count mode}.
+     *
+     * @param entity a sample entity whose non-null properties may be used as search hint
+     * @param sp     carries additional search information
+     * @return the number of entities matching the search; in capped mode, the count limit when there are more.
+     */
+    @Transactional(readOnly = true)
+    public long findCount(E entity, SearchParameters sp) {
+        return count(entity, sp).getValue();
+    }
+
+    /**
+     * Count the number of E instances, according to the {@link SearchParameters#getCountMode() count mode}.
+     *
+     * @param entity a sample entity whose non-null properties may be used as search hint
+     * @param sp     carries additional search information
+     * @return the number of entities matching the search, telling whether it is capped or estimated.
+     */
+    @Transactional(readOnly = true)
+    public Count count(E entity, SearchParameters sp) {
         checkNotNull(entity, "The entity cannot be null");
         checkNotNull(sp, "The searchParameters cannot be null");
 
         if (sp.hasNamedQuery()) {
-            return byNamedQueryUtil.numberByNamedQuery(sp).intValue();
+            return Count.exact(byNamedQueryUtil.numberByNamedQuery(sp, isReadOnly(sp)).longValue());
         }
-        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
 
+        // the query of the count mode is built first: the search result cache is keyed by the shape and the values it records
+        QueryBindings bindings = queryBindings();
+        boolean exact = sp.getCountMode() == CountMode.EXACT;
+        CriteriaQuery<Long> countQuery = exact ? createCountCriteriaQuery(bindings, entity, sp) : null;
+        CriteriaQuery<Object> rowQuery = exact ? null : createRowCriteriaQuery(bindings, entity, sp);
+        QueryShape resultKey = searchResultKey(QueryShape.Kind.COUNT, sp, null, bindings);
+        long generation = resultKey != null ? searchResultCache.getGeneration() : 0;
+        if (resultKey != null) {
+            Count cached = (Count) searchResultCache.get(resultKey);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        Count count;
+        switch (sp.getCountMode()) {
+            case CAPPED:
+                count = countUpTo(rowQuery, bindings, sp);
+                break;
+            case ESTIMATED:
+                Long estimate = estimateCount(rowQuery, bindings);
+                count = estimate != null ? Count.estimated(estimate) : Count.exact(exactCount(entity, sp));
+                break;
+            default:
+                count = Count.exact(exactCount(countQuery, bindings, sp));
+        }
+        if (resultKey != null) {
+            cacheSearchResult(resultKey, count, generation);
+        }
+        return count;
+    }
+
+    protected long exactCount(E entity, SearchParameters sp) {
+        QueryBindings bindings = queryBindings();
+        return exactCount(createCountCriteriaQuery(bindings, entity, sp), bindings, sp);
+    }
+
+    protected long exactCount(CriteriaQuery<Long> criteriaQuery, QueryBindings bindings, SearchParameters sp) {
+        QueryShape shape = queryShape(QueryShape.Kind.COUNT, sp, null, bindings);
+        TypedQuery<Long> typedQuery = compiledQuery(shape, bindings, Long.class);
+        if (typedQuery == null) {
+            typedQuery = createQuery(shape, criteriaQuery, bindings);
+        }
+
+        applyCacheHints(typedQuery, sp);
+        applyReadOnly(typedQuery, sp);
+        return typedQuery.getSingleResult();
+    }
+
+    /*
+     * Read at most count limit + 1 rows of the given query, see {@link #createRowCriteriaQuery}: the database stops as soon as the limit is
+     * exceeded. JPQL has no subquery in the from clause, so the rows are counted here rather than with a count over a limited subquery.
+     */
+    protected Count countUpTo(CriteriaQuery<Object> rowQuery, QueryBindings bindings, SearchParameters sp) {
+        TypedQuery<Object> typedQuery = createQuery(null, rowQuery, bindings);
+        applyCacheHints(typedQuery, sp);
+        applyReadOnly(typedQuery, sp);
+        typedQuery.setMaxResults(sp.getCountLimit() + 1);
+        int count = typedQuery.getResultList().size();
+        return count > sp.getCountLimit() ? Count.moreThan(sp.getCountLimit()) : Count.exact(count);
+    }
+
+    /*
+     * Returns the row estimate of the database for the search, null when there is none.
+     */
+    protected Long estimateCount(CriteriaQuery<Object> rowQuery, QueryBindings bindings) {
+        TypedQuery<Object> typedQuery = createQuery(null, rowQuery, bindings);
+        return countEstimateUtil.estimate(typedQuery, bindings);
+    }
+
+    /*
+     * Select one row per entity matching the search: a constant, so that the database reads no column beyond those of the predicate and may answer
+     * from an index alone. A distinct search tells its rows apart by the ids instead, or by the entities themselves when the id spans several
+     * attributes.
+     */
+    protected CriteriaQuery<Object> createRowCriteriaQuery(QueryBindings bindings, E entity, SearchParameters sp) {
+        CriteriaBuilder builder = bindings.getBuilder();
+        CriteriaQuery<Object> criteriaQuery = builder.createQuery(Object.class);
+        Root<E> root = criteriaQuery.from(type);
+        if (sp.getDistinct()) {
+            SingularAttribute<?, ?> idAttribute = entityDescriptorRegistry.get(type).getIdAttribute();
+            criteriaQuery.select(idAttribute != null ? root.get(idAttribute.getName()) : root).distinct(true);
+        } else {
+            criteriaQuery.select(builder.literal(1));
+        }
+
+        // predicate
+        Predicate predicate = getPredicate(criteriaQuery, root, bindings, entity, sp);
+        if (predicate != null) {
+            criteriaQuery = criteriaQuery.where(predicate);
+        }
+
+        // construct order by to fetch or joins if needed
+        orderByUtil.buildJpaOrders(sp.getOrders(), root, bindings, sp);
+        return criteriaQuery;
+    }
+
+    protected CriteriaQuery<Long> createCountCriteriaQuery(QueryBindings bindings, E entity, SearchParameters sp) {
+        CriteriaBuilder builder = bindings.getBuilder();
         CriteriaQuery<Long> criteriaQuery = builder.createQuery(Long.class);
         Root<E> root = criteriaQuery.from(type);
 
@@ -330,18 +1415,14 @@ public abstract class GenericRepository<E extends Identifiable<PK>, PK extends S
         }
 
         // predicate
-        Predicate predicate = getPredicate(criteriaQuery, root, builder, entity, sp);
+        Predicate predicate = getPredicate(criteriaQuery, root, bindings, entity, sp);
         if (predicate != null) {
             criteriaQuery = criteriaQuery.where(predicate);
         }
 
         // construct order by to fetch or joins if needed
-        orderByUtil.buildJpaOrders(sp.getOrders(), root, builder, sp);
-
-        TypedQuery<Long> typedQuery = entityManager.createQuery(criteriaQuery);
-
-        applyCacheHints(typedQuery, sp);
-        return typedQuery.getSingleResult().intValue();
+        orderByUtil.buildJpaOrders(sp.getOrders(), root, bindings, sp);
+        return criteriaQuery;
     }
 
     /**
@@ -353,7 +1434,7 @@ public abstract class GenericRepository<E extends Identifiable<PK>, PK extends S
      * @return the number of entities matching the search.
      */
     @Transactional(readOnly = true)
-    public int findPropertyCount(E entity, SearchParameters sp, String path) {
+    public long findPropertyCount(E entity, SearchParameters sp, String path) {
         return findPropertyCount(entity, sp, metamodelUtil.toAttributes(path, type));
     }
 
@@ -366,7 +1447,7 @@ public abstract class GenericRepository<E extends Identifiable<PK>, PK extends S
      * @return the number of entities matching the search.
      */
     @Transactional(readOnly = true)
-    public int findPropertyCount(E entity, SearchParameters sp, Attribute<?, ?>... attributes) {
+    public long findPropertyCount(E entity, SearchParameters sp, Attribute<?, ?>... attributes) {
         return findPropertyCount(entity, sp, newArrayList(attributes));
     }
 
@@ -379,11 +1460,12 @@ public abstract class GenericRepository<E extends Identifiable<PK>, PK extends S
      * @return the number of entities matching the search.
      */
     @Transactional(readOnly = true)
-    public int findPropertyCount(E entity, SearchParameters sp, List<Attribute<?, ?>> attributes) {
+    public long findPropertyCount(E entity, SearchParameters sp, List<Attribute<?, ?>> attributes) {
         if (sp.hasNamedQuery()) {
-            return byNamedQueryUtil.numberByNamedQuery(sp).intValue();
+            return byNamedQueryUtil.numberByNamedQuery(sp, isReadOnly(sp)).longValue();
         }
-        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        QueryBindings bindings = queryBindings();
+        CriteriaBuilder builder = bindings.getBuilder();
         CriteriaQuery<Long> criteriaQuery = builder.createQuery(Long.class);
         Root<E> root = criteriaQuery.from(type);
         Path<?> path = jpaUtil.getPath(root, attributes);
@@ -395,18 +1477,23 @@ public abstract class GenericRepository<E extends Identifiable<PK>, PK extends S
         }
 
         // predicate
-        Predicate predicate = getPredicate(criteriaQuery, root, builder, entity, sp);
-        if (predicate != null) {
-            criteriaQuery = criteriaQuery.where(predicate);
-        }
+        Predicate predicate = getPredicate(criteriaQuery, root, bindings, entity, sp);
+        QueryShape shape = queryShape(QueryShape.Kind.COUNT_PROPERTY, sp, attributes, bindings);
+        TypedQuery<Long> typedQuery = compiledQuery(shape, bindings, Long.class);
+        if (typedQuery == null) {
+            if (predicate != null) {
+                criteriaQuery = criteriaQuery.where(predicate);
+            }
 
-        // construct order by to fetch or joins if needed
-        orderByUtil.buildJpaOrders(sp.getOrders(), root, builder, sp);
+            // construct order by to fetch or joins if needed
+            orderByUtil.buildJpaOrders(sp.getOrders(), root, bindings, sp);
 
-        TypedQuery<Long> typedQuery = entityManager.createQuery(criteriaQuery);
+            typedQuery = createQuery(shape, criteriaQuery, bindings);
+        }
 
         applyCacheHints(typedQuery, sp);
-        return typedQuery.getSingleResult().intValue();
+        applyReadOnly(typedQuery, sp);
+        return typedQuery.getSingleResult();
     }
 
     @Transactional(readOnly = true)
@@ -479,119 +1566,528 @@ public abstract class GenericRepository<E extends Identifiable<PK>, PK extends S
         }
     }
 
-    protected <R> Predicate getPredicate(CriteriaQuery<?> criteriaQuery, Root<E> root, CriteriaBuilder builder, E entity, SearchParameters sp) {
-        return jpaUtil.andPredicate(builder, // 
-                bySearchPredicate(root, builder, entity, sp), //
-                byMandatoryPredicate(criteriaQuery, root, builder, entity, sp));
+    /*
+     * The predicate of the search on the given root. The query is set on the bindings, so that the predicates may create their subqueries from it.
+     */
+    protected <R> Predicate getPredicate(CriteriaQuery<?> criteriaQuery, Root<E> root, QueryBindings bindings, E entity, SearchParameters sp) {
+        return getPredicate(criteriaQuery, criteriaQuery, root, bindings, entity, sp);
+    }
+
+    /*
+     * Same as getPredicate(criteriaQuery, root, bindings, entity, sp), the subqueries being created from the given query, which may be a bulk
+     * statement. {@link #byMandatoryPredicate} is still given the criteria query, as its signature requires one.
+     */
+    protected Predicate getPredicate(CommonAbstractCriteria query, CriteriaQuery<?> criteriaQuery, Root<E> root, QueryBindings bindings, E entity,
+                                     SearchParameters sp) {
+        bindings.setQuery(query);
+        Predicate searchPredicate = bySearchPredicate(root, bindings, entity, sp);
+        Predicate mandatoryPredicate = byMandatoryPredicate(criteriaQuery, root, bindings, entity, sp);
+        if (mandatoryPredicate != null) {
+            Object mandatoryPredicateShape = getMandatoryPredicateShape(entity, sp);
+            if (mandatoryPredicateShape == null) {
+                // it may render values of the caller context (tenant, user...) as literals, the query is then not cached
+                bindings.setUnrecordedValues(true);
+            } else {
+                bindings.addShape("mandatory", mandatoryPredicateShape);
+            }
+        }
+        return jpaUtil.andPredicate(bindings.getBuilder(), searchPredicate, mandatoryPredicate);
+    }
+
+    protected <R> Predicate bySearchPredicate(Root<E> root, QueryBindings bindings, E entity, SearchParameters sp) {
+        return jpaUtil.concatPredicate(sp, bindings.getBuilder(), //
+                byFullText(root, bindings, sp, entity, indexedAttributes), //
+                byRanges(root, bindings, sp, type), //
+                byPropertySelectors(root, bindings, sp), //
+                byExample(root, bindings, sp, entity), //
+                byPattern(root, bindings, sp, type));
+    }
+
+    protected <T extends Identifiable<?>> Predicate byFullText(Root<T> root, QueryBindings bindings, SearchParameters sp, T entity,
+                                                               List<SingularAttribute<?, ?>> indexedAttributes) {
+        return byFullTextUtil.byFullText(root, bindings, sp, entity, indexedAttributes);
+    }
+
+    protected Predicate byExample(Root<E> root, QueryBindings bindings, SearchParameters sp, E entity) {
+        return byExampleUtil.byExampleOnEntity(root, entity, bindings, sp);
+    }
+
+    protected Predicate byPropertySelectors(Root<E> root, QueryBindings bindings, SearchParameters sp) {
+        return byPropertySelectorUtil.byPropertySelectors(root, bindings, sp);
+    }
+
+    protected Predicate byRanges(Root<E> root, QueryBindings bindings, SearchParameters sp, Class<E> type) {
+        return byRangeUtil.byRanges(root, bindings, sp, type);
+    }
+
+    protected Predicate byPattern(Root<E> root, QueryBindings bindings, SearchParameters sp, Class<E> type) {
+        return byPatternUtil.byPattern(root, bindings, sp, type);
+    }
+
+    /*
+     * You may override this method to add a Predicate to the default find method.
+     */
+    protected <R> Predicate byMandatoryPredicate(CriteriaQuery<?> criteriaQuery, Root<E> root, CriteriaBuilder builder, E entity, SearchParameters sp) {
+        return null;
+    }
+
+    /*
+     * Same as the method above, which it calls by default. Override this one instead to pass the values of the predicate through
+     * {@link QueryBindings#bind(Object)}: the values given directly to the builder are rendered as literals, numbers being written in the JPQL itself.
+     */
+    protected <R> Predicate byMandatoryPredicate(CriteriaQuery<?> criteriaQuery, Root<E> root, QueryBindings bindings, E entity, SearchParameters sp) {
+        return byMandatoryPredicate(criteriaQuery, root, bindings.getBuilder(), entity, sp);
+    }
+
+    /*
+     * Override this method along with {@link #byMandatoryPredicate} for the searches it restricts to be cached by the {@link QueryShapeCache} and the
+     * {@link SearchResultCache}: as long as it returns null, a search having a mandatory predicate is never cached, since the predicate may depend on
+     * the context (tenant, user roles...). The returned value must describe the predicate structure, not the values it binds through its
+     * {@link QueryBindings}; the values it gives directly to the builder are part of that structure.
+     */
+    protected Object getMandatoryPredicateShape(E entity, SearchParameters sp) {
+        return null;
+    }
+
+    /**
+     * Save or update the given entity E to the repository. Assume that the entity is already present in the persistence context. No merge is done.
+     *
+     * @param entity the entity to be saved or updated.
+     */
+    @Transactional
+    public void save(E entity) {
+        checkNotNull(entity, "The entity to save cannot be null");
+        searchResultCacheRegistry.invalidate(type);
+
+        // creation with auto generated id
+        if (!entity.isIdSet()) {
+            entityManager.persist(entity);
+            return;
+        }
+
+        // creation with manually assigned key
+        if (jpaUtil.isEntityIdManuallyAssigned(type) && !entityManager.contains(entity)) {
+            entityManager.persist(entity);
+            return;
+        }
+        // other cases are update
+        // the simple fact to invoke this method, from a service method annotated with @Transactional,
+        // does the job (assuming the give entity is present in the persistence context)
+    }
+
+    /*
+     * Persist the given entity.
+     */
+    @Transactional
+    public void persist(E entity) {
+        searchResultCacheRegistry.invalidate(type);
+        entityManager.persist(entity);
+    }
+
+    /*
+     * Merge the state of the given entity into the current persistence context.
+     */
+    @Transactional
+    public E merge(E entity) {
+        searchResultCacheRegistry.invalidate(type);
+        return entityManager.merge(entity);
+    }
+
+    /*
+     * Delete the given entity E from the repository.
+     *
+     * @param entity the entity to be deleted.
+     */
+    @Transactional
+    public void delete(E entity) {
+        searchResultCacheRegistry.invalidate(type);
+        if (entityManager.contains(entity)) {
+            entityManager.remove(entity);
+        } else {
+            // could be a delete on a transient instance
+            E entityRef = entityManager.getReference(type, entity.getId());
+
+            if (entityRef != null) {
+                entityManager.remove(entityRef);
+            } else {
+                log.warn("Attempt to delete an instance that is not present in the database: {}", entity);
+            }
+        }
+    }
+
+    /**
+     * Save or update the given entities, as {@link #save(Identifiable)} does, in a single transaction. The persistence context is flushed and cleared
+     * every {@link #getBatchSize() batch size} entities: once the call returns, the given entities, and any other entity previously managed, are
+     * detached.
+     *
+     * @param entities the entities to be saved or updated.
+     * @param progress notified of the number of entities processed so far after each batch, may be null.
+     */
+    @Transactional
+    public void saveAll(Iterable<? extends E> entities, IntConsumer progress) {
+        checkNotNull(entities, "The entities to save cannot be null");
+        searchResultCacheRegistry.invalidate(type);
+        boolean idManuallyAssigned = jpaUtil.isEntityIdManuallyAssigned(type);
+        // the batches clear the persistence context: whether an entity is new or managed is decided against the context of the call
+        Set<Object> managedAtStart = managedEntities();
+        BatchWindow window = new BatchWindow(progress);
+        for (E entity : entities) {
+            checkNotNull(entity, "The entity to save cannot be null");
+            if (managedAtStart.contains(entity)) {
+                if (!entityManager.contains(entity)) {
+                    // detached by an earlier batch, merged so that its changes are not lost
+                    entityManager.merge(entity);
+                }
+            } else if (!entity.isIdSet() || (idManuallyAssigned && !entityManager.contains(entity))) {
+                entityManager.persist(entity);
+            }
+            window.written(1);
+        }
+        window.finish();
+    }
+
+    @Transactional
+    public void saveAll(Iterable<? extends E> entities) {
+        saveAll(entities, null);
+    }
+
+    /**
+     * Persist the given entities in a single transaction, flushing and clearing the persistence context every {@link #getBatchSize() batch size}
+     * entities.
+     *
+     * @param entities the entities to be persisted.
+     * @param progress notified of the number of entities processed so far after each batch, may be null.
+     */
+    @Transactional
+    public void persistAll(Iterable<? extends E> entities, IntConsumer progress) {
+        checkNotNull(entities, "The entities to persist cannot be null");
+        searchResultCacheRegistry.invalidate(type);
+        BatchWindow window = new BatchWindow(progress);
+        for (E entity : entities) {
+            entityManager.persist(entity);
+            window.written(1);
+        }
+        window.finish();
+    }
+
+    @Transactional
+    public void persistAll(Iterable<? extends E> entities) {
+        persistAll(entities, null);
+    }
+
+    /**
+     * Delete the given entities, as {@link #delete(Identifiable)} does, in a single transaction, flushing and clearing the persistence context every
+     * {@link #getBatchSize() batch size} entities. Cascades and entity callbacks apply; use {@link #deleteAllById(Iterable, IntConsumer)} to delete
+     * with bulk statements instead.
+     *
+     * @param entities the entities to be deleted.
+     * @param progress notified of the number of entities processed so far after each batch, may be null.
+     */
+    @Transactional
+    public void deleteAll(Iterable<? extends E> entities, IntConsumer progress) {
+        checkNotNull(entities, "The entities to delete cannot be null");
+        searchResultCacheRegistry.invalidate(type);
+        BatchWindow window = new BatchWindow(progress);
+        for (E entity : entities) {
+            entityManager.remove(entityManager.contains(entity) ? entity : entityManager.getReference(type, entity.getId()));
+            window.written(1);
+        }
+        window.finish();
+    }
+
+    @Transactional
+    public void deleteAll(Iterable<? extends E> entities) {
+        deleteAll(entities, null);
     }
 
-    protected <R> Predicate bySearchPredicate(Root<E> root, CriteriaBuilder builder, E entity, SearchParameters sp) {
-        return jpaUtil.concatPredicate(sp, builder, //
-                byFullText(root, builder, sp, entity, indexedAttributes), //
-                byRanges(root, builder, sp, type), //
-                byPropertySelectors(root, builder, sp), //
-                byExample(root, builder, sp, entity), //
-                byPattern(root, builder, sp, type));
-    }
+    /**
+     * Delete the entities having the given ids with one bulk delete statement per {@link #getBatchSize() batch size} ids. The entities are not loaded:
+     * cascades, orphan removal and entity callbacks do not apply. The deleted entities are evicted from the second level cache and the persistence
+     * context is cleared after each statement.
+     *
+     * @param ids      the ids of the entities to be deleted.
+     * @param progress notified of the number of ids processed so far after each batch, may be null.
+     * @return the number of deleted entities.
+     */
+    @Transactional
+    public int deleteAllById(Iterable<? extends PK> ids, IntConsumer progress) {
+        checkNotNull(ids, "The ids cannot be null");
+        searchResultCacheRegistry.invalidate(type);
+        EntityDescriptor descriptor = entityDescriptorRegistry.get(type);
+        BatchWindow window = new BatchWindow(progress);
+        int deleted = 0;
+        if (!descriptor.hasSimplePk()) {
+            // no portable IN on composite keys
+            for (PK id : ids) {
+                entityManager.remove(entityManager.getReference(type, id));
+                deleted++;
+                window.written(1);
+            }
+            window.finish();
+            return deleted;
+        }
 
-    protected <T extends Identifiable<?>> Predicate byFullText(Root<T> root, CriteriaBuilder builder, SearchParameters sp, T entity,
-                                                               List<SingularAttribute<?, ?>> indexedAttributes) {
-        return byFullTextUtil.byFullText(root, builder, sp, entity, indexedAttributes);
+        // the bulk statements bypass the persistence context, pending changes must reach the database first
+        entityManager.flush();
+        for (List<? extends PK> chunk : Iterables.partition(ids, batchSize)) {
+            deleted += deleteByIds(chunk);
+            window.written(chunk.size());
+        }
+        window.finish();
+        return deleted;
     }
 
-    protected Predicate byExample(Root<E> root, CriteriaBuilder builder, SearchParameters sp, E entity) {
-        return byExampleUtil.byExampleOnEntity(root, entity, builder, sp);
+    @Transactional
+    public int deleteAllById(Iterable<? extends PK> ids) {
+        return deleteAllById(ids, null);
     }
 
-    protected Predicate byPropertySelectors(Root<E> root, CriteriaBuilder builder, SearchParameters sp) {
-        return byPropertySelectorUtil.byPropertySelectors(root, builder, sp);
+    /*
+     * Delete the entities having the given ids with a single bulk statement and evict them from the second level cache. Requires a simple primary key.
+     */
+    protected int deleteByIds(List<? extends PK> ids) {
+        QueryBindings bindings = queryBindings();
+        CriteriaBuilder builder = bindings.getBuilder();
+        CriteriaDelete<E> criteriaDelete = builder.createCriteriaDelete(type);
+        Root<E> root = criteriaDelete.from(type);
+        criteriaDelete.where(jpaUtil.inPredicate(bindings, root.get(entityDescriptorRegistry.get(type).getIdAttribute().getName()), ids));
+        Query query = entityManager.createQuery(criteriaDelete);
+        bindings.bind(query);
+        int deleted = query.executeUpdate();
+
+        Cache cache = entityManager.getEntityManagerFactory().getCache();
+        for (PK id : ids) {
+            cache.evict(type, id);
+        }
+        return deleted;
     }
 
-    protected Predicate byRanges(Root<E> root, CriteriaBuilder builder, SearchParameters sp, Class<E> type) {
-        return byRangeUtil.byRanges(root, builder, sp, type);
-    }
+    /**
+     * Delete the E instances matching the search with a single bulk delete statement: the entities are not loaded, hence cascades, orphan removal and
+     * entity callbacks do not apply. The search predicates, {@link #byMandatoryPredicate} included, are applied in a subquery on the ids since bulk
+     * statements cannot join; note that MySQL rejects a subquery on the table being deleted, use the chunked variant there.
+     * <p>
+     * Pending changes are flushed first and the persistence context is cleared afterwards. The deleted ids are not known, hence not evicted one by
+     * one from the second level cache: as for any bulk statement, Hibernate invalidates the entity region of E when the statement runs.
+     *
+     * @param entity a sample entity whose non-null properties may be used as search hints
+     * @param sp     carries additional search information
+     * @return the number of deleted entities.
+     */
+    @Transactional
+    public int deleteByExample(E entity, SearchParameters sp) {
+        checkNotNull(entity, "The entity cannot be null");
+        checkNotNull(sp, "The searchParameters cannot be null");
+        searchResultCacheRegistry.invalidate(type);
+        entityManager.flush();
+
+        QueryBindings bindings = queryBindings();
+        CriteriaBuilder builder = bindings.getBuilder();
+        CriteriaDelete<E> criteriaDelete = builder.createCriteriaDelete(type);
+        Root<E> root = criteriaDelete.from(type);
+        Predicate predicate = byMatchingIds(criteriaDelete, root, bindings, entity, sp);
+        if (predicate != null) {
+            criteriaDelete.where(predicate);
+        }
+        Query query = entityManager.createQuery(criteriaDelete);
+        bindings.bind(query);
+        int deleted = query.executeUpdate();
 
-    protected Predicate byPattern(Root<E> root, CriteriaBuilder builder, SearchParameters sp, Class<E> type) {
-        return byPatternUtil.byPattern(root, builder, sp, type);
+        entityManager.clear();
+        return deleted;
     }
 
-    /*
-     * You may override this method to add a Predicate to the default find method.
+    /**
+     * Delete the E instances matching the search by chunks, each chunk in its own transaction so that a large purge does not hold its locks, nor
+     * fill the undo log, until the end. Each transaction reads the ids of at most <code>chunkSize</code> matching entities, then deletes them with a
+     * bulk statement and evicts them from the second level cache. As the chunks are committed one by one, a failure leaves the previous chunks
+     * deleted. Must not be called within a transaction.
+     *
+     * @param entity    a sample entity whose non-null properties may be used as search hints
+     * @param sp        carries additional search information
+     * @param chunkSize the maximum number of entities deleted per transaction
+     * @return the number of deleted entities.
      */
-    protected <R> Predicate byMandatoryPredicate(CriteriaQuery<?> criteriaQuery, Root<E> root, CriteriaBuilder builder, E entity, SearchParameters sp) {
-        return null;
+    @Transactional(propagation = Propagation.NEVER)
+    public int deleteByExample(final E entity, final SearchParameters sp, final int chunkSize) {
+        checkNotNull(entity, "The entity cannot be null");
+        checkNotNull(sp, "The searchParameters cannot be null");
+        checkArgument(chunkSize > 0, "The chunk size must be positive");
+        checkArgument(entityDescriptorRegistry.get(type).hasSimplePk(), "Chunked deletes require a simple primary key");
+        searchResultCacheRegistry.invalidate(type);
+
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        int total = 0;
+        while (true) {
+            Integer deleted = transactionTemplate.execute(new TransactionCallback<Integer>() {
+                @Override
+                public Integer doInTransaction(TransactionStatus status) {
+                    List<PK> ids = findIds(entity, sp, chunkSize);
+                    return ids.isEmpty() ? 0 : deleteByIds(ids);
+                }
+            });
+            if (deleted == 0) {
+                return total;
+            }
+            total += deleted;
+            log.debug("Deleted {} {} so far", total, type.getSimpleName());
+        }
     }
 
     /**
-     * Save or update the given entity E to the repository. Assume that the entity is already present in the persistence context. No merge is done.
+     * Update the E instances matching the search with a single bulk update statement: the entities are not loaded, hence entity callbacks do not
+     * apply. The search predicates, {@link #byMandatoryPredicate} included, are applied in a subquery on the ids; as for
+     * {@link #deleteByExample(Identifiable, SearchParameters)}, MySQL rejects it. The version attribute, if any, is incremented unless it is assigned.
+     * <p>
+     * Pending changes are flushed first and the persistence context is cleared afterwards. As for deleteByExample, Hibernate invalidates the entity
+     * region of E in the second level cache when the statement runs.
      *
-     * @param entity the entity to be saved or updated.
+     * @param entity      a sample entity whose non-null properties may be used as search hints
+     * @param sp          carries additional search information
+     * @param assignments the new values of the updated singular attributes, null values included
+     * @return the number of updated entities.
      */
     @Transactional
-    public void save(E entity) {
-        checkNotNull(entity, "The entity to save cannot be null");
+    @SuppressWarnings("unchecked")
+    public int updateByExample(E entity, SearchParameters sp, Map<? extends Attribute<? super E, ?>, ?> assignments) {
+        checkNotNull(entity, "The entity cannot be null");
+        checkNotNull(sp, "The searchParameters cannot be null");
+        checkArgument(assignments != null && !assignments.isEmpty(), "The assignments cannot be empty");
+        searchResultCacheRegistry.invalidate(type);
+        entityManager.flush();
+
+        QueryBindings bindings = queryBindings();
+        CriteriaBuilder builder = bindings.getBuilder();
+        CriteriaUpdate<E> criteriaUpdate = builder.createCriteriaUpdate(type);
+        Root<E> root = criteriaUpdate.from(type);
+        for (Map.Entry<? extends Attribute<? super E, ?>, ?> assignment : assignments.entrySet()) {
+            Attribute<? super E, ?> attribute = assignment.getKey();
+            checkArgument(attribute instanceof SingularAttribute, "Only singular attributes can be updated: %s", attribute.getName());
+            Path<Object> path = root.get(attribute.getName());
+            Object value = assignment.getValue();
+            assign(criteriaUpdate, path, value == null ? builder.nullLiteral((Class<Object>) path.getJavaType()) : bindings.bind(value));
+        }
 
-        // creation with auto generated id
-        if (!entity.isIdSet()) {
-            entityManager.persist(entity);
-            return;
+        SingularAttribute<? super E, ?> versionAttribute = getVersionAttribute(entityManager.getMetamodel().entity(type));
+        if (versionAttribute != null && !assignments.containsKey(versionAttribute)) {
+            Path<Object> versionPath = root.get(versionAttribute.getName());
+            assign(criteriaUpdate, versionPath, (Expression<Object>) nextVersion(builder, versionPath));
         }
 
-        // creation with manually assigned key
-        if (jpaUtil.isEntityIdManuallyAssigned(type) && !entityManager.contains(entity)) {
-            entityManager.persist(entity);
-            return;
+        Predicate predicate = byMatchingIds(criteriaUpdate, root, bindings, entity, sp);
+        if (predicate != null) {
+            criteriaUpdate.where(predicate);
         }
-        // other cases are update
-        // the simple fact to invoke this method, from a service method annotated with @Transactional,
-        // does the job (assuming the give entity is present in the persistence context)
+        Query query = entityManager.createQuery(criteriaUpdate);
+        bindings.bind(query);
+        int updated = query.executeUpdate();
+
+        entityManager.clear();
+        return updated;
+    }
+
+    private <Y> void assign(CriteriaUpdate<E> criteriaUpdate, Path<Y> path, Expression<? extends Y> value) {
+        criteriaUpdate.set(path, value);
     }
 
     /*
-     * Persist the given entity.
+     * The expression of the incremented version: version + 1 for numeric versions, the current timestamp otherwise.
      */
-    @Transactional
-    public void persist(E entity) {
-        entityManager.persist(entity);
+    @SuppressWarnings("unchecked")
+    private Expression<?> nextVersion(CriteriaBuilder builder, Path<?> versionPath) {
+        Class<?> versionType = Primitives.wrap(versionPath.getJavaType());
+        if (versionType == Long.class) {
+            return builder.sum((Path<Long>) versionPath, 1L);
+        } else if (versionType == Integer.class) {
+            return builder.sum((Path<Integer>) versionPath, 1);
+        } else if (versionType == Short.class) {
+            return builder.sum((Path<Short>) versionPath, (short) 1);
+        }
+        return builder.currentTimestamp();
     }
 
     /*
-     * Merge the state of the given entity into the current persistence context.
+     * Returns the ids of at most maxResults E instances matching the search.
      */
-    @Transactional
-    public E merge(E entity) {
-        return entityManager.merge(entity);
+    @SuppressWarnings("unchecked")
+    protected List<PK> findIds(E entity, SearchParameters sp, int maxResults) {
+        QueryBindings bindings = queryBindings();
+        CriteriaBuilder builder = bindings.getBuilder();
+        CriteriaQuery<Object> criteriaQuery = builder.createQuery(Object.class);
+        Root<E> root = criteriaQuery.from(type);
+        criteriaQuery.select(root.get(entityDescriptorRegistry.get(type).getIdAttribute().getName()));
+        Predicate predicate = getPredicate(criteriaQuery, root, bindings, entity, sp);
+        if (predicate != null) {
+            criteriaQuery.where(predicate);
+        }
+        TypedQuery<Object> typedQuery = createQuery(null, criteriaQuery, bindings);
+        typedQuery.setMaxResults(maxResults);
+        return (List<PK>) (List<?>) typedQuery.getResultList();
     }
 
     /*
-     * Delete the given entity E from the repository.
-     *
-     * @param entity the entity to be deleted.
+     * Restrict the root of a bulk statement to the entities matching the search, through a subquery on their ids. The subqueries of the predicates
+     * are created from the statement itself, which the bindings carry; {@link #byMandatoryPredicate} is given a criteria query of its own, as its
+     * signature requires one, but finds the statement in the bindings. Returns null when the search matches all the entities.
      */
-    @Transactional
-    public void delete(E entity) {
-        if (entityManager.contains(entity)) {
-            entityManager.remove(entity);
-        } else {
-            // could be a delete on a transient instance
-            E entityRef = entityManager.getReference(type, entity.getId());
+    protected Predicate byMatchingIds(CommonAbstractCriteria statement, Root<E> root, QueryBindings bindings, E entity, SearchParameters sp) {
+        CriteriaBuilder builder = bindings.getBuilder();
+        SingularAttribute<?, ?> idAttribute = entityDescriptorRegistry.get(type).getIdAttribute();
+        checkArgument(idAttribute != null, "Bulk statements by example are not supported on @IdClass entities");
+        String idName = idAttribute.getName();
+        Subquery<Object> subquery = statement.subquery(Object.class);
+        Root<E> subqueryRoot = subquery.from(type);
+        subquery.select(subqueryRoot.get(idName));
+        Predicate predicate = getPredicate(statement, builder.createQuery(type), subqueryRoot, bindings, entity, sp);
+        if (predicate == null) {
+            return null;
+        }
+        subquery.where(predicate);
+        return builder.in(root.get(idName)).value(subquery);
+    }
 
-            if (entityRef != null) {
-                entityManager.remove(entityRef);
-            } else {
-                log.warn("Attempt to delete an instance that is not present in the database: {}", entity);
+    /*
+     * Flushes and clears the persistence context every batch size writes and reports the progress.
+     */
+    private class BatchWindow {
+        private final IntConsumer progress;
+        private int count;
+        private int pending;
+
+        BatchWindow(IntConsumer progress) {
+            this.progress = progress;
+        }
+
+        void written(int written) {
+            count += written;
+            pending += written;
+            if (pending >= batchSize) {
+                endBatch();
             }
         }
-    }
 
-    protected List<SingularAttribute<?, ?>> buildIndexedAttributes(Class<E> type) {
-        List<SingularAttribute<?, ?>> ret = newArrayList();
-        for (Method m : type.getMethods()) {
-            if (m.getAnnotation(Field.class) != null) {
-                ret.add(metamodelUtil.toAttribute(jpaUtil.methodToProperty(m), type));
+        /*
+         * Ends the last batch.
+         */
+        void finish() {
+            if (pending > 0) {
+                endBatch();
+            }
+        }
+
+        private void endBatch() {
+            entityManager.flush();
+            entityManager.clear();
+            pending = 0;
+            if (progress != null) {
+                progress.accept(count);
             }
         }
-        return ret;
+    }
+
+    protected List<SingularAttribute<?, ?>> buildIndexedAttributes(Class<E> type) {
+        return entityDescriptorRegistry.get(type).getIndexedAttributes();
     }
 
     public boolean isIndexed(String property) {
@@ -612,17 +2108,18 @@ public abstract class GenericRepository<E extends Identifiable<PK>, PK extends S
     public boolean isPropertyNull(PK id, SingularAttribute<E, ?> property) {
         checkNotNull(id, "The id cannot be null");
         checkNotNull(property, "The property cannot be null");
-        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        QueryBindings bindings = queryBindings();
+        CriteriaBuilder builder = bindings.getBuilder();
         CriteriaQuery<Long> criteriaQuery = builder.createQuery(Long.class);
         Root<E> root = criteriaQuery.from(type);
         criteriaQuery = criteriaQuery.select(builder.count(root));
 
         // predicate
-        Predicate idPredicate = builder.equal(root.get("id"), id);
+        Predicate idPredicate = builder.equal(jpaUtil.idPath(root), bindings.bind(id));
         Predicate isNullPredicate = builder.isNull(root.get(property));
         criteriaQuery = criteriaQuery.where(jpaUtil.andPredicate(builder, idPredicate, isNullPredicate));
 
-        TypedQuery<Long> typedQuery = entityManager.createQuery(criteriaQuery);
+        TypedQuery<Long> typedQuery = createQuery(null, criteriaQuery, bindings);
         return typedQuery.getSingleResult().intValue() == 1;
     }
 
@@ -632,11 +2129,11 @@ public abstract class GenericRepository<E extends Identifiable<PK>, PK extends S
     @SuppressWarnings("unchecked")
     @Transactional(readOnly = true)
     public Comparable<Object> getVersion(E entity) {
-        EntityType<E> entityType = entityManager.getMetamodel().entity(type);
-        if (!entityType.hasVersionAttribute()) {
+        SingularAttribute<? super E, ?> versionAttribute = getVersionAttribute(entityManager.getMetamodel().entity(type));
+        if (versionAttribute == null) {
             return null;
         }
-        return (Comparable<Object>) jpaUtil.getValue(entity, getVersionAttribute(entityType));
+        return (Comparable<Object>) jpaUtil.getValue(entity, versionAttribute);
     }
 
     /*
@@ -644,13 +2141,254 @@ public abstract class GenericRepository<E extends Identifiable<PK>, PK extends S
      * <p>
      * http://stackoverflow.com/questions/13265094/generic-way-to-get-jpa-entity-version
      */
+    @SuppressWarnings("unchecked")
     protected SingularAttribute<? super E, ?> getVersionAttribute(EntityType<E> entityType) {
-        for (SingularAttribute<? super E, ?> sa : entityType.getSingularAttributes()) {
-            if (sa.isVersion()) {
-                return sa;
+        return (SingularAttribute<? super E, ?>) entityDescriptorRegistry.get(entityType.getJavaType()).getVersionAttribute();
+    }
+
+    // -----------------
+    // Query shape cache
+    // -----------------
+
+    /*
+     * Returns the shape of the search whose predicate was built with the given bindings, or null when the search cannot be served by the
+     * {@link QueryShapeCache}.
+     */
+    protected QueryShape queryShape(QueryShape.Kind kind, SearchParameters sp, List<Attribute<?, ?>> attributes, QueryBindings bindings) {
+        if (!useQueryShapeCache || sp.hasTerms()) {
+            // full text search binds the ids returned by the index
+            return null;
+        }
+        return queryShapeCache.shapeOf(kind, type, sp, attributes, bindings);
+    }
+
+    /**
+     * Returns the shape of the given search, which keys its query in the {@link QueryShapeCache}, or null when it has none. The predicate of the
+     * search is built on a throwaway query to tell it: the searches themselves read their shape from the bindings of the query they run.
+     *
+     * @param kind       the kind of query built for the search
+     * @param entity     a sample entity whose non-null properties may be used as search hints
+     * @param sp         carries additional search information
+     * @param attributes the path of the property searched, null unless searching a property
+     * @return the shape of the search along with the values it binds
+     */
+    public QueryShape getQueryShape(QueryShape.Kind kind, E entity, SearchParameters sp, List<Attribute<?, ?>> attributes) {
+        if (sp.hasTerms()) {
+            return null;
+        }
+        QueryBindings bindings = queryBindings();
+        CriteriaQuery<Object> criteriaQuery = bindings.getBuilder().createQuery(Object.class);
+        getPredicate(criteriaQuery, criteriaQuery.from(type), bindings, entity, sp);
+        return queryShapeCache.shapeOf(kind, type, sp, attributes, bindings);
+    }
+
+    /*
+     * The values of a search are always bound as parameters, so that the same search shape always produces the same SQL text.
+     */
+    protected QueryBindings queryBindings() {
+        return new QueryBindings(entityManager.getCriteriaBuilder());
+    }
+
+    /*
+     * Returns a query created from the JPQL compiled for the given shape and bound to the values recorded in the given bindings, or null if there is
+     * none yet.
+     */
+    protected <T> TypedQuery<T> compiledQuery(QueryShape shape, QueryBindings bindings, Class<T> resultType) {
+        QueryShapeCache.CompiledQuery compiledQuery = compiledQuery(shape, bindings);
+        return compiledQuery != null ? compiledQuery.createQuery(entityManager, resultType, bindings.getValues()) : null;
+    }
+
+    /*
+     * Returns the JPQL compiled for the given shape when it matches the values recorded in the given bindings, or null if there is none yet.
+     */
+    protected QueryShapeCache.CompiledQuery compiledQuery(QueryShape shape, QueryBindings bindings) {
+        if (shape == null) {
+            return null;
+        }
+        QueryShapeCache.CompiledQuery compiledQuery = queryShapeCache.get(shape);
+        if (compiledQuery == null || !compiledQuery.isCompilable()) {
+            return null;
+        }
+        if (bindings.getValues().size() != compiledQuery.getParameterCount()) {
+            log.warn("Shape {} expects {} parameters but {} were bound, rebuilding the query", shape, compiledQuery.getParameterCount(),
+                    bindings.getValues().size());
+            queryShapeCache.notCompilable(shape);
+            return null;
+        }
+        return compiledQuery;
+    }
+
+    protected <T> TypedQuery<T> createQuery(QueryShape shape, CriteriaQuery<T> criteriaQuery, QueryBindings bindings) {
+        return createQuery(shape, criteriaQuery, null, bindings);
+    }
+
+    /*
+     * Create the query of the given criteria query and keep its JPQL for the given shape, along with the JPQL of the given count query when it is
+     * not null.
+     */
+    protected <T> TypedQuery<T> createQuery(QueryShape shape, CriteriaQuery<T> criteriaQuery, TypedQuery<Long> countQuery, QueryBindings bindings) {
+        TypedQuery<T> typedQuery = entityManager.createQuery(criteriaQuery);
+        bindings.bind(typedQuery);
+        if (shape != null) {
+            queryShapeCache.put(shape, typedQuery, countQuery, bindings);
+        }
+        return typedQuery;
+    }
+
+    // -----------------
+    // Search result cache
+    // -----------------
+
+    /*
+     * The key of the search in the search result cache: its shape along with the values it binds, read from the bindings of its query once its
+     * predicate is built. Returns null when the search is not cached.
+     */
+    protected QueryShape searchResultKey(QueryShape.Kind kind, SearchParameters sp, List<Attribute<?, ?>> attributes, QueryBindings bindings) {
+        if (isKeysetPagination(sp)) {
+            return null;
+        }
+        List<Object> parts = searchKeyParts(kind, sp, attributes, bindings);
+        if (parts == null) {
+            return null;
+        }
+        if (kind == QueryShape.Kind.COUNT) {
+            parts.add(sp.getCountMode());
+            parts.add(sp.getCountLimit());
+        } else {
+            parts.add(sp.getFirst());
+            parts.add(sp.getPageSize());
+            parts.add(sp.getMaxResults());
+        }
+        return new QueryShape(parts);
+    }
+
+    /*
+     * The parts of the keys, in the search result cache, of the keyset values read for a keyset search from a position, taken from the bindings of
+     * its query once its predicate is built. Returns null when they are not cached.
+     */
+    protected List<Object> keysetAnchorKeyParts(SearchParameters sp, QueryBindings bindings) {
+        if (sp.hasKeysetValues()) {
+            return null;
+        }
+        List<Object> parts = searchKeyParts(QueryShape.Kind.FIND, sp, null, bindings);
+        if (parts != null) {
+            parts.add("keyset");
+        }
+        return parts;
+    }
+
+    /*
+     * The key of the keyset values of the row preceding the given position, null when the given key parts are.
+     */
+    protected QueryShape keysetAnchorKey(List<Object> anchorKeyParts, int position) {
+        if (anchorKeyParts == null) {
+            return null;
+        }
+        List<Object> parts = newArrayList(anchorKeyParts);
+        parts.add(position);
+        return new QueryShape(parts);
+    }
+
+    /*
+     * The shape of the search along with the values it binds, regardless of its pagination, read from the given bindings. Returns null when the
+     * search is not cached.
+     */
+    protected List<Object> searchKeyParts(QueryShape.Kind kind, SearchParameters sp, List<Attribute<?, ?>> attributes, QueryBindings bindings) {
+        if (searchResultCache == null || sp.hasTerms()) {
+            return null;
+        }
+        if (kind == QueryShape.Kind.FIND && !entityDescriptorRegistry.get(type).hasSimplePk()) {
+            return null;
+        }
+        QueryShape shape = queryShapeCache.shapeOf(kind, type, sp, attributes, bindings);
+        if (shape == null) {
+            return null;
+        }
+
+        List<Object> parts = newArrayList();
+        parts.add(shape);
+        for (Object value : shape.getValues()) {
+            if (value instanceof Identifiable) {
+                Identifiable<?> identifiable = (Identifiable<?>) value;
+                parts.add(newArrayList(entityDescriptorRegistry.get(identifiable).getType(), identifiable.getId()));
+            } else {
+                parts.add(value);
             }
         }
-        return null;
+        return parts;
+    }
+
+    protected void cacheSearchResult(QueryShape resultKey, Object result, long generation) {
+        if (!searchResultCacheRegistry.hasPendingWrites()) {
+            searchResultCache.put(resultKey, result, generation);
+        }
+    }
+
+    /*
+     * Load the entities whose ids are cached for the given key, in order. Returns null on a miss, or when one of them no longer exists.
+     */
+    protected List<E> findCachedEntities(QueryShape resultKey, SearchParameters sp) {
+        @SuppressWarnings("unchecked")
+        List<PK> ids = (List<PK>) searchResultCache.get(resultKey);
+        if (ids == null) {
+            return null;
+        }
+        Map<PK, E> byId = newHashMap();
+        for (E e : findByIds(newArrayList(newLinkedHashSet(ids)), sp)) {
+            byId.put(e.getId(), e);
+        }
+
+        List<E> entities = newArrayList();
+        for (PK id : ids) {
+            E e = byId.get(id);
+            if (e == null) {
+                searchResultCache.remove(resultKey);
+                return null;
+            }
+            entities.add(e);
+        }
+        return entities;
+    }
+
+    /*
+     * Whether the given property values can be cached as they are.
+     */
+    private boolean isBasic(List<?> values) {
+        for (Object value : values) {
+            if (value != null && !(value instanceof String || value instanceof Number || value instanceof Boolean || value instanceof Character
+                    || value instanceof Enum || value instanceof Date)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * E and the entity types reachable from it through associations and embeddables: the types whose writes may change the search results.
+     */
+    private Set<Class<?>> reachableEntityTypes() {
+        Metamodel metamodel = entityManager.getMetamodel();
+        Set<Class<?>> entityTypes = newHashSet();
+        Set<ManagedType<?>> visited = newHashSet();
+        Deque<ManagedType<?>> toVisit = new ArrayDeque<ManagedType<?>>();
+        toVisit.add(metamodel.managedType(type));
+        while (!toVisit.isEmpty()) {
+            ManagedType<?> managedType = toVisit.poll();
+            if (!visited.add(managedType)) {
+                continue;
+            }
+            if (managedType instanceof EntityType) {
+                entityTypes.add(managedType.getJavaType());
+            }
+            for (Attribute<?, ?> attribute : managedType.getAttributes()) {
+                Type<?> target = attribute instanceof PluralAttribute ? ((PluralAttribute<?, ?, ?>) attribute).getElementType()
+                        : ((SingularAttribute<?, ?>) attribute).getType();
+                if (target instanceof ManagedType) {
+                    toVisit.add((ManagedType<?>) target);
+                }
+            }
+        }
+        return entityTypes;
     }
 
     // -----------------
@@ -672,6 +2410,76 @@ public abstract class GenericRepository<E extends Identifiable<PK>, PK extends S
         }
     }
 
+    protected boolean isReadOnly(SearchParameters sp) {
+        return sp.getReadOnly() != null ? sp.getReadOnly() : readOnlyByDefault;
+    }
+
+    /*
+     * Load the entities of a read-only search without snapshot, see {@link SearchParameters#readOnly()}.
+     */
+    protected void applyReadOnly(TypedQuery<?> typedQuery, SearchParameters sp) {
+        if (isReadOnly(sp)) {
+            typedQuery.setHint("org.hibernate.readOnly", true);
+        }
+    }
+
+    /*
+     * Switch the session to manual flush for a read-only search. Returns the flush mode to restore with endReadOnly, null if the search is not
+     * read-only.
+     */
+    protected FlushMode beginReadOnly(SearchParameters sp) {
+        if (!isReadOnly(sp)) {
+            return null;
+        }
+        Session session = entityManager.unwrap(Session.class);
+        FlushMode flushMode = session.getFlushMode();
+        session.setFlushMode(FlushMode.MANUAL);
+        return flushMode;
+    }
+
+    protected void endReadOnly(FlushMode flushMode) {
+        if (flushMode != null) {
+            entityManager.unwrap(Session.class).setFlushMode(flushMode);
+        }
+    }
+
+    /*
+     * Detach the given results from the persistence context when the search asks for it. Only the entities loaded read-only are detached: an
+     * entity that was already managed before the search may hold changes of the caller. An entity listed twice, as with a collection fetch join
+     * without distinct, is detached once.
+     */
+    protected List<E> detachResults(List<E> entities, SearchParameters sp) {
+        if (isReadOnly(sp) && sp.isDetachResults()) {
+            Session session = entityManager.unwrap(Session.class);
+            for (E entity : entities) {
+                if (entityManager.contains(entity) && session.isReadOnly(entity)) {
+                    entityManager.detach(entity);
+                }
+            }
+        }
+        return entities;
+    }
+
+    /*
+     * Pass the entity graph of the search, if any, as a fetch graph or load graph hint.
+     */
+    protected void applyEntityGraph(TypedQuery<?> typedQuery, SearchParameters sp) {
+        EntityGraph<?> entityGraph = getEntityGraph(sp);
+        if (entityGraph != null) {
+            typedQuery.setHint(sp.getEntityGraphHint(), entityGraph);
+        }
+    }
+
+    /*
+     * The entity graph of the search, looked up by name in the persistence unit when given by name, null if none.
+     */
+    protected EntityGraph<?> getEntityGraph(SearchParameters sp) {
+        if (sp.getEntityGraph() != null) {
+            return sp.getEntityGraph();
+        }
+        return sp.getEntityGraphName() != null ? getEntityGraph(sp.getEntityGraphName()) : null;
+    }
+
     @SuppressWarnings({"unchecked", "rawtypes"})
     protected void fetches(SearchParameters sp, Root<E> root) {
         for (List<Attribute<?, ?>> args : sp.getFetches()) {
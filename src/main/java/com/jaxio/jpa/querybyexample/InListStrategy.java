@@ -0,0 +1,37 @@
+/*
+ * Copyright 2015 JAXIO http://www.jaxio.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jaxio.jpa.querybyexample;
+
+import javax.persistence.criteria.Expression;
+import javax.persistence.criteria.Predicate;
+import java.util.List;
+
+/**
+ * Database specific restriction of an expression to a large set of values, used by {@link JpaUtil#inPredicate} above the threshold given to
+ * {@link JpaUtil#setLargeInListStrategy(InListStrategy, int)}, for instance a join against a temporary table filled with the values or an array
+ * parameter compared with <code>= ANY(?)</code>.
+ * <p>
+ * None is provided, as both require database specific SQL and types. Without one, a query cannot bind more values than
+ * {@link JpaUtil#setMaxBoundValues(int)} allows.
+ */
+public interface InListStrategy {
+
+    /*
+     * Returns a predicate that is true when the expression is equal to one of the given values, which are neither null nor duplicated. The values
+     * bound as parameters go through {@link QueryBindings#bind(Object)}.
+     */
+    Predicate in(QueryBindings bindings, Expression<?> path, List<?> values);
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2015 JAXIO http://www.jaxio.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jaxio.jpa.querybyexample;
+
+import javax.persistence.criteria.From;
+import javax.persistence.criteria.Join;
+import javax.persistence.criteria.JoinType;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.collect.Maps.newHashMap;
+
+/**
+ * The joins made on the paths of a criteria query, so that the predicates and orders walking the same path with the same join type share one join
+ * instead of multiplying the rows. The registry of a query is held by its {@link QueryBindings}, which the predicate and order helpers are given.
+ * <p>
+ * The fetch joins of the query are deliberately not registered: a restriction on a fetched collection would filter the elements loaded in it.
+ * <p>
+ * A shared join is only correct when all the restrictions on it apply to the same element. Predicates that must match different elements of a
+ * collection, such as the values of a selector in and mode, use a registry of their own.
+ */
+public class JoinRegistry {
+    private final Map<From<?, ?>, Map<List<Object>, Join<?, ?>>> joins = new IdentityHashMap<From<?, ?>, Map<List<Object>, Join<?, ?>>>();
+
+    /*
+     * Returns the join of the given attribute made from the given path, creating it on first use.
+     */
+    @SuppressWarnings("unchecked")
+    public <X, Y> Join<X, Y> join(From<?, X> from, String attributeName, JoinType joinType) {
+        Map<List<Object>, Join<?, ?>> fromJoins = joins.get(from);
+        if (fromJoins == null) {
+            fromJoins = newHashMap();
+            joins.put(from, fromJoins);
+        }
+        List<Object> key = Arrays.<Object> asList(attributeName, joinType);
+        Join<X, Y> join = (Join<X, Y>) fromJoins.get(key);
+        if (join == null) {
+            join = from.join(attributeName, joinType);
+            fromJoins.put(key, join);
+        }
+        return join;
+    }
+}
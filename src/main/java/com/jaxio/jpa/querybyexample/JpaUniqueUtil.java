@@ -21,18 +21,16 @@ import org.springframework.context.i18n.LocaleContextHolder;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
-import javax.persistence.*;
-import java.lang.reflect.Field;
-import java.lang.reflect.Method;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.TypedQuery;
+import javax.persistence.metamodel.SingularAttribute;
 import java.util.List;
 import java.util.Map;
 
 import static com.google.common.collect.Iterables.concat;
 import static com.google.common.collect.Lists.newArrayList;
 import static com.google.common.collect.Maps.newHashMap;
-import static java.util.Collections.emptyList;
-import static org.apache.commons.lang.StringUtils.equalsIgnoreCase;
-import static org.hibernate.proxy.HibernateProxyHelper.getClassWithoutInitializingProxy;
 
 @Named
 @Singleton
@@ -41,6 +39,8 @@ public class JpaUniqueUtil {
     private EntityManager entityManager;
     @Inject
     private JpaUtil jpaUtil;
+    @Inject
+    private EntityDescriptorRegistry entityDescriptorRegistry;
 
     /*
      * Return the error code if the given property is already present in the database, returns null otherwise.
@@ -62,39 +62,12 @@ public class JpaUniqueUtil {
     }
 
     private List<String> validateSimpleUniqueConstraints(Identifiable<?> entity) {
-        return newArrayList(concat( //
-                validateSimpleUniqueConstraintsDefinedOnMethods(entity), //
-                validateSimpleUniqueConstraintsDefinedOnFields(entity)));
-    }
-
-    private List<String> validateSimpleUniqueConstraintsDefinedOnFields(Identifiable<?> entity) {
-        Class<?> entityClass = getClassWithoutInitializingProxy(entity);
         List<String> errors = newArrayList();
-        for (Field field : entityClass.getFields()) {
-            Column column = field.getAnnotation(Column.class);
-            if (column != null && column.unique()) {
-                Map<String, Object> values = newHashMap();
-                values.put(field.getName(), jpaUtil.getValueFromField(field, entity));
-                if (existsInDatabaseOnAllObjects(entity, values)) {
-                    errors.add(simpleUniqueConstraintError(entity, field.getName()));
-                }
-            }
-        }
-        return errors;
-    }
-
-    private List<String> validateSimpleUniqueConstraintsDefinedOnMethods(Identifiable<?> entity) {
-        Class<?> entityClass = getClassWithoutInitializingProxy(entity);
-        List<String> errors = newArrayList();
-        for (Method method : entityClass.getMethods()) {
-            Column column = entityClass.getAnnotation(Column.class);
-            if (column != null && column.unique()) {
-                Map<String, Object> values = newHashMap();
-                String property = jpaUtil.methodToProperty(method);
-                values.put(property, invokeMethod(method, entity));
-                if (existsInDatabaseOnAllObjects(entity, values)) {
-                    errors.add(simpleUniqueConstraintError(entity, property));
-                }
+        for (SingularAttribute<?, ?> attribute : entityDescriptorRegistry.get(entity).getUniqueAttributes()) {
+            Map<String, Object> values = newHashMap();
+            values.put(attribute.getName(), getValue(entity, attribute));
+            if (existsInDatabaseOnAllObjects(entity, values)) {
+                errors.add(simpleUniqueConstraintError(entity, attribute.getName()));
             }
         }
         return errors;
@@ -105,65 +78,31 @@ public class JpaUniqueUtil {
     }
 
     private List<String> validateCompositeUniqueConstraints(Identifiable<?> entity) {
-        Class<?> entityClass = getClassWithoutInitializingProxy(entity);
-        Table table = entityClass.getAnnotation(Table.class);
-        if (table == null) {
-            return emptyList();
-        }
         List<String> errors = newArrayList();
-        for (UniqueConstraint uniqueConstraint : table.uniqueConstraints()) {
-            if (!checkCompositeUniqueConstraint(entity, entityClass, uniqueConstraint)) {
+        for (EntityDescriptor.CompositeUnique uniqueConstraint : entityDescriptorRegistry.get(entity).getCompositeUniques()) {
+            if (!checkCompositeUniqueConstraint(entity, uniqueConstraint)) {
                 errors.add(compositeUniqueConstraintErrorCode(entity, uniqueConstraint));
             }
         }
         return errors;
     }
 
-    private String compositeUniqueConstraintErrorCode(Identifiable<?> entity, UniqueConstraint uniqueConstraint) {
+    private String compositeUniqueConstraintErrorCode(Identifiable<?> entity, EntityDescriptor.CompositeUnique uniqueConstraint) {
         return WordUtils.uncapitalize(jpaUtil.getEntityName(entity)) + "_"
-                + (uniqueConstraint.name() == null ? "composite_unique_constraint_error" : uniqueConstraint.name().toLowerCase());
-    }
-
-    private boolean checkCompositeUniqueConstraint(Identifiable<?> entity, Class<?> entityClass, UniqueConstraint u) {
-        Map<String, Object> values = newHashMap();
-        values.putAll(getPropertyConstraints(entity, entityClass, u, ""));
-        return !existsInDatabaseOnAllObjects(entity, values);
+                + (uniqueConstraint.getName() == null ? "composite_unique_constraint_error" : uniqueConstraint.getName().toLowerCase());
     }
 
-    private Map<String, Object> getPropertyConstraints(Object entity, Class<?> entityClass, UniqueConstraint u, String prefix) {
+    private boolean checkCompositeUniqueConstraint(Identifiable<?> entity, EntityDescriptor.CompositeUnique u) {
         Map<String, Object> values = newHashMap();
-        for (String column : u.columnNames()) {
-            Method method = columnNameToMethod(entityClass, column);
-            if (method != null) {
-                values.put(prefix + jpaUtil.methodToProperty(method), invokeMethod(method, entity));
-            } else {
-                Field field = columnNameToField(entityClass, column);
-                if (field != null) {
-                    values.put(prefix + field.getName(), jpaUtil.getValueFromField(field, entity));
-                }
-            }
+        for (SingularAttribute<?, ?> attribute : u.getAttributes()) {
+            values.put(attribute.getName(), getValue(entity, attribute));
         }
-        return values;
-    }
-
-    private Method columnNameToMethod(Class<?> clazz, String columnName) {
-        for (Method method : clazz.getMethods()) {
-            Column column = method.getAnnotation(Column.class);
-            if (column != null && equalsIgnoreCase(columnName, column.name())) {
-                return method;
-            }
-        }
-        return null;
+        return !existsInDatabaseOnAllObjects(entity, values);
     }
 
-    private Field columnNameToField(Class<?> clazz, String columnName) {
-        for (Field field : clazz.getFields()) {
-            Column column = field.getAnnotation(Column.class);
-            if (equalsIgnoreCase(columnName, column.name())) {
-                return field;
-            }
-        }
-        return null;
+    @SuppressWarnings("unchecked")
+    private Object getValue(Identifiable<?> entity, SingularAttribute<?, ?> attribute) {
+        return jpaUtil.getValue((Object) entity, (SingularAttribute<Object, ?>) attribute);
     }
 
     private boolean existsInDatabaseOnAllObjects(Identifiable<?> entity, Map<String, Object> values) {
@@ -202,13 +141,4 @@ public class JpaUniqueUtil {
         }
         return query.getSingleResult() > 0;
     }
-
-    @SuppressWarnings("unchecked")
-    private <T> T invokeMethod(Method method, Object target) {
-        try {
-            return (T) method.invoke(target);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
-    }
-}
\ No newline at end of file
+}
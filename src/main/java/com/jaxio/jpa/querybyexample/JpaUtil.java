@@ -15,12 +15,12 @@
  */
 package com.jaxio.jpa.querybyexample;
 
-import org.apache.commons.beanutils.MethodUtils;
+import com.google.common.collect.Lists;
 import org.apache.commons.beanutils.PropertyUtils;
-import org.apache.commons.lang.WordUtils;
 import org.springframework.context.annotation.Lazy;
 import org.springframework.context.i18n.LocaleContextHolder;
 
+import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
 import javax.persistence.*;
@@ -29,29 +29,36 @@ import javax.persistence.metamodel.Attribute;
 import javax.persistence.metamodel.ManagedType;
 import javax.persistence.metamodel.PluralAttribute;
 import javax.persistence.metamodel.SingularAttribute;
+import javax.persistence.metamodel.Type;
 import java.beans.PropertyDescriptor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.util.Collection;
 import java.util.List;
-import java.util.Map;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Predicates.notNull;
-import static com.google.common.base.Throwables.propagate;
 import static com.google.common.collect.Iterables.filter;
 import static com.google.common.collect.Iterables.toArray;
 import static com.google.common.collect.Lists.newArrayList;
-import static com.google.common.collect.Maps.newHashMap;
-import static java.lang.reflect.Modifier.isPublic;
-import static org.apache.commons.lang.StringUtils.isBlank;
-import static org.hibernate.proxy.HibernateProxyHelper.getClassWithoutInitializingProxy;
+import static com.google.common.collect.Sets.newLinkedHashSet;
 
 @Named
 @Singleton
 @Lazy(false)
 public class JpaUtil {
+    public static final int DEFAULT_IN_LIST_CHUNK_SIZE = 512;
+    public static final int DEFAULT_MAX_BOUND_VALUES = 32767;
 
-    private Map<Class<?>, String> compositePkCache = newHashMap();
+    @Inject
+    private AttributeAccessors attributeAccessors;
+    @Inject
+    private EntityDescriptorRegistry entityDescriptorRegistry;
     private static JpaUtil instance;
+    private int inListChunkSize = DEFAULT_IN_LIST_CHUNK_SIZE;
+    private InListStrategy largeInListStrategy;
+    private int largeInListThreshold;
+    private int maxBoundValues = DEFAULT_MAX_BOUND_VALUES;
 
     public static JpaUtil getInstance() {
         return instance;
@@ -62,24 +69,7 @@ public class JpaUtil {
     }
 
     public boolean isEntityIdManuallyAssigned(Class<?> type) {
-        for (Method method : type.getMethods()) {
-            if (isPrimaryKey(method)) {
-                return isManuallyAssigned(method);
-            }
-        }
-        return false; // no pk found, should not happen
-    }
-
-    private boolean isPrimaryKey(Method method) {
-        return isPublic(method.getModifiers()) && (method.getAnnotation(Id.class) != null || method.getAnnotation(EmbeddedId.class) != null);
-    }
-
-    private boolean isManuallyAssigned(Method method) {
-        if (method.getAnnotation(Id.class) != null) {
-            return method.getAnnotation(GeneratedValue.class) == null;
-        }
-
-        return method.getAnnotation(EmbeddedId.class) != null;
+        return entityDescriptorRegistry.get(type).isIdManuallyAssigned();
     }
 
     public Predicate concatPredicate(SearchParameters sp, CriteriaBuilder builder, Predicate... predicatesNullAllowed) {
@@ -124,39 +114,166 @@ public class JpaUtil {
         }
     }
 
-    public <E> Predicate stringPredicate(Expression<String> path, Object attrValue, SearchMode searchMode, SearchParameters sp, CriteriaBuilder builder) {
+    public <E> Predicate stringPredicate(Expression<String> path, Object attrValue, SearchMode searchMode, SearchParameters sp, QueryBindings bindings) {
+        CriteriaBuilder builder = bindings.getBuilder();
         if (sp.isCaseInsensitive()) {
             path = builder.lower(path);
+        }
+        ParameterExpression<String> value = bindings.bind(stringValue(attrValue, searchMode, sp));
+        boolean equals = (searchMode != null ? searchMode : sp.getSearchMode()) == SearchMode.EQUALS;
+        bindings.addShape(equals ? "=" : "like");
+        return equals ? builder.equal(path, value) : builder.like(path, value);
+    }
+
+    /*
+     * The value bound by stringPredicate for the given value: lower cased when the search is case insensitive, with the wild cards of the search mode.
+     */
+    public String stringValue(Object attrValue, SearchMode searchMode, SearchParameters sp) {
+        if (sp.isCaseInsensitive()) {
             attrValue = ((String) attrValue).toLowerCase(LocaleContextHolder.getLocale());
         }
 
         switch (searchMode != null ? searchMode : sp.getSearchMode()) {
             case EQUALS:
-                return builder.equal(path, attrValue);
+                return (String) attrValue;
             case ENDING_LIKE:
-                return builder.like(path, "%" + attrValue);
+                return "%" + attrValue;
             case STARTING_LIKE:
-                return builder.like(path, attrValue + "%");
+                return attrValue + "%";
             case ANYWHERE:
-                return builder.like(path, "%" + attrValue + "%");
+                return "%" + attrValue + "%";
             case LIKE:
-                return builder.like(path, (String) attrValue); // assume user provide the wild cards
+                return (String) attrValue; // assume user provide the wild cards
             default:
                 throw new IllegalStateException("expecting a search mode!");
         }
     }
 
-    public <E> Predicate stringPredicate(Expression<String> path, Object attrValue, SearchParameters sp, CriteriaBuilder builder) {
-        return stringPredicate(path, attrValue, null, sp, builder);
+    public <E> Predicate stringPredicate(Expression<String> path, Object attrValue, SearchParameters sp, QueryBindings bindings) {
+        return stringPredicate(path, attrValue, null, sp, bindings);
+    }
+
+    /*
+     * Same as <code>path.in(values)</code> but the values are bound as parameters through the given bindings. The list is padded to the next
+     * power of two by repeating its last value, so that a few statements cover all the list sizes. Lists longer than the IN list chunk size are split
+     * in an OR of IN lists, as some databases limit the size of a list (1000 on Oracle); sets reaching the large IN list threshold go through the
+     * large IN list strategy when there is one. Without it, the query may not bind more than the maximum number of values, see
+     * {@link #setMaxBoundValues(int)}. An empty collection matches nothing.
+     */
+    @SuppressWarnings("unchecked")
+    public Predicate inPredicate(QueryBindings bindings, Expression<?> path, Collection<?> values) {
+        List<?> distinctValues = newArrayList(newLinkedHashSet(values));
+        if (distinctValues.isEmpty()) {
+            bindings.addShape("in", 0);
+            return bindings.getBuilder().disjunction();
+        }
+        if (isLargeInList(distinctValues.size())) {
+            // the strategy may keep the values out of the bindings, in a temporary table for instance
+            bindings.setUnrecordedValues(true);
+            return largeInListStrategy.in(bindings, path, distinctValues);
+        }
+        List<List<Object>> chunks = inListChunks(distinctValues);
+        int boundValues = bindings.getValues().size();
+        for (List<Object> chunk : chunks) {
+            boundValues += chunk.size();
+        }
+        checkArgument(boundValues <= maxBoundValues, "The query would bind %s values, more than the %s allowed: search fewer values or set a large IN "
+                + "list strategy for this database, see JpaUtil.setLargeInListStrategy", boundValues, maxBoundValues);
+        List<Predicate> predicates = newArrayList();
+        for (List<Object> chunk : chunks) {
+            bindings.addShape("in", chunk.size());
+            CriteriaBuilder.In<Object> in = bindings.getBuilder().in((Expression<Object>) path);
+            for (Object value : chunk) {
+                in.value(bindings.bind(value));
+            }
+            predicates.add(in);
+        }
+        return predicates.size() == 1 ? predicates.get(0) : bindings.getBuilder().or(toArray(predicates, Predicate.class));
+    }
+
+    private boolean isLargeInList(int size) {
+        return largeInListStrategy != null && size >= largeInListThreshold;
+    }
+
+    /*
+     * The IN lists the given distinct values are split in, each padded to its bucket by repeating its last value.
+     */
+    private List<List<Object>> inListChunks(List<?> distinctValues) {
+        List<List<Object>> chunks = newArrayList();
+        if (distinctValues.size() <= inListChunkSize) {
+            chunks.add(padded(distinctValues));
+        } else {
+            for (List<?> chunk : Lists.partition(distinctValues, inListChunkSize)) {
+                chunks.add(padded(chunk));
+            }
+        }
+        return chunks;
+    }
+
+    private List<Object> padded(List<?> values) {
+        List<Object> padded = newArrayList(values);
+        for (int i = values.size(); i < inListBucket(values.size()); i++) {
+            padded.add(values.get(values.size() - 1));
+        }
+        return padded;
+    }
+
+    /*
+     * Maximum number of values in a single IN list, preferably a power of two as the lists are padded to one.
+     */
+    public void setInListChunkSize(int inListChunkSize) {
+        checkArgument(inListChunkSize > 0, "The IN list chunk size must be positive");
+        this.inListChunkSize = inListChunkSize;
+    }
+
+    public int getInListChunkSize() {
+        return inListChunkSize;
+    }
+
+    /*
+     * Maximum number of values a query built with IN lists may bind, padding included. JDBC drivers reject statements with more parameters than
+     * they support (32767 with older PostgreSQL drivers, 2100 on SQL Server): inPredicate fails with a clear message instead.
+     */
+    public void setMaxBoundValues(int maxBoundValues) {
+        checkArgument(maxBoundValues > 0, "The maximum number of bound values must be positive");
+        this.maxBoundValues = maxBoundValues;
+    }
+
+    public int getMaxBoundValues() {
+        return maxBoundValues;
+    }
+
+    /*
+     * Use the given strategy for the sets of at least threshold values, instead of an OR of IN lists. Pass a null strategy to always use IN lists.
+     */
+    public void setLargeInListStrategy(InListStrategy largeInListStrategy, int largeInListThreshold) {
+        checkArgument(largeInListStrategy == null || largeInListThreshold > inListChunkSize, "The threshold must be above the IN list chunk size");
+        this.largeInListStrategy = largeInListStrategy;
+        this.largeInListThreshold = largeInListThreshold;
+    }
+
+    /*
+     * The size an IN list of the given size is padded to: 1, 2, 4, 8, 16...
+     */
+    public static int inListBucket(int size) {
+        return size <= 1 ? size : Integer.highestOneBit(size - 1) << 1;
     }
 
     /*
      * Convert the passed propertyPath into a JPA path.
      * <p>
-     * Note: JPA will do joins if the property is in an associated entity.
+     * Note: JPA will do joins if the property is in an associated entity. The collections are joined again on each call, use the variant taking a
+     * {@link JoinRegistry} to share their joins.
      */
-    @SuppressWarnings("unchecked")
     public <E, F> Path<F> getPath(Root<E> root, List<Attribute<?, ?>> attributes) {
+        return getPath(root, attributes, new JoinRegistry());
+    }
+
+    /*
+     * Convert the passed propertyPath into a JPA path, reusing the fetches of the query and the joins of the given registry.
+     */
+    @SuppressWarnings("unchecked")
+    public <E, F> Path<F> getPath(Root<E> root, List<Attribute<?, ?>> attributes, JoinRegistry joins) {
         Path<?> path = root;
         for (Attribute<?, ?> attribute : attributes) {
             boolean found = false;
@@ -171,7 +288,7 @@ public class JpaUtil {
             }
             if (!found) {
                 if (attribute instanceof PluralAttribute) {
-                    path = ((From<?, ?>) path).join(attribute.getName(), JoinType.LEFT);
+                    path = joins.join((From<?, ?>) path, attribute.getName(), JoinType.LEFT);
                 } else {
                     path = path.get(attribute.getName());
                 }
@@ -180,6 +297,159 @@ public class JpaUtil {
         return (Path<F>) path;
     }
 
+    /*
+     * The joins the paths of a top level predicate of the given search may share: the joins of the whole query in or mode, joins of its own in and
+     * mode, as two predicates on a collection must then be allowed to match different elements.
+     */
+    public JoinRegistry predicateJoins(SearchParameters sp, QueryBindings bindings) {
+        return sp.isAndMode() ? new JoinRegistry() : bindings.getJoinRegistry();
+    }
+
+    /*
+     * Restrict the root to the entities having, for each of the given values, an element on the given collection path equal to it. Entities are
+     * compared by id. Falls back to one join per value when the bindings have no query to create the subqueries from.
+     */
+    @SuppressWarnings("unchecked")
+    public <E> Predicate allValuesPredicate(Root<E> root, List<Attribute<?, ?>> attributes, List<?> values, XToManyAndStrategy strategy,
+                                            QueryBindings bindings) {
+        CriteriaBuilder builder = bindings.getBuilder();
+        boolean byId = values.get(0) instanceof Identifiable;
+        List<Object> distinctValues = allValuesMatched(values);
+        CommonAbstractCriteria query = bindings.getQuery();
+        XToManyAndStrategy actualStrategy = query == null ? XToManyAndStrategy.JOIN : allValuesStrategy(root.getJavaType(), distinctValues.size(), strategy);
+        EntityDescriptor descriptor = entityDescriptorRegistry.get(root.getJavaType());
+        // group by matches the values with an IN list, which records its own size
+        bindings.addShape(actualStrategy, byId, actualStrategy == XToManyAndStrategy.GROUP_BY ? 0 : distinctValues.size());
+
+        switch (actualStrategy) {
+            case GROUP_BY: {
+                Subquery<Object> subquery = query.subquery(Object.class);
+                Root<E> owner = subquery.from((Class<E>) root.getJavaType());
+                Path<Object> path = valuePath(getPath(owner, attributes, new JoinRegistry()), byId);
+                Path<Object> ownerId = owner.get(descriptor.getIdAttribute().getName());
+                subquery.select(ownerId).where(inPredicate(bindings, path, distinctValues)).groupBy(ownerId);
+                subquery.having(builder.equal(builder.countDistinct(path), bindings.bind((long) distinctValues.size())));
+                return builder.in(root.get(descriptor.getIdAttribute().getName())).value(subquery);
+            }
+            case EXISTS: {
+                List<Predicate> predicates = newArrayList();
+                for (Object value : distinctValues) {
+                    Subquery<Object> subquery = query.subquery(Object.class);
+                    Path<Object> path = valuePath(getPath(subquery.correlate(root), attributes, new JoinRegistry()), byId);
+                    subquery.select(path).where(builder.equal(path, bindings.bind(value)));
+                    predicates.add(builder.exists(subquery));
+                }
+                return andPredicate(builder, predicates);
+            }
+            default: {
+                List<Predicate> predicates = newArrayList();
+                for (Object value : distinctValues) {
+                    predicates.add(builder.equal(valuePath(getPath(root, attributes, new JoinRegistry()), byId), bindings.bind(value)));
+                }
+                return andPredicate(builder, predicates);
+            }
+        }
+    }
+
+    /*
+     * The distinct values matched by allValuesPredicate, the entities being replaced by their id.
+     */
+    private List<Object> allValuesMatched(List<?> values) {
+        List<Object> distinctValues = newArrayList(newLinkedHashSet(values));
+        if (distinctValues.get(0) instanceof Identifiable) {
+            for (int i = 0; i < distinctValues.size(); i++) {
+                distinctValues.set(i, ((Identifiable<?>) distinctValues.get(i)).getId());
+            }
+        }
+        return distinctValues;
+    }
+
+    /*
+     * The strategy of allValuesPredicate for the given number of values, GROUP_BY requiring a simple primary key.
+     */
+    private XToManyAndStrategy allValuesStrategy(Class<?> type, int valueCount, XToManyAndStrategy strategy) {
+        XToManyAndStrategy actualStrategy = strategy.forValueCount(valueCount);
+        if (actualStrategy == XToManyAndStrategy.GROUP_BY && !entityDescriptorRegistry.get(type).hasSimplePk()) {
+            return XToManyAndStrategy.EXISTS;
+        }
+        return actualStrategy;
+    }
+
+    /*
+     * Whether a condition on the given path is built in a correlated EXISTS subquery, see {@link #existsPredicate}. With
+     * {@link CollectionPathStrategy#AUTO}, the join is kept when the condition may share it with an order on the same collection, in or mode.
+     */
+    public boolean useExists(CollectionPathStrategy strategy, List<Attribute<?, ?>> attributes, SearchParameters sp, QueryBindings bindings) {
+        if (strategy == CollectionPathStrategy.JOIN || !isCollectionPath(attributes) || bindings.getQuery() == null) {
+            return false;
+        }
+        if (strategy == CollectionPathStrategy.AUTO && !sp.isAndMode()) {
+            for (OrderBy orderBy : sp.getOrders()) {
+                if (sameCollection(orderBy.getAttributes(), attributes)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    public boolean isCollectionPath(List<Attribute<?, ?>> attributes) {
+        for (Attribute<?, ?> attribute : attributes) {
+            if (attribute.isCollection()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean sameCollection(List<Attribute<?, ?>> path, List<Attribute<?, ?>> otherPath) {
+        for (int i = 0; i < path.size() && i < otherPath.size(); i++) {
+            if (!path.get(i).getName().equals(otherPath.get(i).getName())) {
+                return false;
+            }
+            if (path.get(i).isCollection()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Build the predicate of the callback on a root correlated to the given one, in an EXISTS subquery: the joins it makes then no longer repeat the
+     * rows of the query. Returns null when the callback builds no predicate.
+     */
+    @SuppressWarnings("unchecked")
+    public <E> Predicate existsPredicate(Root<E> root, QueryBindings bindings, CorrelatedPredicate<E> correlatedPredicate) {
+        Subquery<Object> subquery = bindings.getQuery().subquery(Object.class);
+        Root<E> correlatedRoot = subquery.correlate(root);
+        Predicate predicate = correlatedPredicate.build(correlatedRoot, new JoinRegistry());
+        if (predicate == null) {
+            return null;
+        }
+        subquery.select((Expression<Object>) (Expression<?>) correlatedRoot).where(predicate);
+        return bindings.getBuilder().exists(subquery);
+    }
+
+    /**
+     * Builds a predicate on the root of a subquery, see {@link JpaUtil#existsPredicate}.
+     */
+    public interface CorrelatedPredicate<E> {
+        Predicate build(Root<E> correlatedRoot, JoinRegistry joins);
+    }
+
+    private Path<Object> valuePath(Path<Object> path, boolean byId) {
+        return byId ? idPath(path) : path;
+    }
+
+    /*
+     * The path to the @Id or @EmbeddedId attribute of the entity at the given path, whatever its name.
+     */
+    public <T> Path<T> idPath(Path<?> path) {
+        SingularAttribute<?, ?> idAttribute = entityDescriptorRegistry.get(path.getJavaType()).getIdAttribute();
+        checkArgument(idAttribute != null, "%s has an @IdClass, it cannot be matched on a single id attribute", path.getJavaType().getName());
+        return path.get(idAttribute.getName());
+    }
+
     public void verifyPath(Attribute<?, ?>... path) {
         verifyPath(newArrayList(path));
     }
@@ -202,53 +472,18 @@ public class JpaUtil {
     }
 
     public <T extends Identifiable<?>> String compositePkPropertyName(T entity) {
-        Class<?> entityClass = entity.getClass();
-        if (compositePkCache.containsKey(entityClass)) {
-            return compositePkCache.get(entityClass);
-        }
-
-        for (Method m : entity.getClass().getMethods()) {
-            if (m.getAnnotation(EmbeddedId.class) != null) {
-                String propertyName = methodToProperty(m);
-                compositePkCache.put(entityClass, propertyName);
-                return propertyName;
-            }
-        }
-        for (Field f : entity.getClass().getFields()) {
-            if (f.getAnnotation(EmbeddedId.class) != null) {
-                String propertyName = f.getName();
-                compositePkCache.put(entityClass, propertyName);
-                return propertyName;
-            }
-        }
-        compositePkCache.put(entityClass, null);
-        return null;
+        return entityDescriptorRegistry.get(entity).getCompositePkPropertyName();
     }
 
+    /*
+     * Whether the given attribute is an @Id, an @EmbeddedId is not: the attributes of a composite key are matched one by one.
+     */
     public <T> boolean isPk(ManagedType<T> mt, SingularAttribute<? super T, ?> attr) {
-        try {
-            Method m = MethodUtils.getAccessibleMethod(mt.getJavaType(), "get" + WordUtils.capitalize(attr.getName()), (Class<?>) null);
-            if (m != null && m.getAnnotation(Id.class) != null) {
-                return true;
-            }
-
-            Field field = mt.getJavaType().getField(attr.getName());
-            return field.getAnnotation(Id.class) != null;
-        } catch (Exception e) {
-            return false;
-        }
+        return attr.isId() && attr.getType().getPersistenceType() != Type.PersistenceType.EMBEDDABLE;
     }
 
     public <T> Object getValue(T example, Attribute<? super T, ?> attr) {
-        try {
-            if (attr.getJavaMember() instanceof Method) {
-                return ((Method) attr.getJavaMember()).invoke(example);
-            } else {
-                return ((Field) attr.getJavaMember()).get(example);
-            }
-        } catch (Exception e) {
-            throw propagate(e);
-        }
+        return attributeAccessors.get(example, attr);
     }
 
     public <T, A> SingularAttribute<? super T, A> attribute(ManagedType<? super T> mt, Attribute<? super T, A> attr) {
@@ -260,17 +495,7 @@ public class JpaUtil {
     }
 
     public <T extends Identifiable<?>> boolean hasSimplePk(T entity) {
-        for (Method m : entity.getClass().getMethods()) {
-            if (m.getAnnotation(Id.class) != null) {
-                return true;
-            }
-        }
-        for (Field f : entity.getClass().getFields()) {
-            if (f.getAnnotation(Id.class) != null) {
-                return true;
-            }
-        }
-        return false;
+        return entityDescriptorRegistry.get(entity).hasSimplePk();
     }
 
     public String[] toNames(Attribute<?, ?>... attributes) {
@@ -286,11 +511,7 @@ public class JpaUtil {
     }
 
     public String getEntityName(Identifiable<?> entity) {
-        Entity entityAnnotation = entity.getClass().getAnnotation(Entity.class);
-        if (isBlank(entityAnnotation.name())) {
-            return getClassWithoutInitializingProxy(entity).getSimpleName();
-        }
-        return entityAnnotation.name();
+        return entityDescriptorRegistry.get(entity).getEntityName();
     }
 
     public String methodToProperty(Method m) {
@@ -312,10 +533,43 @@ public class JpaUtil {
         }
     }
 
+    /*
+     * Name the joins and fetches made from the given from, at any depth, that have no alias yet. Hibernate generates the missing aliases each time a
+     * criteria query is rendered, starting over from the same names: the joins added to a criteria query after it was rendered must be named before
+     * it is rendered again.
+     */
+    public void aliasJoins(From<?, ?> from, String prefix) {
+        aliasJoins(from, prefix, 0);
+    }
+
+    private int aliasJoins(From<?, ?> from, String prefix, int count) {
+        List<From<?, ?>> joins = newArrayList();
+        joins.addAll(from.getJoins());
+        for (Fetch<?, ?> fetch : from.getFetches()) {
+            if (fetch instanceof Join<?, ?>) {
+                joins.add((Join<?, ?>) fetch);
+            }
+        }
+        for (From<?, ?> join : joins) {
+            if (join.getAlias() == null) {
+                join.alias(prefix + count++);
+            }
+            count = aliasJoins(join, prefix, count);
+        }
+        return count;
+    }
+
     public void applyPagination(Query query, SearchParameters sp) {
         if (sp.getFirst() > 0) {
             query.setFirstResult(sp.getFirst());
         }
+        applyMaxResults(query, sp);
+    }
+
+    /*
+     * Same as applyPagination, without the offset, which is replaced by a seek predicate in keyset pagination.
+     */
+    public void applyMaxResults(Query query, SearchParameters sp) {
         if (sp.getPageSize() > 0) {
             query.setMaxResults(sp.getPageSize());
         } else if (sp.getMaxResults() > 0) {
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2015 JAXIO http://www.jaxio.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jaxio.jpa.querybyexample;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * A page of results read with keyset pagination, along with the cursor to read the next one.
+ */
+public class KeysetPage<E> implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final List<E> content;
+    private final String nextCursor;
+
+    public KeysetPage(List<E> content, String nextCursor) {
+        this.content = content;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<E> getContent() {
+        return content;
+    }
+
+    /*
+     * The cursor to pass to {@link SearchParameters#afterCursor(String)} to read the next page, null when this page is the last one.
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public boolean hasNext() {
+        return nextCursor != null;
+    }
+}
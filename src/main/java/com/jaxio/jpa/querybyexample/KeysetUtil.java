@@ -0,0 +1,309 @@
+/*
+ * Copyright 2015 JAXIO http://www.jaxio.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jaxio.jpa.querybyexample;
+
+import com.google.common.io.BaseEncoding;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.Expression;
+import javax.persistence.criteria.Order;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.SingularAttribute;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Timestamp;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.UUID;
+
+import static com.google.common.collect.Lists.newArrayList;
+
+/**
+ * Helper for keyset (a.k.a. seek) pagination.
+ * <p>
+ * Instead of skipping <code>first</code> rows, the query restricts the rows to the ones located after the last row seen, according to the search
+ * orders followed by the primary key, which is used as a tie-breaker. For orders <code>a asc, b desc</code> the predicate is
+ * <code>a &gt; :a or (a = :a and b &lt; :b) or (a = :a and b = :b and id &gt; :id)</code>, which the database can resolve with an index range scan.
+ */
+@Named
+@Singleton
+public class KeysetUtil {
+    private static final int CURSOR_VERSION = 1;
+    private static final BaseEncoding CURSOR_ENCODING = BaseEncoding.base64Url().omitPadding();
+
+    @Inject
+    private JpaUtil jpaUtil;
+    @Inject
+    private EntityDescriptorRegistry entityDescriptorRegistry;
+
+    /*
+     * Build the seek predicate for the given last row values.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public <E> Predicate byKeyset(Root<E> root, QueryBindings bindings, SearchParameters sp, List<Object> lastValues) {
+        CriteriaBuilder builder = bindings.getBuilder();
+        List<Expression<Comparable>> paths = newArrayList();
+        List<Boolean> descending = newArrayList();
+        for (OrderBy orderBy : keysetOrders(root.getJavaType(), sp)) {
+            paths.add((Expression<Comparable>) path(root, orderBy));
+            descending.add(orderBy.isOrderDesc());
+        }
+        if (paths.size() != lastValues.size()) {
+            throw new IllegalArgumentException("Expecting " + paths.size() + " keyset values, got " + lastValues.size());
+        }
+
+        List<Predicate> predicates = newArrayList();
+        for (int i = 0; i < paths.size(); i++) {
+            List<Predicate> row = newArrayList();
+            for (int j = 0; j < i; j++) {
+                row.add(builder.equal(paths.get(j), bindings.bind(value(lastValues, j))));
+            }
+            Comparable value = value(lastValues, i);
+            row.add(descending.get(i) ? builder.lessThan(paths.get(i), bindings.bind(value)) : builder.greaterThan(paths.get(i), bindings.bind(value)));
+            predicates.add(jpaUtil.andPredicate(builder, row));
+        }
+        return jpaUtil.orPredicate(builder, predicates);
+    }
+
+    private Comparable<?> value(List<Object> values, int index) {
+        Object value = values.get(index);
+        if (value == null) {
+            throw new IllegalArgumentException("Keyset pagination does not support null values, check the order at position " + index);
+        }
+        return (Comparable<?>) value;
+    }
+
+    /*
+     * The paths of the keyset: the search orders paths followed by the primary key.
+     */
+    public <E> List<Path<?>> keysetPaths(Root<E> root, SearchParameters sp) {
+        List<Path<?>> paths = newArrayList();
+        for (OrderBy orderBy : keysetOrders(root.getJavaType(), sp)) {
+            paths.add(path(root, orderBy));
+        }
+        return paths;
+    }
+
+    /*
+     * The jpa orders of a keyset query: the search orders followed by the primary key.
+     */
+    public <E> List<Order> buildJpaOrders(Root<E> root, CriteriaBuilder builder, SearchParameters sp) {
+        List<Order> jpaOrders = newArrayList();
+        for (OrderBy orderBy : keysetOrders(root.getJavaType(), sp)) {
+            Path<?> path = path(root, orderBy);
+            jpaOrders.add(orderBy.isOrderDesc() ? builder.desc(path) : builder.asc(path));
+        }
+        return jpaOrders;
+    }
+
+    /*
+     * The search orders, with the primary key appended when it is not already there.
+     */
+    public List<OrderBy> keysetOrders(Class<?> type, SearchParameters sp) {
+        List<OrderBy> orders = sp.getOrders();
+        for (OrderBy orderBy : orders) {
+            if (isId(orderBy.getAttributes())) {
+                return orders;
+            }
+        }
+        orders.add(new OrderBy(OrderByDirection.ASC, idAttribute(type)));
+        return orders;
+    }
+
+    private boolean isId(List<Attribute<?, ?>> attributes) {
+        return attributes.size() == 1 && attributes.get(0) instanceof SingularAttribute && ((SingularAttribute<?, ?>) attributes.get(0)).isId();
+    }
+
+    private SingularAttribute<?, ?> idAttribute(Class<?> type) {
+        EntityDescriptor descriptor = entityDescriptorRegistry.get(type);
+        if (descriptor.getPkKind() != EntityDescriptor.PkKind.SIMPLE) {
+            throw new IllegalArgumentException("Keyset pagination requires a simple primary key on " + type.getName());
+        }
+        return descriptor.getIdAttribute();
+    }
+
+    private Path<?> path(Root<?> root, OrderBy orderBy) {
+        for (Attribute<?, ?> attribute : orderBy.getAttributes()) {
+            if (attribute.isCollection()) {
+                throw new IllegalArgumentException("Keyset pagination cannot order on the collection path " + orderBy.getPath());
+            }
+        }
+        return jpaUtil.getPath(root, orderBy.getAttributes());
+    }
+
+    /*
+     * The keyset values of the given row: the value of each order path, followed by the primary key.
+     */
+    public List<Object> keysetValues(Class<?> type, Object row, SearchParameters sp) {
+        List<Object> values = newArrayList();
+        for (OrderBy orderBy : keysetOrders(type, sp)) {
+            values.add(pathValue(row, orderBy.getAttributes()));
+        }
+        return values;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object pathValue(Object row, List<Attribute<?, ?>> attributes) {
+        Object value = row;
+        for (Attribute<?, ?> attribute : attributes) {
+            if (value == null) {
+                return null;
+            }
+            value = jpaUtil.getValue(value, (Attribute<Object, ?>) attribute);
+        }
+        return value;
+    }
+
+    /*
+     * Returns the keyset values to seek from: either the ones set on the search parameters, or the ones decoded from its cursor.
+     */
+    public List<Object> getKeysetValues(Class<?> type, SearchParameters sp) {
+        if (sp.getKeysetValues() != null && !sp.getKeysetValues().isEmpty()) {
+            return sp.getKeysetValues();
+        }
+        return decodeCursor(sp.getKeysetCursor(), type, sp);
+    }
+
+    // -----------------
+    // Cursor
+    // -----------------
+
+    /*
+     * Encode the keyset values of the given row into an opaque, url safe, token.
+     */
+    public String encodeCursor(Class<?> type, Object row, SearchParameters sp) {
+        List<Object> values = keysetValues(type, row, sp);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(CURSOR_VERSION);
+            out.writeShort(values.size());
+            for (Object value : values) {
+                out.writeBoolean(value != null);
+                if (value != null) {
+                    out.writeUTF(toString(value));
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return CURSOR_ENCODING.encode(bytes.toByteArray());
+    }
+
+    /*
+     * Decode the given token. The values are converted to the java types of the order paths, so no class name is read from the token.
+     */
+    public List<Object> decodeCursor(String cursor, Class<?> type, SearchParameters sp) {
+        List<OrderBy> orders = keysetOrders(type, sp);
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(CURSOR_ENCODING.decode(cursor)));
+            if (in.readByte() != CURSOR_VERSION || in.readShort() != orders.size()) {
+                throw new IllegalArgumentException("The cursor does not match the search orders");
+            }
+            List<Object> values = newArrayList();
+            for (OrderBy orderBy : orders) {
+                List<Attribute<?, ?>> attributes = orderBy.getAttributes();
+                values.add(in.readBoolean() ? fromString(in.readUTF(), attributes.get(attributes.size() - 1).getJavaType()) : null);
+            }
+            return values;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid cursor " + cursor, e);
+        }
+    }
+
+    private String toString(Object value) {
+        if (value instanceof Timestamp) {
+            return "T" + value;
+        } else if (value instanceof Date) {
+            return "D" + ((Date) value).getTime();
+        } else if (value instanceof Calendar) {
+            return "D" + ((Calendar) value).getTimeInMillis();
+        } else if (value instanceof Enum) {
+            return ((Enum<?>) value).name();
+        }
+        return value.toString();
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Object fromString(String value, Class<?> type) {
+        if (type == String.class) {
+            return value;
+        } else if (type == Integer.class || type == int.class) {
+            return Integer.valueOf(value);
+        } else if (type == Long.class || type == long.class) {
+            return Long.valueOf(value);
+        } else if (type == Short.class || type == short.class) {
+            return Short.valueOf(value);
+        } else if (type == Byte.class || type == byte.class) {
+            return Byte.valueOf(value);
+        } else if (type == Double.class || type == double.class) {
+            return Double.valueOf(value);
+        } else if (type == Float.class || type == float.class) {
+            return Float.valueOf(value);
+        } else if (type == Boolean.class || type == boolean.class) {
+            return Boolean.valueOf(value);
+        } else if (type == Character.class || type == char.class) {
+            return value.charAt(0);
+        } else if (type == BigDecimal.class) {
+            return new BigDecimal(value);
+        } else if (type == BigInteger.class) {
+            return new BigInteger(value);
+        } else if (type == UUID.class) {
+            return UUID.fromString(value);
+        } else if (type.isEnum()) {
+            return Enum.valueOf((Class<Enum>) type, value);
+        } else if (Date.class.isAssignableFrom(type) || Calendar.class.isAssignableFrom(type)) {
+            return dateFromString(value, type);
+        }
+        throw new IllegalArgumentException("Keyset pagination does not support values of type " + type.getName());
+    }
+
+    private Object dateFromString(String value, Class<?> type) {
+        if (value.startsWith("T")) {
+            Timestamp timestamp = Timestamp.valueOf(value.substring(1));
+            return Calendar.class.isAssignableFrom(type) ? calendar(timestamp.getTime()) : timestamp;
+        }
+        long time = Long.parseLong(value.substring(1));
+        if (Calendar.class.isAssignableFrom(type)) {
+            return calendar(time);
+        } else if (type == java.sql.Date.class) {
+            return new java.sql.Date(time);
+        } else if (type == java.sql.Time.class) {
+            return new java.sql.Time(time);
+        }
+        return new Date(time);
+    }
+
+    private Calendar calendar(long time) {
+        Calendar calendar = new GregorianCalendar();
+        calendar.setTimeInMillis(time);
+        return calendar;
+    }
+}
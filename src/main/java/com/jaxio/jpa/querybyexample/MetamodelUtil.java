@@ -16,22 +16,28 @@
 package com.jaxio.jpa.querybyexample;
 
 import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import org.springframework.context.annotation.Lazy;
 
 import javax.inject.Named;
 import javax.inject.Singleton;
 import javax.persistence.*;
 import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.ManagedType;
+import javax.persistence.metamodel.Metamodel;
 import javax.persistence.metamodel.PluralAttribute;
 import javax.persistence.metamodel.SingularAttribute;
+import javax.persistence.metamodel.Type;
 import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Field;
 import java.util.Collection;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
 
 import static com.google.common.collect.Lists.newArrayList;
-import static com.google.common.collect.Maps.newHashMap;
+import static com.google.common.collect.Maps.newConcurrentMap;
 
 @Named
 @Singleton
@@ -43,43 +49,106 @@ public class MetamodelUtil {
         return instance;
     }
 
-    private Map<Class<?>, Class<?>> metamodelCache = newHashMap();
+    private static final Splitter PATH_SPLITTER = Splitter.on(".");
+
+    private final ConcurrentMap<Class<?>, Class<?>> metamodelCache = newConcurrentMap();
+    private final ConcurrentMap<PathKey, List<Attribute<?, ?>>> pathCache = newConcurrentMap();
 
     public MetamodelUtil() {
         instance = this;
     }
 
     public SingularAttribute<?, ?> toAttribute(String property, Class<?> from) {
-        try {
-            Class<?> metamodelClass = getCachedClass(from);
-            Field field = metamodelClass.getField(property);
-            return (SingularAttribute<?, ?>) field.get(null);
-        } catch (Exception e) {
-            throw new IllegalArgumentException(e);
+        List<Attribute<?, ?>> attributes = toAttributes(property, from);
+        if (attributes.size() != 1 || !(attributes.get(0) instanceof SingularAttribute)) {
+            throw new IllegalArgumentException(property + " is not a singular attribute of " + from.getName());
         }
+        return (SingularAttribute<?, ?>) attributes.get(0);
     }
 
+    /*
+     * Resolve the given dotted path from the given class. The returned list is immutable and shared by all the lookups of the path: copy it to
+     * build another path from it.
+     */
     public List<Attribute<?, ?>> toAttributes(String path, Class<?> from) {
+        PathKey key = new PathKey(from, path);
+        List<Attribute<?, ?>> attributes = pathCache.get(key);
+        if (attributes == null) {
+            attributes = resolve(path, from);
+            List<Attribute<?, ?>> previous = pathCache.putIfAbsent(key, attributes);
+            if (previous != null) {
+                attributes = previous;
+            }
+        }
+        return attributes;
+    }
+
+    private List<Attribute<?, ?>> resolve(String path, Class<?> from) {
         try {
-            List<Attribute<?, ?>> attributes = newArrayList();
+            ImmutableList.Builder<Attribute<?, ?>> attributes = ImmutableList.builder();
             Class<?> current = from;
-            for (String pathItem : Splitter.on(".").split(path)) {
+            for (String pathItem : PATH_SPLITTER.split(path)) {
                 Class<?> metamodelClass = getCachedClass(current);
                 Field field = metamodelClass.getField(pathItem);
                 Attribute<?, ?> attribute = (Attribute<?, ?>) field.get(null);
                 attributes.add(attribute);
-                if (attribute instanceof PluralAttribute) {
-                    current = ((PluralAttribute<?, ?, ?>) attribute).getElementType().getJavaType();
-                } else {
-                    current = attribute.getJavaType();
-                }
+                current = targetType(attribute);
             }
-            return attributes;
+            return attributes.build();
         } catch (Exception e) {
             throw new IllegalArgumentException(e);
         }
     }
 
+    /*
+     * Resolve upfront all the paths of the given metamodel up to the given depth, so that lookups by path made at runtime are served from the cache.
+     * Meant to be called once at startup, for example with <code>entityManagerFactory.getMetamodel()</code>.
+     */
+    public void prefill(Metamodel metamodel, int maxDepth) {
+        for (EntityType<?> entityType : metamodel.getEntities()) {
+            prefill(entityType.getJavaType(), entityType, Lists.<Attribute<?, ?>>newArrayList(), maxDepth);
+        }
+    }
+
+    private void prefill(Class<?> from, ManagedType<?> mt, List<Attribute<?, ?>> parent, int maxDepth) {
+        if (parent.size() >= maxDepth) {
+            return;
+        }
+        for (Attribute<?, ?> attribute : mt.getAttributes()) {
+            List<Attribute<?, ?>> attributes = newArrayList(parent);
+            attributes.add(attribute);
+            pathCache.putIfAbsent(new PathKey(from, toPath(attributes)), ImmutableList.copyOf(attributes));
+
+            Type<?> target = attribute instanceof PluralAttribute ? ((PluralAttribute<?, ?, ?>) attribute).getElementType()
+                    : ((SingularAttribute<?, ?>) attribute).getType();
+            if (target instanceof ManagedType) {
+                prefill(from, (ManagedType<?>) target, attributes, maxDepth);
+            }
+        }
+    }
+
+    /*
+     * Number of resolved paths.
+     */
+    public int getCachedPathCount() {
+        return pathCache.size();
+    }
+
+    /*
+     * Forget the resolved paths, they are resolved again on their next lookup.
+     */
+    public void clear() {
+        pathCache.clear();
+    }
+
+    private Class<?> targetType(Attribute<?, ?> attribute) {
+        if (attribute instanceof PluralAttribute) {
+            return ((PluralAttribute<?, ?, ?>) attribute).getElementType().getJavaType();
+        } else {
+            return attribute.getJavaType();
+        }
+    }
+
     public String toPath(List<Attribute<?, ?>> attributes) {
         StringBuilder path = new StringBuilder();
         for (Attribute<?, ?> attribute : attributes) {
@@ -92,14 +161,43 @@ public class MetamodelUtil {
     }
 
     private Class<?> getCachedClass(Class<?> current) throws ClassNotFoundException {
-        if (metamodelCache.containsKey(current)) {
-            return metamodelCache.get(current);
+        Class<?> metamodelClass = metamodelCache.get(current);
+        if (metamodelClass == null) {
+            metamodelClass = Class.forName(current.getName() + "_", true, current.getClassLoader());
+            metamodelCache.putIfAbsent(current, metamodelClass);
         }
-        Class<?> metamodelClass = Class.forName(current.getName() + "_");
-        metamodelCache.put(current, metamodelClass);
         return metamodelClass;
     }
 
+    private static final class PathKey {
+        private final Class<?> from;
+        private final String path;
+        private final int hashCode;
+
+        PathKey(Class<?> from, String path) {
+            this.from = from;
+            this.path = path;
+            this.hashCode = 31 * from.hashCode() + path.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof PathKey)) {
+                return false;
+            }
+            PathKey key = (PathKey) other;
+            return from == key.from && path.equals(key.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
     /**
      * Retrieves cascade from metamodel attribute
      *
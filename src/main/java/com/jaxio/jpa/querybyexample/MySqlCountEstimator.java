@@ -0,0 +1,66 @@
+/*
+ * Copyright 2015 JAXIO http://www.jaxio.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jaxio.jpa.querybyexample;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Multiplies the estimated rows of each table of the <code>EXPLAIN</code> output, weighted by the filtered percentage when the server reports it.
+ */
+public class MySqlCountEstimator implements CountEstimator {
+
+    @Override
+    public Long estimate(Connection connection, String sql, Object[] parameters) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement("explain " + sql);
+        try {
+            for (int i = 0; i < parameters.length; i++) {
+                statement.setObject(i + 1, parameters[i]);
+            }
+            ResultSet resultSet = statement.executeQuery();
+            try {
+                boolean hasFiltered = hasColumn(resultSet, "filtered");
+                double rows = 1;
+                boolean found = false;
+                while (resultSet.next()) {
+                    long tableRows = resultSet.getLong("rows");
+                    if (resultSet.wasNull()) {
+                        continue;
+                    }
+                    double filtered = hasFiltered ? resultSet.getDouble("filtered") : 100;
+                    rows *= tableRows * filtered / 100;
+                    found = true;
+                }
+                return found ? Long.valueOf(Math.round(rows)) : null;
+            } finally {
+                resultSet.close();
+            }
+        } finally {
+            statement.close();
+        }
+    }
+
+    private boolean hasColumn(ResultSet resultSet, String name) throws SQLException {
+        for (int i = 1; i <= resultSet.getMetaData().getColumnCount(); i++) {
+            if (name.equalsIgnoreCase(resultSet.getMetaData().getColumnLabel(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
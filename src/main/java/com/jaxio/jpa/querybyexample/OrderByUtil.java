@@ -36,10 +36,12 @@ public class OrderByUtil {
     @Inject
     private JpaUtil jpaUtil;
 
-    public <E> List<Order> buildJpaOrders(Iterable<OrderBy> orders, Root<E> root, CriteriaBuilder builder, SearchParameters sp) {
+    public <E> List<Order> buildJpaOrders(Iterable<OrderBy> orders, Root<E> root, QueryBindings bindings, SearchParameters sp) {
+        CriteriaBuilder builder = bindings.getBuilder();
         List<Order> jpaOrders = newArrayList();
+        JoinRegistry joins = bindings.getJoinRegistry();
         for (OrderBy ob : orders) {
-            Path<?> path = jpaUtil.getPath(root, ob.getAttributes());
+            Path<?> path = jpaUtil.getPath(root, ob.getAttributes(), joins);
             jpaOrders.add(ob.isOrderDesc() ? builder.desc(path) : builder.asc(path));
         }
         return jpaOrders;
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2015 JAXIO http://www.jaxio.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jaxio.jpa.querybyexample;
+
+import javax.persistence.PersistenceException;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * A page of results along with the total number of results of the search. The total may be computed concurrently, in which case it is resolved on
+ * first access.
+ */
+public class Page<E> implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final List<E> content;
+    private final int first;
+    private final int pageSize;
+    private long total;
+    private transient Future<Long> pendingTotal;
+
+    public Page(List<E> content, int first, int pageSize, long total) {
+        this.content = content;
+        this.first = first;
+        this.pageSize = pageSize;
+        this.total = total;
+    }
+
+    public Page(List<E> content, int first, int pageSize, Future<Long> pendingTotal) {
+        this(content, first, pageSize, -1);
+        this.pendingTotal = pendingTotal;
+    }
+
+    public List<E> getContent() {
+        return content;
+    }
+
+    /*
+     * Position of the first result of this page, numbered from 0.
+     */
+    public int getFirst() {
+        return first;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /*
+     * Total number of results of the search, all pages included. Waits for the count when it is computed concurrently.
+     *
+     * @throws java.util.concurrent.CancellationException if the count was cancelled.
+     */
+    public synchronized long getTotal() {
+        if (pendingTotal != null) {
+            try {
+                total = pendingTotal.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new PersistenceException("Interrupted while waiting for the total", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new PersistenceException("Could not count the results", e.getCause());
+            }
+            pendingTotal = null;
+        }
+        return total;
+    }
+
+    /*
+     * Whether getTotal returns without waiting.
+     */
+    public synchronized boolean isTotalResolved() {
+        return pendingTotal == null || pendingTotal.isDone();
+    }
+
+    /*
+     * Cancel the concurrent count, when the total is not needed. Returns false if the total is already resolved.
+     */
+    public synchronized boolean cancelTotal() {
+        return pendingTotal != null && pendingTotal.cancel(true);
+    }
+
+    public boolean hasNext() {
+        if (pageSize > 0 && content.size() < pageSize) {
+            return false;
+        }
+        return first + content.size() < getTotal();
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        getTotal();
+        out.defaultWriteObject();
+    }
+}
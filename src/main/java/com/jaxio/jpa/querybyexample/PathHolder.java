@@ -49,6 +49,9 @@ public class PathHolder implements Serializable {
         getAttributes();
     }
 
+    /*
+     * The attributes of the path. When the path was given as a string, the list is the immutable one shared by {@link MetamodelUtil}.
+     */
     public List<Attribute<?, ?>> getAttributes() {
         if (attributes == null) {
             attributes = MetamodelUtil.getInstance().toAttributes(path, from);
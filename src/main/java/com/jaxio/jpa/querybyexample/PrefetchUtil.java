@@ -0,0 +1,299 @@
+/*
+ * Copyright 2015 JAXIO http://www.jaxio.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jaxio.jpa.querybyexample;
+
+import org.hibernate.proxy.HibernateProxy;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import javax.persistence.AttributeNode;
+import javax.persistence.EntityGraph;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceUnitUtil;
+import javax.persistence.Subgraph;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.JoinType;
+import javax.persistence.criteria.Root;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.ManagedType;
+import javax.persistence.metamodel.PluralAttribute;
+import javax.persistence.metamodel.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Sets.newIdentityHashSet;
+import static org.hibernate.proxy.HibernateProxyHelper.getClassWithoutInitializingProxy;
+
+/**
+ * Initializes the associations of a list of entities with one query per association level, instead of one query per entity or a single query
+ * whose joins multiply the rows. See {@link SearchParameters#prefetch(Attribute...)}.
+ */
+@Named
+@Singleton
+public class PrefetchUtil {
+
+    @Inject
+    private JpaUtil jpaUtil;
+    @Inject
+    private AttributeAccessors attributeAccessors;
+    @Inject
+    private EntityDescriptorRegistry entityDescriptorRegistry;
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    /*
+     * Initialize the associations on the given paths for all the given managed entities. Each level of a path costs at most one query, which
+     * loads the level for all the entities reached by the previous one; levels already loaded cost nothing. Returns the number of queries issued.
+     */
+    public int prefetch(Collection<?> entities, List<List<Attribute<?, ?>>> paths) {
+        int queryCount = 0;
+        for (List<Attribute<?, ?>> path : paths) {
+            Set<Object> owners = distinct(entities);
+            for (Attribute<?, ?> attribute : path) {
+                if (owners.isEmpty()) {
+                    break;
+                }
+                queryCount += load(owners, attribute);
+                owners = next(owners, attribute);
+            }
+        }
+        return queryCount;
+    }
+
+    /*
+     * Initialize the associations of the given entity graph for all the given managed entities of the given type, walking the graph level by
+     * level: each association of the graph costs at most one query, shared by all the entities reached by its parent. A subgraph reached again
+     * through itself (recursive graph) is not walked twice. Returns the number of queries issued.
+     */
+    public int prefetch(Collection<?> entities, Class<?> rootType, EntityGraph<?> entityGraph) {
+        return prefetch(distinct(entities), entityManager.getMetamodel().managedType(rootType), entityGraph.getAttributeNodes(),
+                newIdentityHashSet());
+    }
+
+    private int prefetch(Set<Object> owners, ManagedType<?> managedType, List<AttributeNode<?>> attributeNodes, Set<Object> visitedSubgraphs) {
+        int queryCount = 0;
+        for (AttributeNode<?> attributeNode : attributeNodes) {
+            Attribute<?, ?> attribute = managedType.getAttribute(attributeNode.getAttributeName());
+            if (owners.isEmpty() || attribute.getPersistentAttributeType() == Attribute.PersistentAttributeType.BASIC) {
+                continue;
+            }
+            queryCount += load(owners, attribute);
+            if (attributeNode.getSubgraphs().isEmpty()) {
+                continue;
+            }
+            Set<Object> next = next(owners, attribute);
+            for (Subgraph<?> subgraph : attributeNode.getSubgraphs().values()) {
+                if (visitedSubgraphs.add(subgraph)) {
+                    queryCount += prefetch(instancesOf(next, subgraph.getClassType()), entityManager.getMetamodel().managedType(subgraph.getClassType()),
+                            subgraph.getAttributeNodes(), visitedSubgraphs);
+                    visitedSubgraphs.remove(subgraph);
+                }
+            }
+        }
+        return queryCount;
+    }
+
+    /*
+     * The association paths of the given entity graph, one per leaf of the graph, so that the whole graph can be prefetched level by level.
+     * Basic attributes of the graph are ignored.
+     */
+    public List<List<Attribute<?, ?>>> paths(Class<?> rootType, EntityGraph<?> entityGraph) {
+        List<List<Attribute<?, ?>>> paths = newArrayList();
+        addPaths(paths, new ArrayList<Attribute<?, ?>>(), entityManager.getMetamodel().managedType(rootType), entityGraph.getAttributeNodes(),
+                newIdentityHashSet());
+        return paths;
+    }
+
+    private void addPaths(List<List<Attribute<?, ?>>> paths, List<Attribute<?, ?>> parent, ManagedType<?> managedType,
+                          List<AttributeNode<?>> attributeNodes, Set<Object> visitedSubgraphs) {
+        for (AttributeNode<?> attributeNode : attributeNodes) {
+            Attribute<?, ?> attribute = managedType.getAttribute(attributeNode.getAttributeName());
+            if (attribute.getPersistentAttributeType() == Attribute.PersistentAttributeType.BASIC) {
+                continue;
+            }
+            List<Attribute<?, ?>> path = newArrayList(parent);
+            path.add(attribute);
+            int pathCount = paths.size();
+            for (Subgraph<?> subgraph : attributeNode.getSubgraphs().values()) {
+                if (visitedSubgraphs.add(subgraph)) {
+                    addPaths(paths, path, entityManager.getMetamodel().managedType(subgraph.getClassType()), subgraph.getAttributeNodes(),
+                            visitedSubgraphs);
+                    visitedSubgraphs.remove(subgraph);
+                }
+            }
+            if (paths.size() == pathCount) {
+                // leaf of the graph, or subgraphs of basic attributes only
+                paths.add(path);
+            }
+        }
+    }
+
+    /*
+     * Load the given attribute of the given owners where it is not loaded yet. Returns the number of queries issued, 0 or 1.
+     */
+    private int load(Set<Object> owners, Attribute<?, ?> attribute) {
+        if (attribute.isCollection() && attribute.getDeclaringType().getPersistenceType() == Type.PersistenceType.EMBEDDABLE) {
+            // the owners are embeddables: there is no entity to query them by
+            throw new IllegalArgumentException("Cannot prefetch the collection " + attribute.getName() + " of the embeddable "
+                    + attribute.getDeclaringType().getJavaType().getName() + ", fetch it instead");
+        }
+        PersistenceUnitUtil persistenceUnitUtil = entityManager.getEntityManagerFactory().getPersistenceUnitUtil();
+        List<Object> notLoaded = newArrayList();
+        for (Object owner : owners) {
+            if (!persistenceUnitUtil.isLoaded(owner, attribute.getName())) {
+                notLoaded.add(owner);
+            }
+        }
+        if (notLoaded.isEmpty()) {
+            return 0;
+        }
+        if (attribute.isCollection()) {
+            fetchCollection(notLoaded, attribute);
+            return 1;
+        }
+        if (isEntity(attribute)) {
+            List<Object> targets = newArrayList();
+            for (Object owner : notLoaded) {
+                Object target = attributeAccessors.get(unproxy(owner), attribute);
+                if (target != null && !persistenceUnitUtil.isLoaded(target)) {
+                    targets.add(target);
+                }
+            }
+            if (!targets.isEmpty()) {
+                load(targets, attribute.getJavaType());
+                return 1;
+            }
+        }
+        return 0;
+    }
+
+    /*
+     * The entities or embeddables held by the given attribute of the given owners, the owners of the next level.
+     */
+    private Set<Object> next(Set<Object> owners, Attribute<?, ?> attribute) {
+        Set<Object> next = newIdentityHashSet();
+        for (Object owner : owners) {
+            Object value = attributeAccessors.get(unproxy(owner), attribute);
+            if (value instanceof Map) {
+                value = ((Map<?, ?>) value).values();
+            }
+            if (value instanceof Collection) {
+                next.addAll(distinct((Collection<?>) value));
+            } else if (value != null) {
+                next.add(unproxy(value));
+            }
+        }
+        return next;
+    }
+
+    /*
+     * select o from Owner o left join fetch o.attribute where o in (...)
+     */
+    private void fetchCollection(List<Object> owners, Attribute<?, ?> attribute) {
+        // a collection of a mapped superclass is queried on the entity of the owners
+        Class<?> ownerType = attribute.getDeclaringType().getPersistenceType() == Type.PersistenceType.ENTITY
+                ? attribute.getDeclaringType().getJavaType() : getClassWithoutInitializingProxy(owners.get(0));
+        QueryBindings bindings = new QueryBindings(entityManager.getCriteriaBuilder());
+        CriteriaBuilder builder = bindings.getBuilder();
+        CriteriaQuery<Object> criteriaQuery = builder.createQuery(Object.class);
+        Root<?> root = criteriaQuery.from(ownerType);
+        root.fetch(attribute.getName(), JoinType.LEFT);
+        criteriaQuery.select(root).distinct(true).where(jpaUtil.inPredicate(bindings, root, owners));
+        run(criteriaQuery, bindings);
+    }
+
+    /*
+     * select t from Target t where t.id in (...): the proxies of the given entities then find them in the persistence context. The identifiers
+     * are bound rather than the proxies, as hashing a proxy to remove the duplicates would initialize it with a query of its own.
+     */
+    private void load(List<Object> entities, Class<?> entityType) {
+        QueryBindings bindings = new QueryBindings(entityManager.getCriteriaBuilder());
+        CriteriaBuilder builder = bindings.getBuilder();
+        CriteriaQuery<Object> criteriaQuery = builder.createQuery(Object.class);
+        Root<?> root = criteriaQuery.from(entityType);
+        EntityDescriptor descriptor = entityDescriptorRegistry.get(entityType);
+        if (descriptor.hasSimplePk()) {
+            List<Object> ids = newArrayList();
+            for (Object entity : entities) {
+                ids.add(identifier(entity));
+            }
+            criteriaQuery.select(root).where(jpaUtil.inPredicate(bindings, root.get(descriptor.getIdAttribute().getName()), ids));
+        } else {
+            criteriaQuery.select(root).where(jpaUtil.inPredicate(bindings, root, entities));
+        }
+        run(criteriaQuery, bindings);
+    }
+
+    private void run(CriteriaQuery<Object> criteriaQuery, QueryBindings bindings) {
+        TypedQuery<Object> typedQuery = entityManager.createQuery(criteriaQuery);
+        bindings.bind(typedQuery);
+        typedQuery.getResultList();
+    }
+
+    private boolean isEntity(Attribute<?, ?> attribute) {
+        return attribute.getPersistentAttributeType() == Attribute.PersistentAttributeType.MANY_TO_ONE
+                || attribute.getPersistentAttributeType() == Attribute.PersistentAttributeType.ONE_TO_ONE;
+    }
+
+    private Set<Object> distinct(Collection<?> values) {
+        Set<Object> distinct = newIdentityHashSet();
+        for (Object value : values) {
+            if (value != null) {
+                distinct.add(unproxy(value));
+            }
+        }
+        return distinct;
+    }
+
+    private Set<Object> instancesOf(Set<Object> values, Class<?> type) {
+        Set<Object> instances = newIdentityHashSet();
+        for (Object value : values) {
+            if (type.isInstance(value)) {
+                instances.add(value);
+            }
+        }
+        return instances;
+    }
+
+    /*
+     * The identifier of the given entity, read from its proxy without initializing it.
+     */
+    private Object identifier(Object entity) {
+        if (entity instanceof HibernateProxy) {
+            return ((HibernateProxy) entity).getHibernateLazyInitializer().getIdentifier();
+        }
+        return entityManager.getEntityManagerFactory().getPersistenceUnitUtil().getIdentifier(entity);
+    }
+
+    /*
+     * The entity behind the given proxy. A proxy may stay uninitialized after its entity was loaded by another query: initializing it then
+     * finds the entity in the persistence context without any query.
+     */
+    private Object unproxy(Object value) {
+        if (value instanceof HibernateProxy) {
+            return ((HibernateProxy) value).getHibernateLazyInitializer().getImplementation();
+        }
+        return value;
+    }
+}
@@ -58,6 +58,7 @@ public class PropertySelector<E, F> implements Serializable {
     private SearchMode searchMode; // for string property only.
     private Boolean notIncludingNull;
     private boolean orMode = true;
+    private CollectionPathStrategy collectionPathStrategy = CollectionPathStrategy.AUTO;
 
     public PropertySelector(Attribute<?, ?>... attributes) {
         this.pathHolder = new PathHolder(checkNotNull(attributes));
@@ -176,6 +177,22 @@ public class PropertySelector<E, F> implements Serializable {
         return this;
     }
 
+    public CollectionPathStrategy getCollectionPathStrategy() {
+        return collectionPathStrategy;
+    }
+
+    /*
+     * How this selector restricts the results when its path crosses a collection. Defaults to {@link CollectionPathStrategy#AUTO}.
+     */
+    public void setCollectionPathStrategy(CollectionPathStrategy collectionPathStrategy) {
+        this.collectionPathStrategy = checkNotNull(collectionPathStrategy);
+    }
+
+    public PropertySelector<E, F> collectionPathStrategy(CollectionPathStrategy collectionPathStrategy) {
+        setCollectionPathStrategy(collectionPathStrategy);
+        return this;
+    }
+
     @Override
     public String toString() {
         return ToStringBuilder.reflectionToString(this);
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2015 JAXIO http://www.jaxio.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jaxio.jpa.querybyexample;
+
+import javax.persistence.Query;
+import javax.persistence.criteria.CommonAbstractCriteria;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.ParameterExpression;
+import java.util.List;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static java.util.Collections.unmodifiableList;
+import static org.hibernate.proxy.HibernateProxyHelper.getClassWithoutInitializingProxy;
+
+/**
+ * Collects the values used by the predicates of a criteria query as named parameters instead of literals.
+ * <p>
+ * The predicate helpers pass each value through {@link #bind(Object)}, which returns a {@link ParameterExpression} named <code>qbe0</code>,
+ * <code>qbe1</code>... in call order, to give to the builder in place of the value. The same search walked twice therefore produces the same
+ * parameters, in the same order, which is what the {@link QueryShapeCache} relies on. Values given directly to the builder are rendered as literals.
+ * <p>
+ * Along with the values, the helpers record through {@link #addShape(Object...)} the choices that change the query beyond them: the attributes of
+ * the example that are set, the strategy used for a collection path, the size of an IN list... These choices make the shape of the query, read once
+ * its predicate is built: the shape and the values thus come from the same walk.
+ * <p>
+ * The bindings also carry the query being built and its {@link JoinRegistry}: they are given to the predicate and order helpers, which create their
+ * subqueries from that query and share their joins through that registry.
+ */
+public class QueryBindings {
+    public static final String PARAMETER_PREFIX = "qbe";
+
+    private final CriteriaBuilder builder;
+    private final List<ParameterExpression<?>> parameters = newArrayList();
+    private final List<Object> values = newArrayList();
+    private final List<Object> shape = newArrayList();
+    private boolean unrecordedValues;
+    private final JoinRegistry joinRegistry = new JoinRegistry();
+    private CommonAbstractCriteria query;
+
+    public QueryBindings(CriteriaBuilder builder) {
+        this.builder = builder;
+    }
+
+    public static String parameterName(int index) {
+        return PARAMETER_PREFIX + index;
+    }
+
+    /*
+     * The builder to use to construct the query.
+     */
+    public CriteriaBuilder getBuilder() {
+        return builder;
+    }
+
+    /*
+     * The joins shared by the paths of the query, see {@link JoinRegistry}.
+     */
+    public JoinRegistry getJoinRegistry() {
+        return joinRegistry;
+    }
+
+    /*
+     * The query whose predicates are being built, from which their subqueries are created. Null until set.
+     */
+    public CommonAbstractCriteria getQuery() {
+        return query;
+    }
+
+    public void setQuery(CommonAbstractCriteria query) {
+        this.query = query;
+    }
+
+    /*
+     * The values recorded so far, in parameter order.
+     */
+    public List<Object> getValues() {
+        return unmodifiableList(values);
+    }
+
+    /*
+     * The choices recorded so far, in call order.
+     */
+    public List<Object> getShape() {
+        return unmodifiableList(shape);
+    }
+
+    /*
+     * Record a choice made while building the predicates that changes the query beyond the values it binds.
+     */
+    public void addShape(Object... parts) {
+        for (Object part : parts) {
+            shape.add(part);
+        }
+    }
+
+    /*
+     * Whether some values of the query are not recorded, for instance those kept by the large IN list strategy or those a mandatory predicate
+     * renders as literals: the shape and the values then do not tell the query, which is not cached.
+     */
+    public boolean hasUnrecordedValues() {
+        return unrecordedValues;
+    }
+
+    public void setUnrecordedValues(boolean unrecordedValues) {
+        this.unrecordedValues = unrecordedValues;
+    }
+
+    /*
+     * Register the given value, which must not be null, and return the parameter expression standing for it.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> ParameterExpression<T> bind(T value) {
+        ParameterExpression<T> parameter = builder.parameter((Class<T>) parameterType(value), parameterName(values.size()));
+        parameters.add(parameter);
+        values.add(value);
+        return parameter;
+    }
+
+    /*
+     * Set the recorded values on the query created from the criteria query.
+     */
+    @SuppressWarnings("unchecked")
+    public void bind(Query query) {
+        for (int i = 0; i < parameters.size(); i++) {
+            query.setParameter((ParameterExpression<Object>) parameters.get(i), values.get(i));
+        }
+    }
+
+    private Class<?> parameterType(Object value) {
+        if (value instanceof Enum) {
+            return ((Enum<?>) value).getDeclaringClass();
+        }
+        return getClassWithoutInitializingProxy(value);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2015 JAXIO http://www.jaxio.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jaxio.jpa.querybyexample;
+
+import java.util.List;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.unmodifiableList;
+
+/**
+ * Key used by the {@link QueryShapeCache}. It holds everything that drives the JPQL generated for a search (example attributes set, selectors, ranges,
+ * orders, fetches, search mode...) but none of the values bound to it. These values, recorded along with the shape, are carried aside and are not
+ * part of the key.
+ */
+public final class QueryShape {
+
+    /*
+     * The kind of query built for the shape.
+     */
+    public enum Kind {
+        FIND, FIND_PROPERTY, COUNT, COUNT_PROPERTY
+    }
+
+    private final List<Object> parts;
+    private final List<Object> values;
+    private final int hashCode;
+
+    public QueryShape(List<Object> parts) {
+        this(parts, emptyList());
+    }
+
+    public QueryShape(List<Object> parts, List<Object> values) {
+        this.parts = unmodifiableList(newArrayList(parts));
+        this.values = unmodifiableList(newArrayList(values));
+        this.hashCode = this.parts.hashCode();
+    }
+
+    public List<Object> getParts() {
+        return parts;
+    }
+
+    /*
+     * The values bound by the search predicates, in parameter order, including those of the mandatory predicate.
+     */
+    public List<Object> getValues() {
+        return values;
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        QueryShape other = (QueryShape) obj;
+        return hashCode == other.hashCode && parts.equals(other.parts);
+    }
+
+    @Override
+    public String toString() {
+        return parts.toString();
+    }
+}
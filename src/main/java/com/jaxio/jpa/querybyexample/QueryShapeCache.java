@@ -0,0 +1,216 @@
+/*
+ * Copyright 2015 JAXIO http://www.jaxio.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jaxio.jpa.querybyexample;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import javax.persistence.metamodel.Attribute;
+import java.util.List;
+
+import static com.google.common.collect.Lists.newArrayList;
+
+/**
+ * Bounded cache of the JPQL rendered for a given {@link QueryShape}.
+ * <p>
+ * The shape of a search is read from its {@link QueryBindings} once its predicate is built: the predicate helpers record there the choices that
+ * change the query along with the values they bind, so that the shape and the values come from the same walk. A hit thus still builds the
+ * predicate nodes; the repository then binds the values to the cached JPQL: only the rest of the criteria query (fetches, orders, selection), its
+ * rendering and the parsing of the JPQL are skipped, Hibernate serving the SQL from its query plan cache since the JPQL string is identical.
+ * <p>
+ * A search whose mandatory predicate is not described by {@link GenericRepository#getMandatoryPredicateShape} is never cached: that predicate may
+ * render values of the caller context as literals.
+ */
+@Named
+@Singleton
+public class QueryShapeCache {
+    private static final Logger log = LoggerFactory.getLogger(QueryShapeCache.class);
+    public static final int DEFAULT_MAXIMUM_SIZE = 500;
+
+    @Inject
+    private JpaUtil jpaUtil;
+
+    private Cache<QueryShape, CompiledQuery> cache;
+
+    public QueryShapeCache() {
+        setMaximumSize(DEFAULT_MAXIMUM_SIZE);
+    }
+
+    /*
+     * Set the maximum number of shapes kept. Clears the cache.
+     */
+    public void setMaximumSize(int maximumSize) {
+        this.cache = CacheBuilder.newBuilder().maximumSize(maximumSize).recordStats().build();
+    }
+
+    /*
+     * Returns the shape of the search whose predicate was built with the given bindings, along with the values it binds, or null when these values
+     * cannot be told.
+     */
+    public QueryShape shapeOf(QueryShape.Kind kind, Class<?> type, SearchParameters sp, List<Attribute<?, ?>> attributes, QueryBindings bindings) {
+        if (bindings.hasUnrecordedValues()) {
+            return null;
+        }
+        List<Object> parts = newArrayList();
+        parts.add(kind);
+        parts.add(type);
+        parts.add(attributes == null ? null : jpaUtil.toNamesList(attributes));
+        parts.add(sp.getSearchMode());
+        parts.add(sp.isAndMode());
+        parts.add(sp.isCaseSensitive());
+        parts.add(sp.getDistinct());
+        parts.add(sp.getUseAndInXToMany());
+        parts.add(sp.getXToManyAndStrategy());
+        parts.add(sp.getXToOneStrategy());
+        parts.add(sp.hasSearchPattern());
+        for (OrderBy orderBy : sp.getOrders()) {
+            parts.add(orderBy.getDirection() + " " + orderBy.getPath());
+        }
+        for (List<Attribute<?, ?>> fetch : sp.getFetches()) {
+            parts.add(jpaUtil.toNamesList(fetch));
+        }
+        parts.add(newArrayList(bindings.getShape()));
+        parts.add(bindings.getValues().size());
+        return new QueryShape(parts, bindings.getValues());
+    }
+
+    /*
+     * Returns the compiled query for the given shape, null if none.
+     */
+    public CompiledQuery get(QueryShape shape) {
+        return cache.getIfPresent(shape);
+    }
+
+    /*
+     * Keep the JPQL of the given query, created from a criteria query built with the given bindings.
+     */
+    public void put(QueryShape shape, TypedQuery<?> typedQuery, QueryBindings bindings) {
+        put(shape, typedQuery, null, bindings);
+    }
+
+    /*
+     * Same as put(shape, typedQuery, bindings), keeping along the JPQL of the given query counting its results, when not null. The count query must
+     * have been rendered from the same predicate, so that it binds the same values.
+     */
+    public void put(QueryShape shape, TypedQuery<?> typedQuery, TypedQuery<Long> countQuery, QueryBindings bindings) {
+        if (cache.asMap().get(shape) == CompiledQuery.NOT_COMPILABLE) {
+            return;
+        }
+        String jpql = recordedJpql(typedQuery);
+        if (jpql == null) {
+            // a literal was bound behind our back, the JPQL cannot be reused with other values
+            log.debug("Shape {} uses parameters which are not recorded, it will not be compiled", shape);
+            cache.put(shape, CompiledQuery.NOT_COMPILABLE);
+            return;
+        }
+        cache.put(shape, new CompiledQuery(jpql, countQuery != null ? recordedJpql(countQuery) : null, bindings.getValues().size()));
+    }
+
+    /*
+     * Returns the JPQL of the given query, or null if it uses parameters that were not recorded by its bindings.
+     */
+    private String recordedJpql(TypedQuery<?> typedQuery) {
+        org.hibernate.Query hibernateQuery = typedQuery.unwrap(org.hibernate.Query.class);
+        for (String name : hibernateQuery.getNamedParameters()) {
+            if (!name.startsWith(QueryBindings.PARAMETER_PREFIX)) {
+                return null;
+            }
+        }
+        return hibernateQuery.getQueryString();
+    }
+
+    /*
+     * Never compile the given shape again, for instance when the values bound on a hit do not match its JPQL.
+     */
+    public void notCompilable(QueryShape shape) {
+        cache.put(shape, CompiledQuery.NOT_COMPILABLE);
+    }
+
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    public long getHitCount() {
+        return cache.stats().hitCount();
+    }
+
+    public long getMissCount() {
+        return cache.stats().missCount();
+    }
+
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    /**
+     * JPQL rendered for a shape, along with the number of parameters it expects and, for a find query, the JPQL counting its results.
+     */
+    public static final class CompiledQuery {
+        static final CompiledQuery NOT_COMPILABLE = new CompiledQuery(null, null, -1);
+
+        private final String jpql;
+        private final String countJpql;
+        private final int parameterCount;
+
+        CompiledQuery(String jpql, String countJpql, int parameterCount) {
+            this.jpql = jpql;
+            this.countJpql = countJpql;
+            this.parameterCount = parameterCount;
+        }
+
+        public boolean isCompilable() {
+            return jpql != null;
+        }
+
+        public String getJpql() {
+            return jpql;
+        }
+
+        /*
+         * The JPQL counting the results of the query, rendered from the same predicate. Null when it was not rendered with it.
+         */
+        public String getCountJpql() {
+            return countJpql;
+        }
+
+        public int getParameterCount() {
+            return parameterCount;
+        }
+
+        /*
+         * Create a query from the JPQL and bind it the given values, which must have been recorded by a {@link QueryBindings}.
+         */
+        public <T> TypedQuery<T> createQuery(EntityManager entityManager, Class<T> resultType, List<Object> values) {
+            TypedQuery<T> typedQuery = entityManager.createQuery(jpql, resultType);
+            for (int i = 0; i < values.size(); i++) {
+                typedQuery.setParameter(QueryBindings.parameterName(i), values.get(i));
+            }
+            return typedQuery;
+        }
+    }
+}
@@ -19,6 +19,8 @@ import javax.persistence.metamodel.Attribute;
 import java.io.Serializable;
 import java.util.List;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+
 /**
  * Range support for {@link Comparable} types.
  */
@@ -38,6 +40,7 @@ public class Range<E, D extends Comparable> implements Serializable {
     private D from;
     private D to;
     private Boolean includeNull;
+    private CollectionPathStrategy collectionPathStrategy = CollectionPathStrategy.AUTO;
 
     /**
      * Constructs a new Range with no boundaries and no restrictions on field's nullability.
@@ -82,6 +85,7 @@ public class Range<E, D extends Comparable> implements Serializable {
         this.from = other.from;
         this.to = other.to;
         this.includeNull = other.includeNull;
+        this.collectionPathStrategy = other.collectionPathStrategy;
     }
 
     /**
@@ -154,6 +158,22 @@ public class Range<E, D extends Comparable> implements Serializable {
         return includeNull != null;
     }
 
+    public CollectionPathStrategy getCollectionPathStrategy() {
+        return collectionPathStrategy;
+    }
+
+    /*
+     * How this range restricts the results when its path crosses a collection. Defaults to {@link CollectionPathStrategy#AUTO}.
+     */
+    public void setCollectionPathStrategy(CollectionPathStrategy collectionPathStrategy) {
+        this.collectionPathStrategy = checkNotNull(collectionPathStrategy);
+    }
+
+    public Range<E, D> collectionPathStrategy(CollectionPathStrategy collectionPathStrategy) {
+        setCollectionPathStrategy(collectionPathStrategy);
+        return this;
+    }
+
     public boolean isBetween() {
         return isFromSet() && isToSet();
     }
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2015 JAXIO http://www.jaxio.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jaxio.jpa.querybyexample;
+
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Iterates over the results of a query through a forward only Hibernate {@link ScrollableResults}, so that rows are read from the database as they
+ * are consumed.
+ * <p>
+ * To keep the memory flat, the rows are loaded read-only and released as the iteration goes: each entity is detached once the next row is read or,
+ * when {@link SearchParameters#getClearInterval()} is set, the whole persistence context is cleared every n rows. Entities obtained from this iterator
+ * must therefore be merged or saved explicitly if they are modified, and pending changes made while iterating are discarded by the clear.
+ * <p>
+ * It must be consumed inside the transaction it was created in, and closed. It closes itself once the last row has been read.
+ */
+public class ResultIterator<T> implements Iterator<T>, Closeable {
+    private final EntityManager entityManager;
+    private final ScrollableResults results;
+    private final int clearInterval;
+    private Object previous;
+    private boolean advanced;
+    private boolean hasNext;
+    private boolean closed;
+    private int count;
+
+    public ResultIterator(EntityManager entityManager, Query query, SearchParameters sp) {
+        this.entityManager = entityManager;
+        this.clearInterval = sp.getClearInterval();
+        org.hibernate.Query hibernateQuery = query.unwrap(org.hibernate.Query.class);
+        hibernateQuery.setReadOnly(true);
+        if (sp.getFetchSize() > 0) {
+            hibernateQuery.setFetchSize(sp.getFetchSize());
+        }
+        this.results = hibernateQuery.scroll(ScrollMode.FORWARD_ONLY);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (!advanced) {
+            release();
+            hasNext = !closed && results.next();
+            advanced = true;
+            if (!hasNext) {
+                close();
+            }
+        }
+        return hasNext;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        advanced = false;
+        count++;
+        Object[] row = results.get();
+        previous = row.length == 1 ? row[0] : row;
+        return (T) previous;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /*
+     * Number of rows read so far.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /*
+     * Release the rows already consumed, before reading the next one.
+     */
+    private void release() {
+        if (clearInterval > 0) {
+            if (count > 0 && count % clearInterval == 0) {
+                entityManager.clear();
+            }
+        } else if (previous instanceof Identifiable && entityManager.contains(previous)) {
+            entityManager.detach(previous);
+        }
+        previous = null;
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            results.close();
+        }
+    }
+
+    /*
+     * Returns a sequential stream over the remaining rows, closing it closes this iterator.
+     */
+    public Stream<T> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED), false).onClose(new Runnable() {
+            @Override
+            public void run() {
+                close();
+            }
+        });
+    }
+}
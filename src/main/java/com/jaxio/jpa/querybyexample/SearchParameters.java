@@ -18,6 +18,7 @@ package com.jaxio.jpa.querybyexample;
 import com.google.common.base.Function;
 import org.apache.commons.lang.builder.ToStringBuilder;
 
+import javax.persistence.EntityGraph;
 import javax.persistence.metamodel.Attribute;
 import javax.persistence.metamodel.SingularAttribute;
 import java.io.Serializable;
@@ -25,11 +26,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.collect.Lists.newArrayList;
 import static com.google.common.collect.Lists.transform;
 import static com.google.common.collect.Maps.newHashMap;
-import static com.google.common.collect.Sets.newHashSet;
+import static com.google.common.collect.Sets.newLinkedHashSet;
 import static com.jaxio.jpa.querybyexample.PropertySelector.newPropertySelector;
 import static org.apache.commons.lang.StringUtils.isNotBlank;
 
@@ -59,6 +61,10 @@ import static org.apache.commons.lang.StringUtils.isNotBlank;
  */
 public class SearchParameters implements Serializable {
     private static final long serialVersionUID = 1L;
+    public static final int DEFAULT_FETCH_SIZE = 100;
+    public static final int DEFAULT_COUNT_LIMIT = 1000;
+    public static final String FETCH_GRAPH_HINT = "javax.persistence.fetchgraph";
+    public static final String LOAD_GRAPH_HINT = "javax.persistence.loadgraph";
 
     private SearchMode searchMode = SearchMode.EQUALS;
     private boolean andMode = true;
@@ -67,7 +73,7 @@ public class SearchParameters implements Serializable {
     private String namedQuery;
     private Map<String, Object> parameters = newHashMap();
 
-    private Set<OrderBy> orders = newHashSet();
+    private Set<OrderBy> orders = newLinkedHashSet();
 
     // technical parameters
     private boolean caseSensitive = true;
@@ -77,8 +83,28 @@ public class SearchParameters implements Serializable {
     private int first = 0;
     private int pageSize = 0;
 
+    // keyset pagination
+    private boolean keyset = false;
+    private List<Object> keysetValues;
+    private String keysetCursor;
+
+    // streaming
+    private int fetchSize = DEFAULT_FETCH_SIZE;
+    private int clearInterval = 0;
+
+    // count
+    private boolean concurrentCount = false;
+    private CountMode countMode = CountMode.EXACT;
+    private int countLimit = DEFAULT_COUNT_LIMIT;
+
     // fetches
-    private Set<PathHolder> fetches = newHashSet();
+    private Set<PathHolder> fetches = newLinkedHashSet();
+    private Set<PathHolder> prefetches = newLinkedHashSet();
+
+    // entity graph, given by name or built with EntityManager.createEntityGraph
+    private String entityGraphName;
+    private transient EntityGraph<?> entityGraph;
+    private boolean loadGraph = false;
 
     // ranges
     private List<Range<?, ?>> ranges = newArrayList();
@@ -103,9 +129,15 @@ public class SearchParameters implements Serializable {
     private Map<String, Object> extraParameters = newHashMap();
 
     private boolean useAndInXToMany = true;
+    private XToManyAndStrategy xToManyAndStrategy = XToManyAndStrategy.JOIN;
+    private XToOneStrategy xToOneStrategy = XToOneStrategy.JOIN;
 
     private boolean useDistinct = false;
 
+    // read-only results, null to use the default of the repository
+    private Boolean readOnly;
+    private boolean detachResults = false;
+
     // -----------------------------------
     // SearchMode
     // -----------------------------------
@@ -597,6 +629,161 @@ public class SearchParameters implements Serializable {
         return this;
     }
 
+    // -----------------------------------
+    // Keyset pagination support
+    // -----------------------------------
+
+    /*
+     * Use keyset pagination: the primary key is appended to the orders as a tie-breaker and the page starts after the row given by the keyset values
+     * or the cursor, if any. Without them, <code>first</code> is honored by reading the keys of the preceding row only, or by taking them from the
+     * search result cache of the repository, where each page leaves the keys of its last row for the next one.
+     */
+    public void setKeyset(boolean keyset) {
+        this.keyset = keyset;
+    }
+
+    public boolean isKeyset() {
+        return keyset || hasKeysetValues();
+    }
+
+    /*
+     * Seek past the given row instead of skipping <code>first</code> rows: pass the values of the last row seen for each order by, in order, followed
+     * by its primary key. The order by paths must be singular and non null.
+     */
+    public void setKeysetValues(List<Object> keysetValues) {
+        this.keysetValues = keysetValues;
+    }
+
+    public List<Object> getKeysetValues() {
+        return keysetValues;
+    }
+
+    /*
+     * Seek past the row encoded in the given cursor, as returned by {@link KeysetPage#getNextCursor()}.
+     */
+    public void setKeysetCursor(String keysetCursor) {
+        this.keysetCursor = keysetCursor;
+    }
+
+    public String getKeysetCursor() {
+        return keysetCursor;
+    }
+
+    public boolean hasKeysetValues() {
+        return (keysetValues != null && !keysetValues.isEmpty()) || isNotBlank(keysetCursor);
+    }
+
+    public SearchParameters keyset() {
+        setKeyset(true);
+        return this;
+    }
+
+    public SearchParameters afterKeyset(Object... lastValues) {
+        setKeysetValues(newArrayList(lastValues));
+        return this;
+    }
+
+    public SearchParameters afterCursor(String cursor) {
+        setKeysetCursor(cursor);
+        return this;
+    }
+
+    // -----------------------------------
+    // Streaming support
+    // -----------------------------------
+
+    /*
+     * Set the JDBC fetch size used when the results are streamed. Pass 0 to use the driver default.
+     */
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    /*
+     * When the results are streamed, clear the persistence context every <code>clearInterval</code> rows. Pass 0 to detach each row once the next
+     * one is read instead.
+     */
+    public void setClearInterval(int clearInterval) {
+        this.clearInterval = clearInterval;
+    }
+
+    public int getClearInterval() {
+        return clearInterval;
+    }
+
+    public SearchParameters fetchSize(int fetchSize) {
+        setFetchSize(fetchSize);
+        return this;
+    }
+
+    public SearchParameters clearInterval(int clearInterval) {
+        setClearInterval(clearInterval);
+        return this;
+    }
+
+    // -----------------------------------
+    // Count support
+    // -----------------------------------
+
+    /*
+     * When a page is requested along with its total, run the count on a separate connection while the page query runs, see {@link CountExecutor}.
+     */
+    public void setConcurrentCount(boolean concurrentCount) {
+        this.concurrentCount = concurrentCount;
+    }
+
+    public boolean isConcurrentCount() {
+        return concurrentCount;
+    }
+
+    public SearchParameters concurrentCount() {
+        setConcurrentCount(true);
+        return this;
+    }
+
+    /*
+     * How findCount counts the results, {@link CountMode#EXACT} by default. Non exact modes do not apply to named queries.
+     */
+    public void setCountMode(CountMode countMode) {
+        this.countMode = checkNotNull(countMode);
+    }
+
+    public CountMode getCountMode() {
+        return countMode;
+    }
+
+    /*
+     * The number of results beyond which a {@link CountMode#CAPPED} count stops.
+     */
+    public void setCountLimit(int countLimit) {
+        checkArgument(countLimit > 0, "The count limit must be positive");
+        this.countLimit = countLimit;
+    }
+
+    public int getCountLimit() {
+        return countLimit;
+    }
+
+    public SearchParameters countExact() {
+        setCountMode(CountMode.EXACT);
+        return this;
+    }
+
+    public SearchParameters countUpTo(int countLimit) {
+        setCountLimit(countLimit);
+        setCountMode(CountMode.CAPPED);
+        return this;
+    }
+
+    public SearchParameters countEstimated() {
+        setCountMode(CountMode.ESTIMATED);
+        return this;
+    }
+
     // -----------------------------------------
     // Fetch associated entity using a LEFT Join
     // -----------------------------------------
@@ -643,6 +830,113 @@ public class SearchParameters implements Serializable {
         return this;
     }
 
+    // -----------------------------------------
+    // Prefetch associations with secondary queries
+    // -----------------------------------------
+
+    /*
+     * Returns the association paths initialized after the search by secondary queries, see {@link PrefetchUtil}.
+     */
+    public List<List<Attribute<?, ?>>> getPrefetches() {
+        return transform(newArrayList(prefetches), new Function<PathHolder, List<Attribute<?, ?>>>() {
+            public List<Attribute<?, ?>> apply(PathHolder input) {
+                return input.getAttributes();
+            }
+        });
+    }
+
+    public boolean hasPrefetches() {
+        return !prefetches.isEmpty();
+    }
+
+    /*
+     * The associations on the given path will be initialized for all the results with one query per level of the path, instead of being joined
+     * to the search query. Unlike fetches, several collections can be prefetched without multiplying the rows.
+     */
+    public void addPrefetch(Attribute<?, ?>... attributes) {
+        addPrefetch(newArrayList(attributes));
+    }
+
+    public void addPrefetch(List<Attribute<?, ?>> attributes) {
+        prefetches.add(new PathHolder(attributes));
+    }
+
+    /*
+     * Fluently set the prefetch attribute
+     */
+    public SearchParameters prefetch(Attribute<?, ?>... attributes) {
+        addPrefetch(attributes);
+        return this;
+    }
+
+    // -----------------------------------------
+    // Entity graph
+    // -----------------------------------------
+
+    public String getEntityGraphName() {
+        return entityGraphName;
+    }
+
+    /*
+     * The entity graph built by the caller, null when the graph is given by name. Not serialized.
+     */
+    public EntityGraph<?> getEntityGraph() {
+        return entityGraph;
+    }
+
+    public boolean hasEntityGraph() {
+        return entityGraph != null || entityGraphName != null;
+    }
+
+    /*
+     * Whether the attributes outside the graph keep their own fetch type (load graph) or are all lazy (fetch graph, the default).
+     */
+    public boolean isLoadGraph() {
+        return loadGraph;
+    }
+
+    /*
+     * The query hint under which the entity graph is passed to the persistence provider.
+     */
+    public String getEntityGraphHint() {
+        return loadGraph ? LOAD_GRAPH_HINT : FETCH_GRAPH_HINT;
+    }
+
+    /*
+     * Use the named entity graph (@NamedEntityGraph) as a fetch graph: the results are loaded with the associations of the graph.
+     */
+    public SearchParameters fetchGraph(String entityGraphName) {
+        return entityGraph(checkNotNull(entityGraphName), null, false);
+    }
+
+    /*
+     * Use the given entity graph as a fetch graph, see {@link GenericRepository#createEntityGraph()}.
+     */
+    public SearchParameters fetchGraph(EntityGraph<?> entityGraph) {
+        return entityGraph(null, checkNotNull(entityGraph), false);
+    }
+
+    /*
+     * Use the named entity graph as a load graph.
+     */
+    public SearchParameters loadGraph(String entityGraphName) {
+        return entityGraph(checkNotNull(entityGraphName), null, true);
+    }
+
+    /*
+     * Use the given entity graph as a load graph.
+     */
+    public SearchParameters loadGraph(EntityGraph<?> entityGraph) {
+        return entityGraph(null, checkNotNull(entityGraph), true);
+    }
+
+    private SearchParameters entityGraph(String entityGraphName, EntityGraph<?> entityGraph, boolean loadGraph) {
+        this.entityGraphName = entityGraphName;
+        this.entityGraph = entityGraph;
+        this.loadGraph = loadGraph;
+        return this;
+    }
+
     // -----------------------------------
     // Caching support
     // -----------------------------------
@@ -746,6 +1040,44 @@ public class SearchParameters implements Serializable {
         return this;
     }
 
+    /*
+     * How the and mode restricts the results to the entities having all the values of a to-many example or of a property selector on a collection
+     * path. Defaults to {@link XToManyAndStrategy#JOIN}, the historical behavior; {@link XToManyAndStrategy#AUTO} avoids multiplying the rows
+     * when there are many values.
+     */
+    public void setXToManyAndStrategy(XToManyAndStrategy xToManyAndStrategy) {
+        this.xToManyAndStrategy = checkNotNull(xToManyAndStrategy);
+    }
+
+    public XToManyAndStrategy getXToManyAndStrategy() {
+        return xToManyAndStrategy;
+    }
+
+    public SearchParameters xToManyAndStrategy(XToManyAndStrategy xToManyAndStrategy) {
+        setXToManyAndStrategy(xToManyAndStrategy);
+        return this;
+    }
+
+    // -----------------------------------
+    // XToOne Search
+    // -----------------------------------
+
+    /*
+     * How the example restricts the results on the properties of its to-one associations, at any depth. Defaults to {@link XToOneStrategy#JOIN}.
+     */
+    public void setXToOneStrategy(XToOneStrategy xToOneStrategy) {
+        this.xToOneStrategy = checkNotNull(xToOneStrategy);
+    }
+
+    public XToOneStrategy getXToOneStrategy() {
+        return xToOneStrategy;
+    }
+
+    public SearchParameters xToOneStrategy(XToOneStrategy xToOneStrategy) {
+        setXToOneStrategy(xToOneStrategy);
+        return this;
+    }
+
     // -----------------------------------
     // Distinct
     // -----------------------------------
@@ -767,6 +1099,97 @@ public class SearchParameters implements Serializable {
         return distinct(true);
     }
 
+    // -----------------------------------
+    // Read-only results
+    // -----------------------------------
+
+    /*
+     * Whether the results are loaded read-only, null when the default of the repository applies, see
+     * {@link GenericRepository#setReadOnlyByDefault(boolean)}.
+     */
+    public Boolean getReadOnly() {
+        return readOnly;
+    }
+
+    public void setReadOnly(Boolean readOnly) {
+        this.readOnly = readOnly;
+    }
+
+    /*
+     * Load the results read-only: Hibernate keeps no snapshot of their state and never dirty-checks them, changes made to them are not saved.
+     * The session is not flushed during the search, which therefore does not see the changes pending in the persistence context.
+     */
+    public SearchParameters readOnly() {
+        return readOnly(true);
+    }
+
+    public SearchParameters readOnly(boolean readOnly) {
+        setReadOnly(readOnly);
+        return this;
+    }
+
+    public boolean isDetachResults() {
+        return detachResults;
+    }
+
+    public void setDetachResults(boolean detachResults) {
+        this.detachResults = detachResults;
+    }
+
+    /*
+     * Load the results read-only and detach them from the persistence context as soon as they are loaded, so that they do not stay in memory
+     * until the end of the transaction. Their lazy associations can no longer be loaded: use fetches, prefetches or an entity graph.
+     */
+    public SearchParameters detachResults() {
+        setDetachResults(true);
+        return readOnly();
+    }
+
+    /*
+     * A copy of these search parameters, which can be changed without changing them. The selectors, ranges and values they hold are shared.
+     */
+    public SearchParameters copy() {
+        SearchParameters copy = new SearchParameters();
+        copy.searchMode = searchMode;
+        copy.andMode = andMode;
+        copy.namedQuery = namedQuery;
+        copy.parameters = newHashMap(parameters);
+        copy.orders = newLinkedHashSet(orders);
+        copy.caseSensitive = caseSensitive;
+        copy.maxResults = maxResults;
+        copy.first = first;
+        copy.pageSize = pageSize;
+        copy.keyset = keyset;
+        copy.keysetValues = keysetValues == null ? null : newArrayList(keysetValues);
+        copy.keysetCursor = keysetCursor;
+        copy.fetchSize = fetchSize;
+        copy.clearInterval = clearInterval;
+        copy.concurrentCount = concurrentCount;
+        copy.countMode = countMode;
+        copy.countLimit = countLimit;
+        copy.fetches = newLinkedHashSet(fetches);
+        copy.prefetches = newLinkedHashSet(prefetches);
+        copy.entityGraphName = entityGraphName;
+        copy.entityGraph = entityGraph;
+        copy.loadGraph = loadGraph;
+        copy.ranges = newArrayList(ranges);
+        copy.properties = newArrayList(properties);
+        copy.searchPattern = searchPattern;
+        copy.terms = newArrayList(terms);
+        copy.searchSimilarity = searchSimilarity;
+        copy.luceneQueryBuilder = luceneQueryBuilder;
+        copy.cacheable = cacheable;
+        copy.cacheRegion = cacheRegion;
+        copy.extraParameters = newHashMap(extraParameters);
+        copy.useAndInXToMany = useAndInXToMany;
+        copy.xToManyAndStrategy = xToManyAndStrategy;
+        copy.xToOneStrategy = xToOneStrategy;
+        copy.useDistinct = useDistinct;
+        copy.readOnly = readOnly;
+        copy.detachResults = detachResults;
+        return copy;
+    }
+
     @Override
     public String toString() {
         return ToStringBuilder.reflectionToString(this);
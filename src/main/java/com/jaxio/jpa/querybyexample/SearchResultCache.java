@@ -0,0 +1,189 @@
+/*
+ * Copyright 2015 JAXIO http://www.jaxio.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jaxio.jpa.querybyexample;
+
+import java.util.*;
+
+import static com.google.common.collect.Sets.newHashSet;
+
+/**
+ * Repository level cache of search results, see {@link GenericRepository#enableSearchResultCache(int, long)}.
+ * <p>
+ * Entries are keyed by the shape of the search along with the values it binds, and hold entity ids, counts or basic property values, never
+ * entities. The cache is bounded both by its number of entries and by their estimated size in bytes, the least recently used entries being
+ * evicted first. It is invalidated by the {@link SearchResultCacheRegistry} whenever an entity type it depends on is written.
+ */
+public class SearchResultCache {
+    private final int maxEntries;
+    private final long maxBytes;
+    private final Set<Class<?>> dependencies;
+    private final LinkedHashMap<QueryShape, Entry> entries = new LinkedHashMap<QueryShape, Entry>(16, 0.75f, true);
+    private long bytes;
+    private long generation;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+    private long invalidationCount;
+
+    public SearchResultCache(int maxEntries, long maxBytes, Set<Class<?>> dependencies) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.dependencies = newHashSet(dependencies);
+    }
+
+    /*
+     * Returns the cached value, null on a miss.
+     */
+    public synchronized Object get(QueryShape key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return entry.value;
+    }
+
+    /*
+     * Changes each time the cache is invalidated. Read it before running the query whose result is put in the cache.
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /*
+     * Cache the given value, unless the cache was invalidated since the given generation was read: the value may be stale.
+     */
+    public synchronized void put(QueryShape key, Object value, long generation) {
+        if (generation != this.generation) {
+            return;
+        }
+        long size = estimateBytes(key) + estimateBytes(value);
+        if (size > maxBytes) {
+            return;
+        }
+        Entry previous = entries.put(key, new Entry(value, size));
+        if (previous != null) {
+            bytes -= previous.size;
+        }
+        bytes += size;
+
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (entries.size() > maxEntries || bytes > maxBytes) {
+            bytes -= eldest.next().size;
+            eldest.remove();
+            evictionCount++;
+        }
+    }
+
+    public synchronized void remove(QueryShape key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            bytes -= entry.size;
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        entries.clear();
+        bytes = 0;
+        generation++;
+        invalidationCount++;
+    }
+
+    /*
+     * Whether a write to the given entity type may change the results cached here.
+     */
+    public boolean dependsOn(Class<?> type) {
+        for (Class<?> dependency : dependencies) {
+            if (dependency.isAssignableFrom(type) || type.isAssignableFrom(dependency)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getEstimatedBytes() {
+        return bytes;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /*
+     * The ratio of lookups served by the cache, 1 when there was no lookup yet.
+     */
+    public synchronized double getHitRate() {
+        long requestCount = hitCount + missCount;
+        return requestCount == 0 ? 1.0 : (double) hitCount / requestCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    public synchronized long getInvalidationCount() {
+        return invalidationCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SearchResultCache[entries=" + entries.size() + ", bytes=" + bytes + ", hitRate=" + getHitRate() + ", evictions=" + evictionCount
+                + ", invalidations=" + invalidationCount + "]";
+    }
+
+    /*
+     * Rough size of the given value on the heap, enough to bound the cache.
+     */
+    static long estimateBytes(Object value) {
+        if (value == null) {
+            return 8;
+        } else if (value instanceof String) {
+            return 40 + 2 * ((String) value).length();
+        } else if (value instanceof Number || value instanceof Boolean || value instanceof Character || value instanceof Enum) {
+            return 24;
+        } else if (value instanceof Date) {
+            return 32;
+        } else if (value instanceof QueryShape) {
+            return 16 + estimateBytes(((QueryShape) value).getParts());
+        } else if (value instanceof Collection) {
+            long size = 40;
+            for (Object element : (Collection<?>) value) {
+                size += 8 + estimateBytes(element);
+            }
+            return size;
+        }
+        return 64;
+    }
+
+    private static final class Entry {
+        final Object value;
+        final long size;
+
+        Entry(Object value, long size) {
+            this.value = value;
+            this.size = size;
+        }
+    }
+}
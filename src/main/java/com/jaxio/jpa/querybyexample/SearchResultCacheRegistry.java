@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015 JAXIO http://www.jaxio.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jaxio.jpa.querybyexample;
+
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static com.google.common.collect.Sets.newHashSet;
+
+/**
+ * Keeps track of the {@link SearchResultCache} of each repository, to invalidate the ones depending on an entity type when it is written.
+ * <p>
+ * Within a transaction, the caches are invalidated right away, so that the transaction does not read its own stale results, and again after
+ * completion, so that results read by other transactions before the commit are dropped as well.
+ */
+@Named
+@Singleton
+public class SearchResultCacheRegistry {
+    private final List<SearchResultCache> caches = new CopyOnWriteArrayList<SearchResultCache>();
+
+    public void register(SearchResultCache cache) {
+        caches.add(cache);
+    }
+
+    public void unregister(SearchResultCache cache) {
+        caches.remove(cache);
+    }
+
+    public void invalidate(Class<?> type) {
+        if (caches.isEmpty()) {
+            return;
+        }
+        invalidateNow(type);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            pendingTypes().add(type);
+        }
+    }
+
+    /*
+     * Whether the current transaction wrote a type, in which case the results it reads must not be cached: they are not committed yet.
+     */
+    public boolean hasPendingWrites() {
+        return TransactionSynchronizationManager.hasResource(this);
+    }
+
+    private void invalidateNow(Class<?> type) {
+        for (SearchResultCache cache : caches) {
+            if (cache.dependsOn(type)) {
+                cache.invalidateAll();
+            }
+        }
+    }
+
+    /*
+     * The types written by the current transaction, invalidated once more after its completion.
+     */
+    @SuppressWarnings("unchecked")
+    private Set<Class<?>> pendingTypes() {
+        Set<Class<?>> types = (Set<Class<?>>) TransactionSynchronizationManager.getResource(this);
+        if (types == null) {
+            final Set<Class<?>> pending = newHashSet();
+            TransactionSynchronizationManager.bindResource(this, pending);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(SearchResultCacheRegistry.this);
+                    for (Class<?> type : pending) {
+                        invalidateNow(type);
+                    }
+                }
+            });
+            types = pending;
+        }
+        return types;
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2015 JAXIO http://www.jaxio.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jaxio.jpa.querybyexample;
+
+/**
+ * How the and mode of the to-many example matching ({@link SearchParameters#useAndInXToMany()}) and of the property selectors on collection
+ * paths restricts the results to the entities having all the values, see {@link SearchParameters#setXToManyAndStrategy(XToManyAndStrategy)}.
+ */
+public enum XToManyAndStrategy {
+    /**
+     * One join per value. The rows are multiplied by the number of matching elements of each join.
+     */
+    JOIN,
+    /**
+     * One correlated EXISTS subquery per value.
+     */
+    EXISTS,
+    /**
+     * A single subquery on the entities having all the values: group by entity having count(distinct value) equal to the number of values. Falls
+     * back to EXISTS for entities without a simple primary key.
+     */
+    GROUP_BY,
+    /**
+     * EXISTS up to {@link #AUTO_EXISTS_MAX_VALUES} values, GROUP_BY above.
+     */
+    AUTO;
+
+    public static final int AUTO_EXISTS_MAX_VALUES = 3;
+
+    /*
+     * The strategy to use for the given number of values.
+     */
+    public XToManyAndStrategy forValueCount(int valueCount) {
+        if (this != AUTO) {
+            return this;
+        }
+        return valueCount <= AUTO_EXISTS_MAX_VALUES ? EXISTS : GROUP_BY;
+    }
+}
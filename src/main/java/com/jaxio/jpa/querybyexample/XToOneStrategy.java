@@ -0,0 +1,32 @@
+/*
+ * Copyright 2015 JAXIO http://www.jaxio.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jaxio.jpa.querybyexample;
+
+/**
+ * How the example restricts the results on the properties of its to-one associations, see
+ * {@link SearchParameters#setXToOneStrategy(XToOneStrategy)}.
+ */
+public enum XToOneStrategy {
+    /**
+     * Navigate the association: each association level whose properties are used is joined to the root query.
+     */
+    JOIN,
+    /**
+     * Restrict the foreign key with <code>in (select id ...)</code>, the subquery matching the properties of the associated entity and its own
+     * associations. The root query keeps a single table, with its own indexes.
+     */
+    SUBQUERY
+}
@@ -18,7 +18,9 @@ import org.slf4j.LoggerFactory;
 import javax.persistence.*;
 import javax.persistence.criteria.CriteriaBuilder;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 import static javax.persistence.CascadeType.MERGE;
 import static javax.persistence.CascadeType.PERSIST;
@@ -40,6 +42,9 @@ public class Account implements Identifiable<Integer>, Serializable {
     // Many to one
     private Address homeAddress;
 
+    // Many to many
+    private List<Role> roles = new ArrayList<Role>();
+
     @Override
     @Column(name = "ID", precision = 10)
     @GeneratedValue
@@ -134,6 +139,31 @@ public class Account implements Identifiable<Integer>, Serializable {
         return this;
     }
 
+    // -----------------------------------------------------------------
+    // Many to Many
+    // -----------------------------------------------------------------
+
+    // - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
+    // many-to-many: Account.roles ==> Role.id
+    // - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -
+
+    @JoinTable(name = "ACCOUNT_ROLE", joinColumns = @JoinColumn(name = "ACCOUNT_ID"), inverseJoinColumns = @JoinColumn(name = "ROLE_ID"))
+    @ManyToMany
+    public List<Role> getRoles() {
+        return roles;
+    }
+
+    public void setRoles(List<Role> roles) {
+        this.roles = roles;
+    }
+
+    public Account roles(Role... roles) {
+        for (Role role : roles) {
+            this.roles.add(role);
+        }
+        return this;
+    }
+
     /**
      * Equals implementation using a business key.
      */
@@ -1,6 +1,8 @@
 package demo;
 
 import com.jaxio.jpa.querybyexample.*;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -10,14 +12,31 @@ import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.inject.Inject;
+import javax.persistence.EntityGraph;
+import javax.persistence.EntityManager;
+import javax.persistence.Persistence;
+import javax.persistence.PersistenceContext;
+import javax.persistence.metamodel.Attribute;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
 
 @RunWith(SpringJUnit4ClassRunner.class)
 @ContextConfiguration(locations = {"classpath*:applicationContext.xml"})
@@ -25,6 +44,14 @@ import static org.hamcrest.CoreMatchers.is;
 public class AccountQueryByExampleTest {
     @Inject
     AccountRepository accountRepository;
+    @Inject
+    QueryShapeCache queryShapeCache;
+    @Inject
+    RoleRepository roleRepository;
+    @Inject
+    MetamodelUtil metamodelUtil;
+    @PersistenceContext
+    EntityManager entityManager;
 
     @Test
     @Rollback
@@ -177,4 +204,741 @@ public class AccountQueryByExampleTest {
         List<Account> result = accountRepository.find(example);
         Assert.assertThat(result.size(), is(2));
     }
-}
\ No newline at end of file
+
+    @Test
+    @Rollback
+    public void sameShapeReusesCompiledQuery() throws Exception {
+        accountRepository.setUseQueryShapeCache(true);
+        try {
+            queryShapeCache.clear();
+            long hits = queryShapeCache.getHitCount();
+            Assert.assertThat(accountRepository.find(new Account().lastName("Jagger")).get(0).getUsername(), is("mick"));
+            Assert.assertThat(accountRepository.find(new Account().lastName("Richards")).get(0).getUsername(), is("keith"));
+            Assert.assertThat(accountRepository.findCount(new Account().lastName("Jagger")), is(1L));
+            Assert.assertThat(queryShapeCache.getHitCount() - hits, is(1L));
+        } finally {
+            accountRepository.setUseQueryShapeCache(false);
+        }
+    }
+
+    @Test
+    @Rollback
+    public void findPageCountsWithTheCompiledQueryOfItsShape() throws Exception {
+        accountRepository.setUseQueryShapeCache(true);
+        try {
+            queryShapeCache.clear();
+            SearchParameters sp = new SearchParameters().asc(Account_.username).pageSize(2);
+            Page<Account> first = accountRepository.findPage(new Account(), sp);
+            long hits = queryShapeCache.getHitCount();
+            long misses = queryShapeCache.getMissCount();
+            Page<Account> second = accountRepository.findPage(new Account(), sp);
+
+            // a single lookup serves the page and its count, which is not built again
+            Assert.assertThat(queryShapeCache.getHitCount() - hits, is(1L));
+            Assert.assertThat(queryShapeCache.getMissCount() - misses, is(0L));
+            Assert.assertThat(second.getTotal(), is(7L));
+            Assert.assertThat(second.getTotal(), is(first.getTotal()));
+            Assert.assertThat(second.getContent().get(0).getUsername(), is("bibi"));
+        } finally {
+            accountRepository.setUseQueryShapeCache(false);
+        }
+    }
+
+    @Test
+    @Rollback
+    public void shapeAndValuesAreRecordedByTheSamePredicateBuild() throws Exception {
+        QueryShape lastName = accountRepository.getQueryShape(QueryShape.Kind.FIND, new Account().lastName("Jagger"), new SearchParameters(), null);
+        QueryShape username = accountRepository.getQueryShape(QueryShape.Kind.FIND, new Account().username("Jagger"), new SearchParameters(), null);
+        Assert.assertThat(lastName.equals(username), is(false));
+        Assert.assertThat(lastName.getValues(), is(Arrays.<Object>asList("Jagger")));
+
+        // the city of the address is not an attribute of the account
+        QueryShape city = accountRepository.getQueryShape(QueryShape.Kind.FIND, new Account().homeAddress(new Address().city("Paris")).lastName("Jagger"),
+                new SearchParameters(), null);
+        Assert.assertThat(city.equals(lastName), is(false));
+        Assert.assertThat(city.getValues(), is(Arrays.<Object>asList("Jagger", "Paris")));
+    }
+
+    @Test
+    @Rollback
+    public void compiledQueriesAreTheRenderedQueries() throws Exception {
+        DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+        Role admin = roleRepository.getById(1);
+        Role user = roleRepository.getById(2);
+        Role guest = roleRepository.getById(3);
+
+        // example
+        assertCompiledQueryIsRendered(new Account().lastName("JAG"), new SearchParameters().caseInsensitive().anywhere(), //
+                new Account().lastName("rich"), new SearchParameters().caseInsensitive().anywhere());
+        Account born1943 = new Account();
+        born1943.setBirthDate(dateFormat.parse("1943-10-30"));
+        Account born1956 = new Account();
+        born1956.setBirthDate(dateFormat.parse("1956-12-08"));
+        assertCompiledQueryIsRendered(born1943, new SearchParameters(), born1956, new SearchParameters());
+        for (XToOneStrategy strategy : XToOneStrategy.values()) {
+            assertCompiledQueryIsRendered(new Account().homeAddress(new Address().city("Paris")), new SearchParameters().xToOneStrategy(strategy), //
+                    new Account().homeAddress(new Address().city("Tokyo")), new SearchParameters().xToOneStrategy(strategy));
+        }
+        Address paris = new Address();
+        paris.setId(-1);
+        Address newYork = new Address();
+        newYork.setId(-2);
+        assertCompiledQueryIsRendered(new Account().homeAddress(paris), new SearchParameters(), new Account().homeAddress(newYork), new SearchParameters());
+        assertCompiledQueryIsRendered(new Account().roles(admin), new SearchParameters(), new Account().roles(guest), new SearchParameters());
+        for (XToManyAndStrategy strategy : XToManyAndStrategy.values()) {
+            assertCompiledQueryIsRendered(new Account().roles(admin, user), new SearchParameters().useAndInXToMany().xToManyAndStrategy(strategy), //
+                    new Account().roles(user, guest), new SearchParameters().useAndInXToMany().xToManyAndStrategy(strategy));
+        }
+
+        // selectors
+        for (boolean orMode : new boolean[]{true, false}) {
+            assertCompiledQueryIsRendered(new Account(), new SearchParameters().property(selector(orMode, "nico", "flo", Account_.username)), //
+                    new Account(), new SearchParameters().property(selector(orMode, "bibi", "mick", Account_.username)));
+            assertCompiledQueryIsRendered(new Account(), new SearchParameters().property(selector(orMode, -1, -2, Account_.id)), //
+                    new Account(), new SearchParameters().property(selector(orMode, -3, -5, Account_.id)));
+            assertCompiledQueryIsRendered(new Account(), new SearchParameters().property(selector(orMode, "ADMIN", "USER", Account_.roles, Role_.roleName)), //
+                    new Account(), new SearchParameters().property(selector(orMode, "USER", "GUEST", Account_.roles, Role_.roleName)));
+            for (XToManyAndStrategy strategy : XToManyAndStrategy.values()) {
+                assertCompiledQueryIsRendered(new Account(), new SearchParameters().xToManyAndStrategy(strategy).property(selector(orMode, admin, user, Account_.roles)), //
+                        new Account(), new SearchParameters().xToManyAndStrategy(strategy).property(selector(orMode, user, guest, Account_.roles)));
+            }
+        }
+
+        // ranges
+        assertCompiledQueryIsRendered(new Account(), new SearchParameters().range(dateFormat.parse("1940-01-01"), dateFormat.parse("1960-01-01"), Account_.birthDate), //
+                new Account(), new SearchParameters().range(dateFormat.parse("1970-01-01"), dateFormat.parse("1980-01-01"), Account_.birthDate));
+        assertCompiledQueryIsRendered(new Account(), new SearchParameters().range(new Range<Account, Integer>(-3, null, Account_.id)), //
+                new Account(), new SearchParameters().range(new Range<Account, Integer>(-5, null, Account_.id)));
+        for (CollectionPathStrategy strategy : CollectionPathStrategy.values()) {
+            assertCompiledQueryIsRendered(new Account(), new SearchParameters().range(new Range<Account, Integer>(1, 2, Account_.roles, Role_.id).collectionPathStrategy(strategy)), //
+                    new Account(), new SearchParameters().range(new Range<Account, Integer>(2, 3, Account_.roles, Role_.id).collectionPathStrategy(strategy)));
+        }
+
+        // pattern
+        assertCompiledQueryIsRendered(new Account(), new SearchParameters().searchPattern("ag"), new Account(), new SearchParameters().searchPattern("ich"));
+    }
+
+    private <F> PropertySelector<Account, F> selector(boolean orMode, F first, F second, Attribute<?, ?>... attributes) {
+        PropertySelector<Account, F> selector = PropertySelector.newPropertySelector(orMode, attributes);
+        selector.setSelected(Arrays.asList(first, second));
+        return selector;
+    }
+
+    /*
+     * The two searches have the same shape: the JPQL compiled for the first one is the JPQL rendered for the second one, and the second one returns
+     * the same results from the compiled JPQL as without the shape cache.
+     */
+    private void assertCompiledQueryIsRendered(Account example, SearchParameters sp, Account otherExample, SearchParameters otherSp) {
+        List<Account> expected = accountRepository.find(otherExample, otherSp);
+        QueryShape shape = accountRepository.getQueryShape(QueryShape.Kind.FIND, example, sp, null);
+        QueryShape otherShape = accountRepository.getQueryShape(QueryShape.Kind.FIND, otherExample, otherSp, null);
+        Assert.assertThat(otherShape, is(shape));
+
+        accountRepository.setUseQueryShapeCache(true);
+        try {
+            queryShapeCache.clear();
+            accountRepository.find(otherExample, otherSp);
+            String rendered = queryShapeCache.get(otherShape).getJpql();
+
+            queryShapeCache.clear();
+            accountRepository.find(example, sp);
+            QueryShapeCache.CompiledQuery compiled = queryShapeCache.get(shape);
+            Assert.assertThat(shape.toString(), compiled.isCompilable(), is(true));
+            Assert.assertThat(shape.toString(), compiled.getJpql(), is(rendered));
+
+            long hits = queryShapeCache.getHitCount();
+            Assert.assertThat(shape.toString(), accountRepository.find(otherExample, otherSp), is(expected));
+            Assert.assertThat(queryShapeCache.getHitCount() - hits, is(1L));
+        } finally {
+            accountRepository.setUseQueryShapeCache(false);
+        }
+    }
+
+    @Test
+    @Rollback
+    public void keysetPaginationWalksAllPages() throws Exception {
+        List<Account> expected = accountRepository.find(new SearchParameters().desc(Account_.birthDate).asc(Account_.id));
+
+        List<Account> walked = new ArrayList<Account>();
+        String cursor = null;
+        do {
+            SearchParameters sp = new SearchParameters().desc(Account_.birthDate).pageSize(3);
+            if (cursor != null) {
+                sp.afterCursor(cursor);
+            }
+            KeysetPage<Account> page = accountRepository.findKeysetPage(new Account(), sp);
+            walked.addAll(page.getContent());
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+        Assert.assertThat(walked, is(expected));
+
+        accountRepository.setKeysetThreshold(1);
+        try {
+            List<Account> seek = accountRepository.find(new SearchParameters().desc(Account_.birthDate).asc(Account_.id).first(3).pageSize(2));
+            Assert.assertThat(seek, is(expected.subList(3, 5)));
+        } finally {
+            accountRepository.setKeysetThreshold(0);
+        }
+    }
+
+    @Test
+    @Rollback
+    public void keysetPagesReadFromAPositionSeekFromThePreviousPage() throws Exception {
+        List<Account> expected = accountRepository.find(new SearchParameters().asc(Account_.username));
+
+        accountRepository.setKeysetThreshold(1);
+        accountRepository.enableSearchResultCache(100, 1024 * 1024);
+        Statistics statistics = entityManager.getEntityManagerFactory().unwrap(SessionFactory.class).getStatistics();
+        statistics.setStatisticsEnabled(true);
+        try {
+            // without the keyset of the row before the page, the page is read with offset pagination
+            statistics.clear();
+            Assert.assertThat(accountRepository.find(new SearchParameters().asc(Account_.username).first(2).pageSize(2)), is(expected.subList(2, 4)));
+            Assert.assertThat(statistics.getQueryExecutionCount(), is(1L));
+
+            // then the next page seeks from the last row of the previous one
+            statistics.clear();
+            Assert.assertThat(accountRepository.find(new SearchParameters().asc(Account_.username).first(4).pageSize(2)), is(expected.subList(4, 6)));
+            Assert.assertThat(statistics.getQueryExecutionCount(), is(1L));
+
+            statistics.clear();
+            Assert.assertThat(accountRepository.find(new SearchParameters().asc(Account_.username).first(2).pageSize(2)), is(expected.subList(2, 4)));
+            Assert.assertThat(statistics.getQueryExecutionCount(), is(1L));
+        } finally {
+            statistics.setStatisticsEnabled(false);
+            accountRepository.disableSearchResultCache();
+            accountRepository.setKeysetThreshold(0);
+        }
+
+        SearchParameters sp = new SearchParameters().asc(Account_.username).pageSize(3);
+        Assert.assertThat(accountRepository.findKeysetPage(new Account(), sp).getContent(), is(expected.subList(0, 3)));
+        Assert.assertThat(sp.isKeyset(), is(false));
+    }
+
+    @Test
+    @Rollback
+    public void metamodelPathsResolveConcurrently() throws Exception {
+        final String[] paths = {"username", "homeAddress", "homeAddress.city", "roles", "roles.roleName"};
+        Map<String, List<Attribute<?, ?>>> expected = new HashMap<String, List<Attribute<?, ?>>>();
+        expected.put("username", Arrays.<Attribute<?, ?>>asList(Account_.username));
+        expected.put("homeAddress", Arrays.<Attribute<?, ?>>asList(Account_.homeAddress));
+        expected.put("homeAddress.city", Arrays.<Attribute<?, ?>>asList(Account_.homeAddress, Address_.city));
+        expected.put("roles", Arrays.<Attribute<?, ?>>asList(Account_.roles));
+        expected.put("roles.roleName", Arrays.<Attribute<?, ?>>asList(Account_.roles, Role_.roleName));
+
+        metamodelUtil.clear();
+        int threadCount = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        final CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<Map<String, List<Attribute<?, ?>>>>> futures = new ArrayList<Future<Map<String, List<Attribute<?, ?>>>>>();
+            for (int i = 0; i < threadCount; i++) {
+                final int offset = i;
+                futures.add(executor.submit(new Callable<Map<String, List<Attribute<?, ?>>>>() {
+                    @Override
+                    public Map<String, List<Attribute<?, ?>>> call() throws Exception {
+                        start.await();
+                        // each thread starts from another path: the same and different paths are resolved at the same time
+                        Map<String, List<Attribute<?, ?>>> resolved = new HashMap<String, List<Attribute<?, ?>>>();
+                        for (int j = 0; j < paths.length; j++) {
+                            String path = paths[(offset + j) % paths.length];
+                            resolved.put(path, metamodelUtil.toAttributes(path, Account.class));
+                        }
+                        return resolved;
+                    }
+                }));
+            }
+            start.countDown();
+
+            Map<String, List<Attribute<?, ?>>> first = futures.get(0).get(10, TimeUnit.SECONDS);
+            for (Future<Map<String, List<Attribute<?, ?>>>> future : futures) {
+                Map<String, List<Attribute<?, ?>>> resolved = future.get(10, TimeUnit.SECONDS);
+                for (String path : paths) {
+                    Assert.assertThat(path, resolved.get(path), is(expected.get(path)));
+                    // all the lookups share the cached list
+                    Assert.assertThat(path, resolved.get(path), sameInstance(first.get(path)));
+                }
+            }
+            Assert.assertThat(metamodelUtil.getCachedPathCount(), is(paths.length));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        try {
+            metamodelUtil.toAttributes("homeAddress.city", Account.class).add(Account_.username);
+            Assert.fail("the shared list must be immutable");
+        } catch (UnsupportedOperationException expectedException) {
+            Assert.assertThat(metamodelUtil.toAttributes("homeAddress.city", Account.class), is(expected.get("homeAddress.city")));
+        }
+    }
+
+    @Test
+    @Rollback
+    public void streamReadsAllMatchingRows() throws Exception {
+        SearchParameters sp = new SearchParameters().asc(Account_.id).fetchSize(2).clearInterval(3);
+        List<Account> expected = accountRepository.find(sp);
+
+        final List<Integer> ids = new ArrayList<Integer>();
+        accountRepository.forEach(new Account(), sp, new Consumer<Account>() {
+            @Override
+            public void accept(Account account) {
+                ids.add(account.getId());
+            }
+        });
+        Assert.assertThat(ids.size(), is(expected.size()));
+        Assert.assertThat(ids.get(0), is(expected.get(0).getId()));
+    }
+
+    @Test
+    @Rollback
+    public void findPageReturnsContentAndTotal() throws Exception {
+        long count = accountRepository.findCount(new Account());
+        Page<Account> page = accountRepository.findPage(new Account(), new SearchParameters().asc(Account_.lastName).pageSize(2));
+        Assert.assertThat(page.getContent().size(), is(2));
+        Assert.assertThat(page.getTotal(), is(count));
+        Assert.assertThat(page.hasNext(), is(true));
+
+        Page<Account> single = accountRepository.findPage(new Account().lastName("Jagger"), new SearchParameters().pageSize(2));
+        Assert.assertThat(single.getTotal(), is(1L));
+        Assert.assertThat(single.hasNext(), is(false));
+    }
+
+    @Test
+    @Rollback
+    public void findPageCountsTheRowsOfThePageQuery() throws Exception {
+        PropertySelector<Account, String> roleNameSelector = PropertySelector.newPropertySelector(Account_.roles, Role_.roleName);
+        roleNameSelector.setSelected(Arrays.asList("ADMIN", "USER"));
+        roleNameSelector.collectionPathStrategy(CollectionPathStrategy.JOIN);
+
+        Statistics statistics = entityManager.getEntityManagerFactory().unwrap(SessionFactory.class).getStatistics();
+        statistics.setStatisticsEnabled(true);
+        try {
+            // the join repeats nico's row, the distinct count does not
+            for (boolean distinct : new boolean[]{false, true}) {
+                SearchParameters sp = new SearchParameters().fetch(Account_.homeAddress).asc(Account_.homeAddress, Address_.city).asc(Account_.username)
+                        .property(roleNameSelector).distinct(distinct).pageSize(2);
+                statistics.clear();
+                Page<Account> page = accountRepository.findPage(new Account(), sp);
+                Assert.assertThat(statistics.getQueryExecutionCount(), is(2L));
+                Assert.assertThat(page.getContent().size(), is(2));
+                Assert.assertThat(page.getTotal(), is(distinct ? 4L : 5L));
+                entityManager.clear();
+            }
+
+            SearchParameters sp = new SearchParameters().fetch(Account_.homeAddress).asc(Account_.username).pageSize(2);
+            Page<Account> page = accountRepository.findPage(new Account(), sp);
+            Assert.assertThat(page.getContent().get(0).getUsername(), is("bibi"));
+            Assert.assertThat(page.getContent().get(1).getUsername(), is("charlie"));
+            Assert.assertThat(page.getTotal(), is(7L));
+        } finally {
+            statistics.setStatisticsEnabled(false);
+        }
+    }
+
+    @Test
+    @Rollback
+    public void concurrentCountResolvesTotal() throws Exception {
+        long count = accountRepository.findCount(new Account());
+        Page<Account> page = accountRepository.findPage(new Account(), new SearchParameters().asc(Account_.lastName).pageSize(2).concurrentCount());
+        Assert.assertThat(page.getContent().size(), is(2));
+        Assert.assertThat(page.getTotal(), is(count));
+        Assert.assertThat(page.isTotalResolved(), is(true));
+    }
+
+    @Test
+    @Rollback
+    public void cappedCountStopsAtLimit() throws Exception {
+        long count = accountRepository.findCount(new Account());
+        Count capped = accountRepository.count(new Account(), new SearchParameters().countUpTo(2));
+        Assert.assertThat(capped.hasMore(), is(count > 2));
+        Assert.assertThat(capped.getValue(), is(Math.min(count, 2L)));
+
+        Count jagger = accountRepository.count(new Account().lastName("Jagger"), new SearchParameters().countUpTo(2));
+        Assert.assertThat(jagger.isExact(), is(true));
+        Assert.assertThat(jagger.toString(), is("1"));
+    }
+
+    @Test
+    @Rollback
+    public void searchResultCacheServesRepeatedSearches() throws Exception {
+        accountRepository.enableSearchResultCache(100, 1024 * 1024);
+        try {
+            SearchResultCache cache = accountRepository.getSearchResultCache();
+            SearchParameters sp = new SearchParameters().asc(Account_.lastName).pageSize(2);
+            List<Account> first = accountRepository.find(new Account(), sp);
+            List<Account> second = accountRepository.find(new Account(), sp);
+            Assert.assertThat(second, is(first));
+            Assert.assertThat(cache.getHitCount(), is(1L));
+
+            accountRepository.save(first.get(0));
+            Assert.assertThat(cache.size(), is(0));
+        } finally {
+            accountRepository.disableSearchResultCache();
+        }
+    }
+
+    @Test
+    @Rollback
+    public void paddedInListMatchesSelectedValuesOnly() throws Exception {
+        List<Account> all = accountRepository.find(new SearchParameters().asc(Account_.id));
+        PropertySelector<Account, Integer> idSelector = PropertySelector.newPropertySelector(Account_.id);
+        idSelector.setSelected(Arrays.asList(all.get(0).getId(), all.get(1).getId(), all.get(2).getId()));
+
+        List<Account> result = accountRepository.find(new SearchParameters().property(idSelector));
+        Assert.assertThat(result.size(), is(3));
+        Assert.assertThat(JpaUtil.inListBucket(3), is(4));
+        Assert.assertThat(JpaUtil.inListBucket(8), is(8));
+    }
+
+    @Test
+    @Rollback
+    public void batchedWritesReportProgress() throws Exception {
+        long count = accountRepository.findCount(new Account());
+        final List<Integer> progress = new ArrayList<Integer>();
+        IntConsumer listener = new IntConsumer() {
+            @Override
+            public void accept(int processed) {
+                progress.add(processed);
+            }
+        };
+        List<Account> accounts = Arrays.asList(new Account().username("batch1"), new Account().username("batch2"), new Account().username("batch3"));
+        accountRepository.setBatchSize(2);
+        try {
+            accountRepository.persistAll(accounts, listener);
+            Assert.assertThat(progress, is(Arrays.asList(2, 3)));
+            Assert.assertThat(accountRepository.findCount(new Account()), is(count + 3));
+
+            List<Integer> ids = Arrays.asList(accounts.get(0).getId(), accounts.get(1).getId(), accounts.get(2).getId());
+            Assert.assertThat(accountRepository.deleteAllById(ids), is(3));
+            Assert.assertThat(accountRepository.findCount(new Account()), is(count));
+        } finally {
+            accountRepository.setBatchSize(GenericRepository.DEFAULT_BATCH_SIZE);
+        }
+    }
+
+    @Test
+    @Rollback
+    public void saveAllKeepsTheChangesOfEntitiesDetachedByABatch() throws Exception {
+        List<Account> accounts = accountRepository.find(new SearchParameters().asc(Account_.id).maxResults(3));
+        for (Account account : accounts) {
+            account.setLastName("Saved " + account.getId());
+        }
+        accountRepository.setBatchSize(2);
+        try {
+            accountRepository.saveAll(accounts);
+        } finally {
+            accountRepository.setBatchSize(GenericRepository.DEFAULT_BATCH_SIZE);
+        }
+        for (Account account : accounts) {
+            Assert.assertThat(accountRepository.getById(account.getId()).getLastName(), is("Saved " + account.getId()));
+        }
+    }
+
+    @Test
+    @Rollback
+    public void deleteByExampleRemovesMatchingRowsOnly() throws Exception {
+        long count = accountRepository.findCount(new Account());
+        accountRepository.persistAll(Arrays.asList(new Account().username("purge1").lastName("Purge"), new Account().username("purge2").lastName("Purge")));
+
+        Assert.assertThat(accountRepository.deleteByExample(new Account().lastName("Purge"), new SearchParameters()), is(2));
+        Assert.assertThat(accountRepository.findCount(new Account()), is(count));
+    }
+
+    @Test
+    @Rollback
+    public void updateByExampleAssignsMatchingRowsOnly() throws Exception {
+        accountRepository.persistAll(Arrays.asList(new Account().username("update1").lastName("Before"), new Account().username("update2").lastName("Before")));
+
+        Map<Attribute<? super Account, ?>, Object> assignments = new HashMap<Attribute<? super Account, ?>, Object>();
+        assignments.put(Account_.lastName, "After");
+        Assert.assertThat(accountRepository.updateByExample(new Account().lastName("Before"), new SearchParameters(), assignments), is(2));
+        Assert.assertThat(accountRepository.findCount(new Account().lastName("Before")), is(0L));
+        Assert.assertThat(accountRepository.findCount(new Account().lastName("After")), is(2L));
+    }
+
+    @Test
+    @Rollback
+    public void getByIdsKeepsOrderAndReportsMissingIds() throws Exception {
+        List<Account> all = accountRepository.find(new SearchParameters().asc(Account_.id));
+        Integer first = all.get(0).getId();
+        Integer second = all.get(1).getId();
+        List<Integer> missing = new ArrayList<Integer>();
+
+        List<Account> result = accountRepository.getByIds(Arrays.asList(second, Integer.MAX_VALUE, first, second), missing);
+        Assert.assertThat(result.size(), is(3));
+        Assert.assertThat(result.get(0).getId(), is(second));
+        Assert.assertThat(result.get(1).getId(), is(first));
+        Assert.assertThat(result.get(2).getId(), is(second));
+        Assert.assertThat(missing, is(Arrays.asList(Integer.MAX_VALUE)));
+    }
+
+    @Test
+    @Rollback
+    public void longInListIsSplitInChunks() throws Exception {
+        List<Account> all = accountRepository.find(new SearchParameters().asc(Account_.id));
+        List<Integer> ids = new ArrayList<Integer>();
+        for (int i = 1; i <= JpaUtil.DEFAULT_IN_LIST_CHUNK_SIZE * 2; i++) {
+            ids.add(Integer.MAX_VALUE - i); // no such account
+        }
+        ids.add(all.get(0).getId());
+        ids.add(all.get(1).getId());
+        PropertySelector<Account, Integer> idSelector = PropertySelector.newPropertySelector(Account_.id);
+        idSelector.setSelected(ids);
+
+        Assert.assertThat(accountRepository.findCount(new SearchParameters().property(idSelector)), is(2L));
+    }
+
+    @Test
+    @Rollback
+    public void inListsBindingTooManyValuesAreRejected() throws Exception {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (int i = 1; i <= 9; i++) {
+            ids.add(Integer.MAX_VALUE - i); // no such account
+        }
+        PropertySelector<Account, Integer> idSelector = PropertySelector.newPropertySelector(Account_.id);
+        idSelector.setSelected(ids);
+
+        JpaUtil.getInstance().setMaxBoundValues(8);
+        try {
+            accountRepository.findCount(new SearchParameters().property(idSelector));
+            Assert.fail("9 values padded to 16 exceed the 8 allowed");
+        } catch (IllegalArgumentException expected) {
+            // the query is not sent to the database
+        } finally {
+            JpaUtil.getInstance().setMaxBoundValues(JpaUtil.DEFAULT_MAX_BOUND_VALUES);
+        }
+    }
+
+    @Test
+    @Rollback
+    public void queryInvolvingManyToOneWithSubquery() throws Exception {
+        Account example = new Account();
+        example.setHomeAddress(new Address());
+        example.getHomeAddress().setCity("Paris");
+        List<Account> result = accountRepository.find(example, new SearchParameters().xToOneStrategy(XToOneStrategy.SUBQUERY));
+        Assert.assertThat(result.size(), is(2));
+    }
+
+    @Test
+    @Rollback
+    public void prefetchInitializesAssociations() throws Exception {
+        Account example = new Account();
+        example.setHomeAddress(new Address());
+        example.getHomeAddress().setCity("Paris");
+        Statistics statistics = entityManager.getEntityManagerFactory().unwrap(SessionFactory.class).getStatistics();
+        statistics.setStatisticsEnabled(true);
+        try {
+            statistics.clear();
+            List<Account> result = accountRepository.find(example, new SearchParameters().prefetch(Account_.homeAddress));
+            Assert.assertThat(result.size(), is(2));
+            for (Account account : result) {
+                Assert.assertThat(Persistence.getPersistenceUtil().isLoaded(account.getHomeAddress()), is(true));
+                Assert.assertThat(account.getHomeAddress().getCity(), is("Paris"));
+            }
+            // the search, then the addresses: the proxies are resolved from the persistence context
+            Assert.assertThat(statistics.getQueryExecutionCount(), is(2L));
+            Assert.assertThat(statistics.getEntityFetchCount(), is(0L));
+        } finally {
+            statistics.setStatisticsEnabled(false);
+        }
+    }
+
+    @Test
+    @Rollback
+    public void fetchGraphLoadsItsAssociations() throws Exception {
+        EntityGraph<Account> entityGraph = accountRepository.createEntityGraph();
+        entityGraph.addAttributeNodes("homeAddress");
+        Account example = new Account();
+        example.setHomeAddress(new Address());
+        example.getHomeAddress().setCity("Paris");
+        List<Account> result = accountRepository.find(example, new SearchParameters().fetchGraph(entityGraph));
+        Assert.assertThat(result.size(), is(2));
+        for (Account account : result) {
+            Assert.assertThat(Persistence.getPersistenceUtil().isLoaded(account.getHomeAddress()), is(true));
+        }
+    }
+
+    @Test
+    @Rollback
+    public void loadGraphsUsesOneQueryPerAssociation() throws Exception {
+        final EntityGraph<Account> entityGraph = accountRepository.createEntityGraph();
+        entityGraph.addAttributeNodes("homeAddress");
+        EntityGraphLoader<Account, Integer> loader = new EntityGraphLoader<Account, Integer>(accountRepository) {
+            @Override
+            protected EntityGraph<?> getEntityGraph() {
+                return entityGraph;
+            }
+
+            @Override
+            public void loadGraph(Account account) {
+            }
+        };
+        List<Account> result = accountRepository.find(new SearchParameters());
+        Assert.assertThat(loader.loadGraphs(result), is(1));
+        Assert.assertThat(loader.loadGraphs(result), is(0));
+        for (Account account : result) {
+            if (account.getHomeAddress() != null) {
+                Assert.assertThat(Persistence.getPersistenceUtil().isLoaded(account.getHomeAddress()), is(true));
+            }
+        }
+    }
+
+    @Test
+    @Rollback
+    public void loadGraphsPrefetchesBeforeCallingLoadGraph() throws Exception {
+        final List<Account> loaded = new ArrayList<Account>();
+        EntityGraphLoader<Account, Integer> loader = new EntityGraphLoader<Account, Integer>(accountRepository) {
+            @Override
+            protected List<List<Attribute<?, ?>>> getPrefetches() {
+                List<List<Attribute<?, ?>>> prefetches = new ArrayList<List<Attribute<?, ?>>>();
+                prefetches.add(Arrays.<Attribute<?, ?>>asList(Account_.roles));
+                return prefetches;
+            }
+
+            @Override
+            public void loadGraph(Account account) {
+                Assert.assertThat(Persistence.getPersistenceUtil().isLoaded(account, "roles"), is(true));
+                loadCollection(account.getRoles());
+                loaded.add(account);
+            }
+        };
+        List<Account> result = accountRepository.find(new SearchParameters());
+        Assert.assertThat(loader.loadGraphs(result), is(1));
+        Assert.assertThat(loaded, is(result));
+    }
+
+    @Test
+    @Rollback
+    public void readOnlyResultsAreNotDirtyChecked() throws Exception {
+        Account account = accountRepository.find(new Account().lastName("Jagger"), new SearchParameters().readOnly()).get(0);
+        account.setLastName("Wyman");
+        Assert.assertThat(accountRepository.findCount(new Account().lastName("Wyman")), is(0L));
+    }
+
+    @Test
+    @Rollback
+    public void detachedResultsAreNoLongerManaged() throws Exception {
+        Account managed = accountRepository.find(new Account().lastName("Jagger")).get(0);
+
+        // a fetch join on the roles without distinct lists nico and bibi twice
+        List<Account> result = accountRepository.find(new SearchParameters().fetch(Account_.roles).detachResults());
+        Assert.assertThat(result.size(), is(9));
+        for (Account account : result) {
+            Assert.assertThat(account.getUsername(), entityManager.contains(account), is(account == managed));
+        }
+
+        // the page is found in two phases, as a collection is fetched
+        entityManager.clear();
+        managed = accountRepository.find(new Account().lastName("Jagger")).get(0);
+        Page<Account> page = accountRepository.findPage(new Account(), new SearchParameters().fetch(Account_.roles).asc(Account_.username).first(4).maxResults(3)
+                .detachResults());
+        Assert.assertThat(page.getContent().size(), is(3));
+        Assert.assertThat(page.getContent().get(1), sameInstance(managed));
+        for (Account account : page.getContent()) {
+            Assert.assertThat(account.getUsername(), entityManager.contains(account), is(account == managed));
+        }
+    }
+
+    @Test
+    @Rollback
+    public void xToManyAndStrategiesMatchTheAccountsHavingAllTheValues() throws Exception {
+        Role admin = roleRepository.getById(1);
+        Role user = roleRepository.getById(2);
+        Role guest = roleRepository.getById(3);
+        for (XToManyAndStrategy strategy : XToManyAndStrategy.values()) {
+            List<Account> result = accountRepository.find(new Account().roles(admin, user),
+                    new SearchParameters().useAndInXToMany().xToManyAndStrategy(strategy));
+            Assert.assertThat(strategy.name(), result.size(), is(1));
+            Assert.assertThat(strategy.name(), result.get(0).getUsername(), is("nico"));
+
+            PropertySelector<Account, Role> roleSelector = PropertySelector.newPropertySelector(false, Account_.roles);
+            roleSelector.setSelected(Arrays.asList(user, guest));
+            result = accountRepository.find(new SearchParameters().xToManyAndStrategy(strategy).property(roleSelector));
+            Assert.assertThat(strategy.name(), result.size(), is(1));
+            Assert.assertThat(strategy.name(), result.get(0).getUsername(), is("bibi"));
+
+            roleSelector.setSelected(Arrays.asList(admin, guest));
+            Assert.assertThat(strategy.name(), accountRepository.findCount(new SearchParameters().xToManyAndStrategy(strategy).property(roleSelector)), is(0L));
+        }
+    }
+
+    @Test
+    @Rollback
+    public void andModeSelectorValuesMayMatchDifferentElements() throws Exception {
+        for (CollectionPathStrategy strategy : CollectionPathStrategy.values()) {
+            PropertySelector<Account, String> roleNameSelector = PropertySelector.newPropertySelector(false, Account_.roles, Role_.roleName);
+            roleNameSelector.setSelected(Arrays.asList("ADMIN", "USER"));
+            roleNameSelector.setCollectionPathStrategy(strategy);
+            List<Account> result = accountRepository.find(new SearchParameters().property(roleNameSelector));
+            Assert.assertThat(strategy.name(), result.size(), is(1));
+            Assert.assertThat(strategy.name(), result.get(0).getUsername(), is("nico"));
+        }
+    }
+
+    @Test
+    @Rollback
+    public void collectionPathStrategiesOnASelector() throws Exception {
+        PropertySelector<Account, String> roleNameSelector = PropertySelector.newPropertySelector(Account_.roles, Role_.roleName);
+        roleNameSelector.setSelected(Arrays.asList("ADMIN", "USER"));
+
+        // nico has both roles, the join repeats his row
+        Assert.assertThat(accountRepository.find(new SearchParameters().property(roleNameSelector.collectionPathStrategy(CollectionPathStrategy.JOIN))).size(), is(5));
+        Assert.assertThat(accountRepository.find(new SearchParameters().property(roleNameSelector.collectionPathStrategy(CollectionPathStrategy.EXISTS))).size(), is(4));
+        Assert.assertThat(accountRepository.find(new SearchParameters().property(roleNameSelector.collectionPathStrategy(CollectionPathStrategy.AUTO))).size(), is(4));
+    }
+
+    @Test
+    @Rollback
+    public void collectionPathStrategiesOnARange() throws Exception {
+        Range<Account, Integer> roleIdRange = new Range<Account, Integer>(2, 3, Account_.roles, Role_.id);
+
+        // bibi has the roles 2 and 3, the join repeats her row
+        Assert.assertThat(accountRepository.find(new SearchParameters().range(roleIdRange.collectionPathStrategy(CollectionPathStrategy.JOIN))).size(), is(4));
+        Assert.assertThat(accountRepository.find(new SearchParameters().range(roleIdRange.collectionPathStrategy(CollectionPathStrategy.EXISTS))).size(), is(3));
+    }
+
+    @Test
+    @Rollback
+    public void autoCollectionPathStrategySharesTheJoinOfAnOrderInOrMode() throws Exception {
+        PropertySelector<Account, String> roleNameSelector = PropertySelector.newPropertySelector(Account_.roles, Role_.roleName);
+        roleNameSelector.setSelected(Arrays.asList("ADMIN", "USER"));
+
+        // one row per matching role: nico twice, flo, bibi and mick once
+        SearchParameters sp = new SearchParameters().orMode().asc(Account_.roles, Role_.roleName).property(roleNameSelector.collectionPathStrategy(CollectionPathStrategy.AUTO));
+        Assert.assertThat(accountRepository.find(sp).size(), is(5));
+
+        // the order has its own join on all the roles of the matching accounts: bibi's GUEST role is a row too
+        sp = new SearchParameters().orMode().asc(Account_.roles, Role_.roleName).property(roleNameSelector.collectionPathStrategy(CollectionPathStrategy.EXISTS));
+        Assert.assertThat(accountRepository.find(sp).size(), is(6));
+    }
+
+    @Test
+    @Rollback
+    public void paginationWithAFetchedCollectionQueriesThePageIdsFirst() throws Exception {
+        Statistics statistics = entityManager.getEntityManagerFactory().unwrap(SessionFactory.class).getStatistics();
+        statistics.setStatisticsEnabled(true);
+        try {
+            for (boolean distinct : new boolean[]{false, true}) {
+                statistics.clear();
+                // bibi, charlie, flo, jlb, keith, mick, nico
+                SearchParameters sp = new SearchParameters().fetch(Account_.roles).asc(Account_.username).distinct(distinct).first(4).maxResults(3);
+                List<Account> result = accountRepository.find(sp);
+                Assert.assertThat(statistics.getQueryExecutionCount(), is(2L));
+                Assert.assertThat(result.size(), is(3));
+                Assert.assertThat(result.get(0).getUsername(), is("keith"));
+                Assert.assertThat(result.get(1).getUsername(), is("mick"));
+                Assert.assertThat(result.get(2).getUsername(), is("nico"));
+                Assert.assertThat(Persistence.getPersistenceUtil().isLoaded(result.get(2), "roles"), is(true));
+                Assert.assertThat(result.get(2).getRoles().size(), is(2));
+                entityManager.clear();
+            }
+
+            statistics.clear();
+            List<Account> result = accountRepository.find(new SearchParameters().fetch(Account_.homeAddress).asc(Account_.username).first(4).maxResults(3));
+            Assert.assertThat(statistics.getQueryExecutionCount(), is(1L));
+            Assert.assertThat(result.get(0).getUsername(), is("keith"));
+        } finally {
+            statistics.setStatisticsEnabled(false);
+        }
+    }
+}
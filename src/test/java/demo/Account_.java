@@ -8,6 +8,7 @@
  */
 package demo;
 
+import javax.persistence.metamodel.ListAttribute;
 import javax.persistence.metamodel.SingularAttribute;
 import javax.persistence.metamodel.StaticMetamodel;
 import java.util.Date;
@@ -23,4 +24,7 @@ public abstract class Account_ {
 
     // Many to one
     public static volatile SingularAttribute<Account, Address> homeAddress;
+
+    // Many to many
+    public static volatile ListAttribute<Account, Role> roles;
 }
\ No newline at end of file
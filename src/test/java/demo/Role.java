@@ -0,0 +1,97 @@
+/*
+ * Source code generated by Celerio, a Jaxio product.
+ * Documentation: http://www.jaxio.com/documentation/celerio/
+ * Follow us on twitter: @jaxiosoft
+ * Need commercial support ? Contact us: info@jaxio.com
+ * Template pack-backend-jpa:src/main/java/domain/Entity.e.vm.java
+ * Template is part of Open Source Project: https://github.com/jaxio/pack-backend-jpa
+ */
+package demo;
+
+import com.google.common.base.MoreObjects;
+import com.jaxio.jpa.querybyexample.Identifiable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.persistence.*;
+import java.io.Serializable;
+
+@Entity
+@Table(name = "ROLE")
+public class Role implements Identifiable<Integer>, Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final Logger log = LoggerFactory.getLogger(Role.class);
+
+    // Raw attributes
+    private Integer id;
+    private String roleName;
+
+    // -- [id] ------------------------
+
+    @Override
+    @Column(name = "ID", precision = 10)
+    @Id
+    public Integer getId() {
+        return id;
+    }
+
+    @Override
+    public void setId(Integer id) {
+        this.id = id;
+    }
+
+    public Role id(Integer id) {
+        setId(id);
+        return this;
+    }
+
+    @Override
+    @Transient
+    public boolean isIdSet() {
+        return id != null;
+    }
+
+    // -- [roleName] ------------------------
+
+    @Column(name = "ROLE_NAME", nullable = false, unique = true, length = 100)
+    public String getRoleName() {
+        return roleName;
+    }
+
+    public void setRoleName(String roleName) {
+        this.roleName = roleName;
+    }
+
+    public Role roleName(String roleName) {
+        setRoleName(roleName);
+        return this;
+    }
+
+    /**
+     * Equals implementation using a business key.
+     */
+    @Override
+    public boolean equals(Object other) {
+        return this == other || (other instanceof Role && hashCode() == other.hashCode());
+    }
+
+    private IdentifiableHashBuilder identifiableHashBuilder = new IdentifiableHashBuilder();
+
+    @Override
+    public int hashCode() {
+        return identifiableHashBuilder.hash(log, this);
+    }
+
+    /**
+     * Construct a readable string representation for this Role instance.
+     *
+     * @see Object#toString()
+     */
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this) //
+                .add("id", getId()) //
+                .add("roleName", getRoleName()) //
+                .toString();
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * Source code generated by Celerio, a Jaxio product.
+ * Documentation: http://www.jaxio.com/documentation/celerio/
+ * Follow us on twitter: @jaxiosoft
+ * Need commercial support ? Contact us: info@jaxio.com
+ * Template pack-backend-jpa:src/main/java/repository/Repository.e.vm.java
+ * Template is part of Open Source Project: https://github.com/jaxio/pack-backend-jpa
+ */
+package demo;
+
+import com.jaxio.jpa.querybyexample.GenericRepository;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+@Named
+@Singleton
+public class RoleRepository extends GenericRepository<Role, Integer> {
+
+    public RoleRepository() {
+        super(Role.class);
+    }
+
+    @Override
+    public Role getNew() {
+        return new Role();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,20 @@
+/*
+ * Source code generated by Celerio, a Jaxio product.
+ * Documentation: http://www.jaxio.com/documentation/celerio/
+ * Follow us on twitter: @jaxiosoft
+ * Need commercial support ? Contact us: info@jaxio.com
+ * Template pack-backend-jpa:src/main/java/domain/EntityMeta_.e.vm.java
+ * Template is part of Open Source Project: https://github.com/jaxio/pack-backend-jpa
+ */
+package demo;
+
+import javax.persistence.metamodel.SingularAttribute;
+import javax.persistence.metamodel.StaticMetamodel;
+
+@StaticMetamodel(Role.class)
+public abstract class Role_ {
+
+    // Raw attributes
+    public static volatile SingularAttribute<Role, Integer> id;
+    public static volatile SingularAttribute<Role, String> roleName;
+}
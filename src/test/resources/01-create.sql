@@ -1,5 +1,7 @@
 DROP ALL OBJECTS;
 
+CREATE SEQUENCE hibernate_sequence START WITH 1;
+
 CREATE TABLE ADDRESS (
     id                          int not null IDENTITY,
     street_name                 varchar(100),
@@ -20,6 +22,20 @@ CREATE TABLE ACCOUNT (
     primary key (id)
 );
 
+CREATE TABLE ROLE (
+    id                          int not null,
+    role_name                   varchar(100) not null,
+    constraint role_unique_1 unique (role_name),
+    primary key (id)
+);
+
+CREATE TABLE ACCOUNT_ROLE (
+    account_id                  int not null,
+    role_id                     int not null,
+    constraint account_role_fk_1 foreign key (account_id) references ACCOUNT,
+    constraint account_role_fk_2 foreign key (role_id) references ROLE
+);
+
 -- use negative id to avoid conflict with auto generated ids.
 INSERT INTO ADDRESS (id, street_name, city) values(-1, 'Avenue des champs Elysées', 'Paris');
 INSERT INTO ADDRESS (id, street_name, city) values(-2, 'Park avenue', 'New-York');
@@ -34,3 +50,15 @@ INSERT INTO ACCOUNT (id, username, last_name, birth_date, address_id) VALUES (-4
 INSERT INTO ACCOUNT (id, username, last_name, birth_date, address_id) VALUES (-5, 'mick',  'Jagger', {d '1943-10-30'}, -1);
 INSERT INTO ACCOUNT (id, username, last_name, birth_date, address_id) VALUES (-6, 'keith',  'Richards', {d '1943-10-30'}, -2);
 INSERT INTO ACCOUNT (id, username, last_name, birth_date, address_id) VALUES (-7, 'charlie',  'Watts', {d '1941-10-30'}, -3);
+
+-- the role ids are manually assigned.
+INSERT INTO ROLE (id, role_name) VALUES (1, 'ADMIN');
+INSERT INTO ROLE (id, role_name) VALUES (2, 'USER');
+INSERT INTO ROLE (id, role_name) VALUES (3, 'GUEST');
+
+INSERT INTO ACCOUNT_ROLE (account_id, role_id) VALUES (-1, 1);
+INSERT INTO ACCOUNT_ROLE (account_id, role_id) VALUES (-1, 2);
+INSERT INTO ACCOUNT_ROLE (account_id, role_id) VALUES (-2, 2);
+INSERT INTO ACCOUNT_ROLE (account_id, role_id) VALUES (-3, 2);
+INSERT INTO ACCOUNT_ROLE (account_id, role_id) VALUES (-3, 3);
+INSERT INTO ACCOUNT_ROLE (account_id, role_id) VALUES (-5, 1);